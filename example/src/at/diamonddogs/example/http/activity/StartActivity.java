@@ -57,6 +57,9 @@ public class StartActivity extends Activity {
 				NonTimeCriticalExampleActivity.class));
 		adapter.add(new Example("ImageLoadingExampleListActivity", "Shows how to work with images in lists",
 				ImageLoadingExampleListActivity.class));
+		adapter.add(new Example("WebClientBenchmarkActivity",
+				"Compares the blocking WebClients with the non blocking WebClientNio using a local http stub",
+				WebClientBenchmarkActivity.class));
 		list.setAdapter(adapter);
 		list.setOnItemClickListener(new OnItemClickListener() {
 
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2012, 2013 the diamond:dogs|group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.diamonddogs.example.http.activity;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.app.Activity;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.widget.TextView;
+import at.diamonddogs.data.adapter.ReplyAdapter;
+import at.diamonddogs.data.adapter.ReplyAdapter.Status;
+import at.diamonddogs.data.dataobjects.WebRequest;
+import at.diamonddogs.example.http.R;
+import at.diamonddogs.example.http.net.LocalHttpStub;
+import at.diamonddogs.net.WebClient;
+import at.diamonddogs.net.WebClientDefaultHttpClient;
+import at.diamonddogs.net.WebClientHttpURLConnection;
+import at.diamonddogs.net.WebClientNio;
+import at.diamonddogs.util.WorkerQueue;
+
+/**
+ * Compares the blocking {@link WebClient}s with {@link WebClientNio} by running
+ * a batch of concurrent requests against a {@link LocalHttpStub}
+ */
+public class WebClientBenchmarkActivity extends Activity {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(WebClientBenchmarkActivity.class.getSimpleName());
+
+	private static final int REQUESTS = 200;
+
+	private static final int LATENCY = 100;
+
+	private static final int BODY_SIZE = 4096;
+
+	/**
+	 * Same pool size as used by HttpService
+	 */
+	private static final int POOL_SIZE_CORE = 4;
+	private static final int POOL_SIZE_MAX = 8;
+
+	private enum ClientType {
+		HTTP_URL_CONNECTION,
+		DEFAULT_HTTP_CLIENT,
+		NIO
+	}
+
+	private TextView result;
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected void onCreate(Bundle savedInstanceState) {
+		super.onCreate(savedInstanceState);
+		setContentView(R.layout.webclientbenchmarkactivity);
+		result = (TextView) findViewById(R.id.webclientbenchmarkactivity_result);
+		new BenchmarkTask().execute();
+	}
+
+	private WebClient createClient(ClientType type, WebRequest webRequest) {
+		WebClient client;
+		switch (type) {
+		case HTTP_URL_CONNECTION:
+			client = new WebClientHttpURLConnection(this);
+			break;
+		case DEFAULT_HTTP_CLIENT:
+			client = new WebClientDefaultHttpClient(this);
+			break;
+		default:
+			client = new WebClientNio(this);
+			break;
+		}
+		client.setWebRequest(webRequest);
+		return client;
+	}
+
+	private String runBenchmark(ClientType type, String url) throws Exception {
+		WorkerQueue workerQueue = new WorkerQueue(POOL_SIZE_CORE, POOL_SIZE_MAX, 3000);
+		List<Future<ReplyAdapter>> futures = new ArrayList<Future<ReplyAdapter>>(REQUESTS);
+		int threadsBefore = Thread.activeCount();
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < REQUESTS; i++) {
+			WebRequest webRequest = new WebRequest();
+			webRequest.setUrl(url + "?i=" + i);
+			WebClient client = createClient(type, webRequest);
+			if (client instanceof WebClientNio) {
+				futures.add(((WebClientNio) client).submit());
+			} else {
+				futures.add(workerQueue.runCancelableTask(client));
+			}
+		}
+		int threadsDuring = Thread.activeCount();
+		int failed = 0;
+		for (Future<ReplyAdapter> future : futures) {
+			if (future.get().getStatus() != Status.OK) {
+				failed++;
+			}
+		}
+		long duration = System.currentTimeMillis() - start;
+		workerQueue.shutDown();
+		return type + ": " + REQUESTS + " requests in " + duration + "ms, failed: " + failed + ", additional threads: "
+				+ (threadsDuring - threadsBefore) + "\n";
+	}
+
+	private final class BenchmarkTask extends AsyncTask<Void, String, Void> {
+
+		@Override
+		protected Void doInBackground(Void... params) {
+			LocalHttpStub stub = null;
+			try {
+				stub = new LocalHttpStub(LATENCY, BODY_SIZE);
+				publishProgress(REQUESTS + " requests, " + LATENCY + "ms latency, " + BODY_SIZE + " byte body\n");
+				for (ClientType type : ClientType.values()) {
+					// warm up connections and class loading
+					runBenchmark(type, stub.getUrl());
+					publishProgress(runBenchmark(type, stub.getUrl()));
+				}
+			} catch (Throwable tr) {
+				LOGGER.error("Benchmark failed", tr);
+				publishProgress("Benchmark failed: " + tr.getMessage());
+			} finally {
+				if (stub != null) {
+					stub.stop();
+				}
+			}
+			return null;
+		}
+
+		@Override
+		protected void onProgressUpdate(String... values) {
+			result.append(values[0]);
+		}
+	}
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2012, 2013 the diamond:dogs|group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.diamonddogs.example.http.net;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A minimal HTTP/1.1 server bound to the loopback interface. Every request is
+ * answered with a fixed size body after a configurable delay, which simulates
+ * the latency of a remote server. Keep-alive is supported. Only meant to be
+ * used for benchmarks.
+ */
+public class LocalHttpStub implements Runnable {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(LocalHttpStub.class.getSimpleName());
+
+	private final ServerSocket serverSocket;
+
+	private final int latency;
+
+	private final byte[] body;
+
+	private volatile boolean running = true;
+
+	/**
+	 * Creates and starts a new {@link LocalHttpStub} on a free port
+	 *
+	 * @param latency
+	 *            the delay in ms before a response is sent
+	 * @param bodySize
+	 *            the size of the response body in byte
+	 * @throws IOException
+	 *             if the server socket could not be opened
+	 */
+	public LocalHttpStub(int latency, int bodySize) throws IOException {
+		this.latency = latency;
+		this.body = new byte[bodySize];
+		Arrays.fill(body, (byte) 'x');
+		serverSocket = new ServerSocket(0, 1024, InetAddress.getByName("127.0.0.1"));
+		Thread t = new Thread(this, "LocalHttpStub");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Returns the url of the stub
+	 *
+	 * @return the url
+	 */
+	public String getUrl() {
+		return "http://127.0.0.1:" + serverSocket.getLocalPort() + "/";
+	}
+
+	@Override
+	public void run() {
+		while (running) {
+			try {
+				final Socket socket = serverSocket.accept();
+				Thread t = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						serve(socket);
+					}
+				});
+				t.setDaemon(true);
+				t.start();
+			} catch (IOException e) {
+				if (running) {
+					LOGGER.warn("Could not accept connection", e);
+				}
+			}
+		}
+	}
+
+	private void serve(Socket socket) {
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+			OutputStream out = socket.getOutputStream();
+			byte[] header = ("HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nContent-Length: " + body.length + "\r\n\r\n")
+					.getBytes("ISO-8859-1");
+			String line;
+			boolean close = false;
+			while (!close && (line = reader.readLine()) != null) {
+				if (line.toLowerCase().startsWith("connection:") && line.toLowerCase().contains("close")) {
+					close = true;
+				}
+				if (line.length() == 0) {
+					Thread.sleep(latency);
+					out.write(header);
+					out.write(body);
+					out.flush();
+				}
+			}
+		} catch (Exception e) {
+			LOGGER.debug("Connection closed", e);
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * Stops the stub
+	 */
+	public void stop() {
+		running = false;
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+		}
+	}
+}
@@ -105,6 +105,8 @@ public class WebRequestBuilder {
 		webRequest.setRetryInterval(configuration.getRetryInterval());
 		webRequest.setNumberOfRetries(configuration.getRetryCount());
 		webRequest.setCacheTime(configuration.getDefaultCacheTime());
+		webRequest.setCompressRequestBody(configuration.isRequestBodyCompressionEnabled());
+		webRequest.setCompressionThreshold(configuration.getRequestBodyCompressionThreshold());
 		return this;
 	}
 
@@ -258,6 +260,22 @@ public class WebRequestBuilder {
 		return this;
 	}
 
+	/**
+	 * Enables or disables gzip compression of the request body. This method
+	 * allows overriding the default provided by the
+	 * {@link WebRequestBuilderConfiguration} used by this
+	 * {@link WebRequestBuilder}
+	 * 
+	 * @param compressRequestBody
+	 *            <code>true</code> to compress the request body
+	 * @return the {@link WebRequestBuilder} instance (allows chaining)
+	 */
+	public WebRequestBuilder setCompressRequestBody(boolean compressRequestBody) {
+		throwOnError();
+		webRequest.setCompressRequestBody(compressRequestBody);
+		return this;
+	}
+
 	/**
 	 * Returns the {@link WebRequest} that has been constructed so far
 	 * 
@@ -133,4 +133,20 @@ public interface WebRequestBuilderConfiguration {
 	 * @return the default cache time
 	 */
 	public long getDefaultCacheTime();
+
+	/**
+	 * Determines if the resulting {@link WebRequest} compresses its request
+	 * body
+	 * 
+	 * @return <code>true</code> if the request body is gzip compressed,
+	 *         <code>false</code> otherwise
+	 */
+	public boolean isRequestBodyCompressionEnabled();
+
+	/**
+	 * Returns the minimum size in bytes of a compressed request body
+	 * 
+	 * @return the compression threshold
+	 */
+	public int getRequestBodyCompressionThreshold();
 }
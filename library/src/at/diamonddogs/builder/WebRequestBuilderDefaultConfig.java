@@ -142,4 +142,20 @@ public class WebRequestBuilderDefaultConfig implements WebRequestBuilderConfigur
 		return CacheInformation.CACHE_NO;
 	}
 
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean isRequestBodyCompressionEnabled() {
+		return false;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int getRequestBodyCompressionThreshold() {
+		return 1024;
+	}
+
 }
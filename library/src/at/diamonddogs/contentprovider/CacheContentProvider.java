@@ -44,7 +44,7 @@ public class CacheContentProvider extends ContentProvider {
 
 	private static final String DATABASE_NAME = "cache.db";
 
-	private static final int DATABASE_VERSION = 6;
+	private static final int DATABASE_VERSION = 8;
 
 	/**
 	 * The content uri used by this provider
@@ -87,6 +87,27 @@ public class CacheContentProvider extends ContentProvider {
 				} catch (Exception e) {
 					LOGGER.error("upgrade failed",e);
 				}
+			} else {
+				if (oldVersion < 7) {
+					try {
+						LOGGER.info("starting upgrade");
+						db.execSQL("ALTER TABLE " + DataBaseAdapterCacheInformation.TABLE + " ADD COLUMN " + DataBaseAdapterCacheInformation.ETAG + " TEXT");
+						db.execSQL("ALTER TABLE " + DataBaseAdapterCacheInformation.TABLE + " ADD COLUMN " + DataBaseAdapterCacheInformation.LASTMODIFIED + " TEXT");
+						LOGGER.info("upgrade complete");
+					} catch (Exception e) {
+						LOGGER.error("upgrade failed",e);
+					}
+				}
+				if (oldVersion < 8) {
+					try {
+						LOGGER.info("starting upgrade");
+						db.execSQL("ALTER TABLE " + DataBaseAdapterCacheInformation.TABLE + " ADD COLUMN " + DataBaseAdapterCacheInformation.STALEWHILEREVALIDATE + " INTEGER DEFAULT 0");
+						db.execSQL("ALTER TABLE " + DataBaseAdapterCacheInformation.TABLE + " ADD COLUMN " + DataBaseAdapterCacheInformation.STALEIFERROR + " INTEGER DEFAULT 0");
+						LOGGER.info("upgrade complete");
+					} catch (Exception e) {
+						LOGGER.error("upgrade failed",e);
+					}
+				}
 			}
 			// @formatter:on
 		}
@@ -100,7 +121,11 @@ public class CacheContentProvider extends ContentProvider {
 				DataBaseAdapterCacheInformation.CACHETIME + " INTEGER, " +
 				DataBaseAdapterCacheInformation.FILENAME + " TEXT UNIQUE, " +
 				DataBaseAdapterCacheInformation.FILEPATH + " TEXT, " +
-				DataBaseAdapterCacheInformation.USEOFFLINECACHE + " INTEGER);";
+				DataBaseAdapterCacheInformation.USEOFFLINECACHE + " INTEGER, " +
+				DataBaseAdapterCacheInformation.ETAG + " TEXT, " +
+				DataBaseAdapterCacheInformation.LASTMODIFIED + " TEXT, " +
+				DataBaseAdapterCacheInformation.STALEWHILEREVALIDATE + " INTEGER DEFAULT 0, " +
+				DataBaseAdapterCacheInformation.STALEIFERROR + " INTEGER DEFAULT 0);";
 			LOGGER.info("Creating cache: " + s);
 			db.execSQL(s);
 			LOGGER.info("cache created");
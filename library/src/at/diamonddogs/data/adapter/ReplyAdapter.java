@@ -38,6 +38,23 @@ public class ReplyAdapter {
 		 * {@link WebRequest} execution
 		 */
 		FAILED,
+		/**
+		 * indicates that the request has not been made because the circuit
+		 * of its host is open, see {@link at.diamonddogs.net.CircuitBreaker}
+		 */
+		CIRCUIT_OPEN,
+		/**
+		 * indicates that the deadline of the request passed before it could
+		 * be completed, see
+		 * {@link at.diamonddogs.data.dataobjects.WebRequest#getDeadline()}
+		 */
+		DEADLINE_EXCEEDED,
+		/**
+		 * indicates that the request has not been made because the
+		 * {@link at.diamonddogs.service.net.HttpService} could not admit it,
+		 * see {@link at.diamonddogs.service.net.AdmissionQueue}
+		 */
+		REJECTED,
 	}
 
 	/**
@@ -52,6 +52,18 @@ public class DataBaseAdapterCacheInformation extends DatabaseAdapter<CacheInform
 	/** useofflinecache column */
 	public static final String USEOFFLINECACHE = "useofflinecache";
 
+	/** etag column */
+	public static final String ETAG = "etag";
+
+	/** lastmodified column */
+	public static final String LASTMODIFIED = "lastmodified";
+
+	/** stalewhilerevalidate column */
+	public static final String STALEWHILEREVALIDATE = "stalewhilerevalidate";
+
+	/** staleiferror column */
+	public static final String STALEIFERROR = "staleiferror";
+
 	/**
 	 * Sets dataObject to the {@link CacheInformation} item currently selected
 	 * in c
@@ -96,6 +108,10 @@ public class DataBaseAdapterCacheInformation extends DatabaseAdapter<CacheInform
 		cv.put(FILENAME, dataObject.getFileName());
 		cv.put(FILEPATH, dataObject.getFilePath());
 		cv.put(USEOFFLINECACHE, dataObject.isUseOfflineCache() ? 1 : 0);
+		cv.put(ETAG, dataObject.getEtag());
+		cv.put(LASTMODIFIED, dataObject.getLastModified());
+		cv.put(STALEWHILEREVALIDATE, dataObject.getStaleWhileRevalidate());
+		cv.put(STALEIFERROR, dataObject.getStaleIfError());
 		return cv;
 	}
 
@@ -111,6 +127,10 @@ public class DataBaseAdapterCacheInformation extends DatabaseAdapter<CacheInform
 		dataObject.setFileName(c.getString(c.getColumnIndexOrThrow(FILENAME)));
 		dataObject.setFilePath(c.getString(c.getColumnIndexOrThrow(FILEPATH)));
 		dataObject.setUseOfflineCache(c.getInt(c.getColumnIndexOrThrow(USEOFFLINECACHE)) == 1);
+		dataObject.setEtag(c.getString(c.getColumnIndexOrThrow(ETAG)));
+		dataObject.setLastModified(c.getString(c.getColumnIndexOrThrow(LASTMODIFIED)));
+		dataObject.setStaleWhileRevalidate(c.getLong(c.getColumnIndexOrThrow(STALEWHILEREVALIDATE)));
+		dataObject.setStaleIfError(c.getLong(c.getColumnIndexOrThrow(STALEIFERROR)));
 		return dataObject;
 	}
 
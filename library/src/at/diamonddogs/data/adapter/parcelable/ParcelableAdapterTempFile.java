@@ -39,6 +39,7 @@ public class ParcelableAdapterTempFile extends ParcelableAdapter<TempFile> {
 		dataObject.setSize(in.readInt());
 		dataObject.setUseChecksum(in.readInt() == 1);
 		dataObject.setAppend(in.readInt() == 1);
+		dataObject.setSegments(in.readInt());
 	}
 
 	/**
@@ -60,6 +61,7 @@ public class ParcelableAdapterTempFile extends ParcelableAdapter<TempFile> {
 		dest.writeInt(dataObject.getSize());
 		dest.writeInt(dataObject.isUseChecksum() ? 1 : 0);
 		dest.writeInt(dataObject.isAppend() ? 1 : 0);
+		dest.writeInt(dataObject.getSegments());
 	}
 
 	@Override
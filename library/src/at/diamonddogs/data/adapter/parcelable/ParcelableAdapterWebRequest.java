@@ -69,6 +69,8 @@ public class ParcelableAdapterWebRequest extends ParcelableAdapter<WebRequest> {
 		dataObject.setCheckConnectivity(in.readInt() == 1);
 		dataObject.setCheckConnectivityPing(in.readInt() == 1);
 		dataObject.setUseOfflineCache(in.readInt() == 1);
+		dataObject.setDeadline(in.readLong());
+		dataObject.setMaxRedirects(in.readInt());
 
 	}
 
@@ -113,6 +115,8 @@ public class ParcelableAdapterWebRequest extends ParcelableAdapter<WebRequest> {
 		dest.writeInt(dataObject.isCheckConnectivity() ? 1 : 0);
 		dest.writeInt(dataObject.isCheckConnectivityPing() ? 1 : 0);
 		dest.writeInt(dataObject.isUseOfflineCache() ? 1 : 0);
+		dest.writeLong(dataObject.getDeadline());
+		dest.writeInt(dataObject.getMaxRedirects());
 	}
 
 	/**
@@ -40,6 +40,11 @@ public class CacheInformation {
 	public static final long CACHE_1MO = 2419200000l;
 	/** Cache forever */
 	public static final long CACHE_FOREVER = -2;
+	/**
+	 * Cache according to the Cache-Control, Expires and Age header fields of
+	 * the reply
+	 */
+	public static final long CACHE_HTTP = -3;
 
 	/**
 	 * Primary key, will be -1 if not assigned
@@ -77,6 +82,30 @@ public class CacheInformation {
 	 */
 	private boolean useOfflineCache = false;
 
+	/**
+	 * The ETag of the cached reply, used to revalidate the file once it has
+	 * expired
+	 */
+	private String etag;
+
+	/**
+	 * The Last-Modified date of the cached reply, used to revalidate the file
+	 * once it has expired
+	 */
+	private String lastModified;
+
+	/**
+	 * Time in ms after expiry during which the file may still be used, while
+	 * it is revalidated in the background
+	 */
+	private long staleWhileRevalidate;
+
+	/**
+	 * Time in ms after expiry during which the file may still be used, if the
+	 * server cannot be reached or replies with an error
+	 */
+	private long staleIfError;
+
 	/**
 	 * Constructor to privide all information on {@link CacheInformation}
 	 * 
@@ -176,9 +205,59 @@ public class CacheInformation {
 		this.useOfflineCache = useOfflineCache;
 	}
 
+	@SuppressWarnings("javadoc")
+	public String getEtag() {
+		return etag;
+	}
+
+	@SuppressWarnings("javadoc")
+	public void setEtag(String etag) {
+		this.etag = etag;
+	}
+
+	@SuppressWarnings("javadoc")
+	public String getLastModified() {
+		return lastModified;
+	}
+
+	@SuppressWarnings("javadoc")
+	public void setLastModified(String lastModified) {
+		this.lastModified = lastModified;
+	}
+
+	@SuppressWarnings("javadoc")
+	public long getStaleWhileRevalidate() {
+		return staleWhileRevalidate;
+	}
+
+	@SuppressWarnings("javadoc")
+	public void setStaleWhileRevalidate(long staleWhileRevalidate) {
+		this.staleWhileRevalidate = staleWhileRevalidate;
+	}
+
+	@SuppressWarnings("javadoc")
+	public long getStaleIfError() {
+		return staleIfError;
+	}
+
+	@SuppressWarnings("javadoc")
+	public void setStaleIfError(long staleIfError) {
+		this.staleIfError = staleIfError;
+	}
+
+	/**
+	 * Checks if the cached file can be revalidated using a conditional request
+	 * 
+	 * @return <code>true</code> if an ETag or a Last-Modified date is available
+	 */
+	public boolean hasValidator() {
+		return etag != null || lastModified != null;
+	}
+
 	@Override
 	public String toString() {
 		return "CacheInformation [_id=" + _id + ", creationTimeStamp=" + creationTimeStamp + ", cacheTime=" + cacheTime + ", fileName="
-				+ fileName + ", filePath=" + filePath + ", useOfflineCache=" + useOfflineCache + "]";
+				+ fileName + ", filePath=" + filePath + ", useOfflineCache=" + useOfflineCache + ", etag=" + etag + ", lastModified="
+				+ lastModified + ", staleWhileRevalidate=" + staleWhileRevalidate + ", staleIfError=" + staleIfError + "]";
 	}
 }
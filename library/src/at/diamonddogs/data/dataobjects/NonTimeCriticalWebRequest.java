@@ -19,6 +19,8 @@ import android.app.Activity;
 import android.app.Service;
 import android.content.Context;
 import android.os.Handler;
+import at.diamonddogs.net.BandwidthLimiter;
+import at.diamonddogs.net.BandwidthLimiter.TrafficClass;
 import at.diamonddogs.service.net.HttpServiceAssister;
 import at.diamonddogs.service.processor.ServiceProcessor;
 
@@ -29,7 +31,6 @@ import at.diamonddogs.service.processor.ServiceProcessor;
  */
 public class NonTimeCriticalWebRequest extends WebRequest implements NonTimeCriticalTask {
 
-	private PRIORITY priority;
 	private ServiceProcessor<?> serviceProcessor;
 	private Handler.Callback callback;
 
@@ -74,19 +75,16 @@ public class NonTimeCriticalWebRequest extends WebRequest implements NonTimeCrit
 	}
 
 	/**
-	 * {@inheritDoc}
-	 */
-	@Override
-	public PRIORITY getPriority() {
-		return priority;
-	}
-
-	/**
-	 * {@inheritDoc}
+	 * Unless set explicitly, the {@link TrafficClass} is assigned by the
+	 * {@link PRIORITY} of the request, see
+	 * {@link BandwidthLimiter#setTrafficClass(PRIORITY, TrafficClass)}
 	 */
 	@Override
-	public void setPriority(PRIORITY priority) {
-		this.priority = priority;
+	public TrafficClass getTrafficClass() {
+		if (trafficClass != null) {
+			return trafficClass;
+		}
+		return BandwidthLimiter.getInstance().getTrafficClass(priority);
 	}
 
 	/**
@@ -42,6 +42,12 @@ public class TempFile {
 	/** append data to an existing temp file */
 	private boolean append;
 
+	/**
+	 * the number of concurrent byte ranges used to download the file, values
+	 * bigger than 1 enable segmented downloads
+	 */
+	private int segments;
+
 	/**
 	 * Default constructor
 	 */
@@ -53,6 +59,7 @@ public class TempFile {
 		size = 0;
 		useChecksum = true;
 		append = false;
+		segments = 1;
 	}
 
 	@SuppressWarnings("javadoc")
@@ -65,6 +72,16 @@ public class TempFile {
 		this.append = append;
 	}
 
+	@SuppressWarnings("javadoc")
+	public int getSegments() {
+		return segments;
+	}
+
+	@SuppressWarnings("javadoc")
+	public void setSegments(int segments) {
+		this.segments = segments;
+	}
+
 	@SuppressWarnings("javadoc")
 	public boolean isUseChecksum() {
 		return useChecksum;
@@ -127,6 +144,6 @@ public class TempFile {
 
 	@Override
 	public String toString() {
-		return "url: " + url + " checksum: " + checksum + " date: " + date + " path: " + path + " FileSize: " + size;
+		return "url: " + url + " checksum: " + checksum + " date: " + date + " path: " + path + " FileSize: " + size + " segments: " + segments;
 	}
 }
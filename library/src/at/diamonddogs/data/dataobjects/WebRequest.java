@@ -28,7 +28,13 @@ import org.slf4j.LoggerFactory;
 import android.net.ConnectivityManager;
 import android.net.Uri;
 import android.util.Pair;
+import at.diamonddogs.data.dataobjects.NonTimeCriticalTask.PRIORITY;
+import at.diamonddogs.net.BandwidthLimiter.TrafficClass;
+import at.diamonddogs.net.retry.FixedIntervalRetryPolicy;
+import at.diamonddogs.net.retry.RetryPolicy;
 import at.diamonddogs.service.net.HttpService;
+import at.diamonddogs.util.WorkerQueue;
+import at.diamonddogs.util.WorkerQueue.Prioritized;
 
 /**
  * Web request representation
@@ -38,10 +44,15 @@ import at.diamonddogs.service.net.HttpService;
  * instance will be used and delete from HttpService once the request has
  * finished)
  */
-public class WebRequest implements Request {
+public class WebRequest implements Request, Prioritized {
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(WebRequest.class.getSimpleName());
 
+	/**
+	 * Indicates that a {@link WebRequest} has no overall deadline
+	 */
+	public static final long NO_DEADLINE = 0;
+
 	/**
 	 * Default constructor
 	 */
@@ -112,11 +123,24 @@ public class WebRequest implements Request {
 	 */
 	protected int connectionTimeout = 30000;
 
+	/**
+	 * The absolute time in ms by which the request, including time spent
+	 * queued, all retries and all redirects, must be complete or
+	 * {@link WebRequest#NO_DEADLINE}. Per attempt timeouts are shortened to
+	 * the remaining time.
+	 */
+	protected long deadline = NO_DEADLINE;
+
 	/**
 	 * Indicates that redirects should be followed (or not)
 	 */
 	protected boolean followRedirects = true;
 
+	/**
+	 * The maximum number of redirects that are followed
+	 */
+	protected int maxRedirects = 5;
+
 	/**
 	 * Request header
 	 */
@@ -130,7 +154,9 @@ public class WebRequest implements Request {
 
 	/**
 	 * The time the result of this {@link WebRequest} should be cached, default
-	 * is {@link CacheInformation#CACHE_NO} which turns of caching altogether
+	 * is {@link CacheInformation#CACHE_NO} which turns of caching altogether.
+	 * {@link CacheInformation#CACHE_HTTP} leaves the cache time to the
+	 * Cache-Control and Expires header fields of the reply.
 	 */
 	protected long cacheTime = CacheInformation.CACHE_NO;
 
@@ -149,6 +175,39 @@ public class WebRequest implements Request {
 	 */
 	protected int retryInterval = 500;
 
+	/**
+	 * Decides if and when failed attempts are retried, <code>null</code> uses
+	 * {@link FixedIntervalRetryPolicy}, which is based on numberOfRetries and
+	 * retryInterval. The {@link RetryPolicy} is not parcelled.
+	 */
+	protected RetryPolicy retryPolicy;
+
+	/**
+	 * If set to <code>true</code>, the {@link HttpEntity} is gzip compressed
+	 * while it is sent, unless it is smaller than compressionThreshold or
+	 * already encoded
+	 */
+	protected boolean compressRequestBody = false;
+
+	/**
+	 * The minimum size in bytes of a compressed {@link HttpEntity}, entities
+	 * of unknown length are always compressed
+	 */
+	protected int compressionThreshold = 1024;
+
+	/**
+	 * The {@link TrafficClass} that reading the reply is shaped with,
+	 * <code>null</code> derives it from the time criticality of the request
+	 */
+	protected TrafficClass trafficClass;
+
+	/**
+	 * The {@link PRIORITY} the {@link WorkerQueue} runs this request with,
+	 * see {@link HttpService#setPriority(String, PRIORITY)} to change it
+	 * once the request has been queued
+	 */
+	protected PRIORITY priority = PRIORITY.NORMAL;
+
 	/**
 	 * The tempfile
 	 */
@@ -287,6 +346,52 @@ public class WebRequest implements Request {
 		this.connectionTimeout = connectionTimeout;
 	}
 
+	@SuppressWarnings("javadoc")
+	@Override
+	public long getDeadline() {
+		return deadline;
+	}
+
+	@SuppressWarnings("javadoc")
+	public void setDeadline(long deadline) {
+		this.deadline = deadline;
+	}
+
+	/**
+	 * Sets a deadline relative to the current time. The time the
+	 * {@link WebRequest} spends queued counts against the deadline, so this
+	 * should be called when the {@link WebRequest} is created.
+	 * 
+	 * @param totalTimeout
+	 *            the time in ms the {@link WebRequest} may take in total
+	 */
+	public void setTotalTimeout(long totalTimeout) {
+		this.deadline = System.currentTimeMillis() + totalTimeout;
+	}
+
+	/**
+	 * Returns the time left until the deadline
+	 * 
+	 * @return the remaining time in ms, 0 if the deadline has passed or
+	 *         {@link Long#MAX_VALUE} if there is no deadline
+	 */
+	public long getRemainingTime() {
+		if (deadline == NO_DEADLINE) {
+			return Long.MAX_VALUE;
+		}
+		return Math.max(0, deadline - System.currentTimeMillis());
+	}
+
+	/**
+	 * Checks if the deadline has passed
+	 * 
+	 * @return <code>true</code> if the {@link WebRequest} has a deadline that
+	 *         has passed
+	 */
+	public boolean isDeadlineExceeded() {
+		return getRemainingTime() == 0;
+	}
+
 	@SuppressWarnings("javadoc")
 	public boolean isFollowRedirects() {
 		return followRedirects;
@@ -297,6 +402,16 @@ public class WebRequest implements Request {
 		this.followRedirects = followRedirects;
 	}
 
+	@SuppressWarnings("javadoc")
+	public int getMaxRedirects() {
+		return maxRedirects;
+	}
+
+	@SuppressWarnings("javadoc")
+	public void setMaxRedirects(int maxRedirects) {
+		this.maxRedirects = maxRedirects;
+	}
+
 	@SuppressWarnings("javadoc")
 	public Map<String, String> getHeader() {
 		return header;
@@ -370,6 +485,67 @@ public class WebRequest implements Request {
 		this.retryInterval = retryInterval;
 	}
 
+	@SuppressWarnings("javadoc")
+	public RetryPolicy getRetryPolicy() {
+		return retryPolicy;
+	}
+
+	@SuppressWarnings("javadoc")
+	public void setRetryPolicy(RetryPolicy retryPolicy) {
+		this.retryPolicy = retryPolicy;
+	}
+
+	@SuppressWarnings("javadoc")
+	public boolean isCompressRequestBody() {
+		return compressRequestBody;
+	}
+
+	@SuppressWarnings("javadoc")
+	public void setCompressRequestBody(boolean compressRequestBody) {
+		this.compressRequestBody = compressRequestBody;
+	}
+
+	@SuppressWarnings("javadoc")
+	public int getCompressionThreshold() {
+		return compressionThreshold;
+	}
+
+	@SuppressWarnings("javadoc")
+	public void setCompressionThreshold(int compressionThreshold) {
+		this.compressionThreshold = compressionThreshold;
+	}
+
+	/**
+	 * Returns the {@link TrafficClass} that reading the reply is shaped with.
+	 * Unless set explicitly, time critical requests are
+	 * {@link TrafficClass#FOREGROUND}, all others
+	 * {@link TrafficClass#BACKGROUND}.
+	 * 
+	 * @return the {@link TrafficClass} of this request
+	 */
+	public TrafficClass getTrafficClass() {
+		if (trafficClass != null) {
+			return trafficClass;
+		}
+		return timeCritical ? TrafficClass.FOREGROUND : TrafficClass.BACKGROUND;
+	}
+
+	@SuppressWarnings("javadoc")
+	public void setTrafficClass(TrafficClass trafficClass) {
+		this.trafficClass = trafficClass;
+	}
+
+	@SuppressWarnings("javadoc")
+	@Override
+	public PRIORITY getPriority() {
+		return priority;
+	}
+
+	@SuppressWarnings("javadoc")
+	public void setPriority(PRIORITY priority) {
+		this.priority = priority;
+	}
+
 	@SuppressWarnings("javadoc")
 	public Pair<Boolean, TempFile> getTmpFile() {
 		return tmpFile;
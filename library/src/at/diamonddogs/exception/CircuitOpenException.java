@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2012, 2013 the diamond:dogs|group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.diamonddogs.exception;
+
+import at.diamonddogs.net.CircuitBreaker;
+
+/**
+ * Passed to the listener of a {@link at.diamonddogs.net.WebClient} if a
+ * request has not been made because the {@link CircuitBreaker} of its host is
+ * open
+ */
+public class CircuitOpenException extends WebClientException {
+
+	private static final long serialVersionUID = -4183726208462750781L;
+
+	private final String host;
+
+	/**
+	 * @param host
+	 *            the host whose circuit is open
+	 */
+	public CircuitOpenException(String host) {
+		super("Circuit open for host: " + host);
+		this.host = host;
+	}
+
+	@SuppressWarnings("javadoc")
+	public String getHost() {
+		return host;
+	}
+}
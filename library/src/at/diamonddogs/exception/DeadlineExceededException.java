@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2012, 2013 the diamond:dogs|group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.diamonddogs.exception;
+
+import at.diamonddogs.data.dataobjects.WebRequest;
+
+/**
+ * Passed to the listener of a {@link at.diamonddogs.net.WebClient} if the
+ * deadline of a {@link WebRequest} passed before it could be completed
+ */
+public class DeadlineExceededException extends WebClientException {
+
+	private static final long serialVersionUID = 7310428153094618237L;
+
+	private final long deadline;
+
+	/**
+	 * @param deadline
+	 *            the deadline that has passed, see
+	 *            {@link WebRequest#getDeadline()}
+	 * @param throwable
+	 *            the failure of the last attempt, may be <code>null</code>
+	 */
+	public DeadlineExceededException(long deadline, Throwable throwable) {
+		super("Deadline exceeded by " + (System.currentTimeMillis() - deadline) + "ms", throwable);
+		this.deadline = deadline;
+	}
+
+	@SuppressWarnings("javadoc")
+	public long getDeadline() {
+		return deadline;
+	}
+}
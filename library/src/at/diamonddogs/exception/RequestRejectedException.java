@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2012, 2013 the diamond:dogs|group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.diamonddogs.exception;
+
+import at.diamonddogs.data.dataobjects.WebRequest;
+
+/**
+ * Passed to the processor of a {@link WebRequest} if the
+ * {@link at.diamonddogs.service.net.HttpService} did not admit the
+ * {@link WebRequest} because its admission queue was full
+ */
+public class RequestRejectedException extends ServiceException {
+
+	private static final long serialVersionUID = -2650918364237740519L;
+
+	private final int queued;
+
+	/**
+	 * @param queued
+	 *            the number of {@link WebRequest}s that were waiting for
+	 *            admission
+	 */
+	public RequestRejectedException(int queued) {
+		super("Admission queue full, " + queued + " requests waiting");
+		this.queued = queued;
+	}
+
+	@SuppressWarnings("javadoc")
+	public int getQueued() {
+		return queued;
+	}
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2012, 2013 the diamond:dogs|group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.diamonddogs.net;
+
+import java.util.concurrent.Future;
+
+import at.diamonddogs.data.adapter.ReplyAdapter;
+
+/**
+ * Implemented by {@link WebClient}s that do not block a thread while waiting
+ * for the network. Such clients must not be run on a worker thread, use
+ * {@link AsyncWebClient#submit()} instead.
+ */
+public interface AsyncWebClient {
+	/**
+	 * Starts the request without blocking the calling thread
+	 *
+	 * @return a {@link Future} that yields the same {@link ReplyAdapter} that
+	 *         is passed to the listener of the {@link WebClient}
+	 */
+	public Future<ReplyAdapter> submit();
+}
@@ -0,0 +1,327 @@
+/*
+ * Copyright (C) 2012, 2013 the diamond:dogs|group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.diamonddogs.net;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.EnumMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import at.diamonddogs.data.dataobjects.NonTimeCriticalTask.PRIORITY;
+import at.diamonddogs.data.dataobjects.WebRequest;
+
+/**
+ * Shapes the bandwidth used to read replies using a token bucket per
+ * {@link TrafficClass}. Foreground transfers that exceed their own budget
+ * borrow from the budget of background transfers, so that large background
+ * downloads yield to interactive requests instead of competing with them.
+ *
+ * Both budgets are unlimited by default. {@link WebClientNio} does not shape
+ * its replies, {@link WebClientFactory} therefore only uses it for
+ * {@link WebRequest}s whose {@link TrafficClass} is unlimited. Transfers on
+ * {@link WebClientNio} that started before a budget was set stay unshaped and
+ * are not counted by the {@link BandwidthStatistics}.
+ */
+public class BandwidthLimiter {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(BandwidthLimiter.class.getSimpleName());
+
+	/**
+	 * Disables shaping of a {@link TrafficClass}
+	 */
+	public static final long UNLIMITED = 0;
+
+	/**
+	 * Shaped streams read at most this fraction of a second's budget at once,
+	 * which keeps waits short and cancellation responsive
+	 */
+	private static final int CHUNKS_PER_SECOND = 10;
+
+	/**
+	 * The smallest number of bytes read at once from a shaped stream
+	 */
+	private static final int MIN_CHUNK_SIZE = 512;
+
+	/**
+	 * The longest time in ms a reader waits before checking the budget again
+	 */
+	private static final long MAX_WAIT = 100;
+
+	/**
+	 * The traffic class of a {@link WebRequest}
+	 */
+	public enum TrafficClass {
+		/** requests the user is waiting for */
+		FOREGROUND,
+		/** prefetches, revalidations and non time critical requests */
+		BACKGROUND
+	}
+
+	private static BandwidthLimiter INSTANCE;
+
+	private final Map<TrafficClass, Bucket> buckets = new EnumMap<TrafficClass, Bucket>(TrafficClass.class);
+
+	private final Map<PRIORITY, TrafficClass> priorityClasses = new EnumMap<PRIORITY, TrafficClass>(PRIORITY.class);
+
+	private long foregroundBytes;
+
+	private long backgroundBytes;
+
+	private long borrowedBytes;
+
+	private long throttledTime;
+
+	private BandwidthLimiter() {
+		for (TrafficClass trafficClass : TrafficClass.values()) {
+			buckets.put(trafficClass, new Bucket());
+		}
+		for (PRIORITY priority : PRIORITY.values()) {
+			priorityClasses.put(priority, TrafficClass.BACKGROUND);
+		}
+	}
+
+	/**
+	 * Obtains the {@link BandwidthLimiter} singleton instance
+	 *
+	 * @return an instance of {@link BandwidthLimiter}
+	 */
+	public static synchronized BandwidthLimiter getInstance() {
+		if (INSTANCE == null) {
+			INSTANCE = new BandwidthLimiter();
+		}
+		return INSTANCE;
+	}
+
+	/**
+	 * Sets the budget of a {@link TrafficClass}, takes effect immediately,
+	 * also for transfers that are already running
+	 *
+	 * @param trafficClass
+	 *            the {@link TrafficClass}
+	 * @param bytesPerSecond
+	 *            the budget in bytes per second or {@link #UNLIMITED}
+	 */
+	public synchronized void setRate(TrafficClass trafficClass, long bytesPerSecond) {
+		buckets.get(trafficClass).setRate(Math.max(UNLIMITED, bytesPerSecond), System.currentTimeMillis());
+		LOGGER.info("Bandwidth of " + trafficClass + ": " + (bytesPerSecond <= UNLIMITED ? "unlimited" : bytesPerSecond + " bytes/s"));
+		notifyAll();
+	}
+
+	/**
+	 * Returns the budget of a {@link TrafficClass}
+	 *
+	 * @param trafficClass
+	 *            the {@link TrafficClass}
+	 * @return the budget in bytes per second or {@link #UNLIMITED}
+	 */
+	public synchronized long getRate(TrafficClass trafficClass) {
+		return buckets.get(trafficClass).rate;
+	}
+
+	/**
+	 * Assigns the non time critical requests of a {@link PRIORITY} to a
+	 * {@link TrafficClass}. All priorities are assigned to
+	 * {@link TrafficClass#BACKGROUND} by default.
+	 *
+	 * @param priority
+	 *            the {@link PRIORITY}
+	 * @param trafficClass
+	 *            the {@link TrafficClass}
+	 */
+	public synchronized void setTrafficClass(PRIORITY priority, TrafficClass trafficClass) {
+		priorityClasses.put(priority, trafficClass);
+	}
+
+	/**
+	 * Returns the {@link TrafficClass} of non time critical requests of a
+	 * {@link PRIORITY}
+	 *
+	 * @param priority
+	 *            the {@link PRIORITY}
+	 * @return the {@link TrafficClass}
+	 */
+	public synchronized TrafficClass getTrafficClass(PRIORITY priority) {
+		return priorityClasses.get(priority);
+	}
+
+	/**
+	 * Wraps a reply stream, so that reading from it is shaped according to
+	 * the budget of a {@link TrafficClass}
+	 *
+	 * @param in
+	 *            the stream read from the network
+	 * @param trafficClass
+	 *            the {@link TrafficClass} of the transfer
+	 * @return the shaped stream
+	 */
+	public InputStream shape(InputStream in, TrafficClass trafficClass) {
+		return new ShapedInputStream(in, trafficClass);
+	}
+
+	private synchronized int getChunkSize(TrafficClass trafficClass, int length) {
+		long rate = buckets.get(trafficClass).rate;
+		if (rate == UNLIMITED) {
+			return length;
+		}
+		return (int) Math.min(length, Math.max(MIN_CHUNK_SIZE, rate / CHUNKS_PER_SECOND));
+	}
+
+	/**
+	 * Takes bytes that have been read from the budget of a
+	 * {@link TrafficClass}, waits until the budget allows them
+	 *
+	 * @param trafficClass
+	 *            the {@link TrafficClass} of the transfer
+	 * @param bytes
+	 *            the number of bytes read
+	 * @throws InterruptedIOException
+	 *             if the thread has been interrupted while waiting
+	 */
+	private synchronized void acquire(TrafficClass trafficClass, int bytes) throws InterruptedIOException {
+		Bucket own = buckets.get(trafficClass);
+		Bucket background = buckets.get(TrafficClass.BACKGROUND);
+		long start = System.currentTimeMillis();
+		long remaining = bytes;
+		try {
+			while (true) {
+				long now = System.currentTimeMillis();
+				if (own.rate == UNLIMITED) {
+					break;
+				}
+				own.refill(now);
+				remaining -= own.take(remaining);
+				if (remaining > 0 && own != background && background.rate != UNLIMITED) {
+					background.refill(now);
+					long borrowed = background.take(remaining);
+					remaining -= borrowed;
+					borrowedBytes += borrowed;
+				}
+				if (remaining <= 0) {
+					break;
+				}
+				wait(Math.min(MAX_WAIT, Math.max(1, remaining * 1000 / own.rate)));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while shaping bandwidth");
+		} finally {
+			throttledTime += System.currentTimeMillis() - start;
+			if (trafficClass == TrafficClass.FOREGROUND) {
+				foregroundBytes += bytes;
+			} else {
+				backgroundBytes += bytes;
+			}
+		}
+	}
+
+	/**
+	 * Returns a snapshot of the limiter's statistics
+	 *
+	 * @return the current {@link BandwidthStatistics}
+	 */
+	public synchronized BandwidthStatistics getStatistics() {
+		BandwidthStatistics statistics = new BandwidthStatistics();
+		statistics.foregroundBytes = foregroundBytes;
+		statistics.backgroundBytes = backgroundBytes;
+		statistics.borrowedBytes = borrowedBytes;
+		statistics.throttledTime = throttledTime;
+		return statistics;
+	}
+
+	/**
+	 * A token bucket that holds at most one second worth of budget
+	 */
+	private static final class Bucket {
+		private long rate = UNLIMITED;
+		private long tokens;
+		private long lastRefill;
+
+		private void setRate(long rate, long now) {
+			this.rate = rate;
+			this.tokens = Math.min(tokens, rate);
+			this.lastRefill = now;
+		}
+
+		private void refill(long now) {
+			long added = (now - lastRefill) * rate / 1000;
+			if (added > 0) {
+				tokens = Math.min(rate, tokens + added);
+				lastRefill = now;
+			}
+		}
+
+		private long take(long bytes) {
+			long taken = Math.min(bytes, tokens);
+			tokens -= taken;
+			return taken;
+		}
+	}
+
+	/**
+	 * Snapshot of limiter statistics
+	 */
+	public static final class BandwidthStatistics {
+		/** bytes read by foreground transfers */
+		public long foregroundBytes;
+		/** bytes read by background transfers */
+		public long backgroundBytes;
+		/** bytes foreground transfers borrowed from the background budget */
+		public long borrowedBytes;
+		/** time in ms readers spent waiting for budget */
+		public long throttledTime;
+
+		@Override
+		public String toString() {
+			return "BandwidthStatistics [foregroundBytes=" + foregroundBytes + ", backgroundBytes=" + backgroundBytes + ", borrowedBytes="
+					+ borrowedBytes + ", throttledTime=" + throttledTime + "]";
+		}
+	}
+
+	/**
+	 * Charges all bytes read to the budget of its {@link TrafficClass}
+	 */
+	private final class ShapedInputStream extends FilterInputStream {
+		private final TrafficClass trafficClass;
+
+		private ShapedInputStream(InputStream in, TrafficClass trafficClass) {
+			super(in);
+			this.trafficClass = trafficClass;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b != -1) {
+				acquire(trafficClass, 1);
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			int bytesRead = super.read(buffer, offset, getChunkSize(trafficClass, length));
+			if (bytesRead > 0) {
+				acquire(trafficClass, bytesRead);
+			}
+			return bytesRead;
+		}
+	}
+}
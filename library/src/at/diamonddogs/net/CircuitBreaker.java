@@ -0,0 +1,364 @@
+/*
+ * Copyright (C) 2012, 2013 the diamond:dogs|group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.diamonddogs.net;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import at.diamonddogs.data.adapter.ReplyAdapter;
+import at.diamonddogs.data.adapter.ReplyAdapter.Status;
+import at.diamonddogs.data.dataobjects.WebReply;
+
+/**
+ * Keeps track of the health of every host and stops sending requests to hosts
+ * that are down, so that they do not occupy worker threads until their
+ * connect timeout has elapsed.
+ * 
+ * A circuit is opened once the error rate of the last requests to a host
+ * exceeds a threshold or once a number of consecutive requests timed out.
+ * While open, all requests to the host fail immediately with
+ * {@link Status#CIRCUIT_OPEN}. After the open duration has elapsed, the
+ * circuit becomes half open and a single probe request is let through. The
+ * circuit is closed if the probe succeeds and opened again otherwise.
+ */
+public class CircuitBreaker {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(CircuitBreaker.class.getSimpleName());
+
+	/**
+	 * The state of the circuit of a host
+	 */
+	public enum State {
+		/**
+		 * requests are made
+		 */
+		CLOSED,
+		/**
+		 * requests fail immediately
+		 */
+		OPEN,
+		/**
+		 * a single probe request is made, all other requests fail immediately
+		 */
+		HALF_OPEN,
+	}
+
+	private static final int DEFAULT_WINDOW_SIZE = 20;
+
+	private static final int DEFAULT_MINIMUM_REQUESTS = 10;
+
+	private static final float DEFAULT_FAILURE_RATE_THRESHOLD = 0.5f;
+
+	private static final int DEFAULT_CONSECUTIVE_TIMEOUT_THRESHOLD = 3;
+
+	private static final long DEFAULT_OPEN_DURATION = 30000;
+
+	private static CircuitBreaker INSTANCE;
+
+	private final Map<String, HostCircuit> circuits = new HashMap<String, HostCircuit>();
+
+	private boolean enabled = true;
+
+	/**
+	 * The number of most recent requests the error rate is computed from
+	 */
+	private int windowSize = DEFAULT_WINDOW_SIZE;
+
+	/**
+	 * The error rate is only evaluated once this many requests have been made
+	 */
+	private int minimumRequests = DEFAULT_MINIMUM_REQUESTS;
+
+	private float failureRateThreshold = DEFAULT_FAILURE_RATE_THRESHOLD;
+
+	private int consecutiveTimeoutThreshold = DEFAULT_CONSECUTIVE_TIMEOUT_THRESHOLD;
+
+	/**
+	 * The time in ms a circuit stays open before a probe request is made
+	 */
+	private long openDuration = DEFAULT_OPEN_DURATION;
+
+	private CircuitBreaker() {
+	}
+
+	/**
+	 * Returns the instance of the {@link CircuitBreaker}
+	 * 
+	 * @return the {@link CircuitBreaker}
+	 */
+	public static synchronized CircuitBreaker getInstance() {
+		if (INSTANCE == null) {
+			INSTANCE = new CircuitBreaker();
+		}
+		return INSTANCE;
+	}
+
+	/**
+	 * Must be called before a request to a host is made
+	 * 
+	 * @param host
+	 *            the host
+	 * @return <code>true</code> if the request may be made, <code>false</code>
+	 *         if it must fail immediately
+	 */
+	public synchronized boolean allowRequest(String host) {
+		if (!enabled) {
+			return true;
+		}
+		HostCircuit circuit = circuits.get(host);
+		if (circuit == null) {
+			return true;
+		}
+		switch (circuit.state) {
+		case OPEN:
+			if (System.currentTimeMillis() - circuit.openedAt < openDuration) {
+				return false;
+			}
+			transition(host, circuit, State.HALF_OPEN);
+			circuit.probeInFlight = true;
+			return true;
+		case HALF_OPEN:
+			if (circuit.probeInFlight) {
+				return false;
+			}
+			circuit.probeInFlight = true;
+			return true;
+		default:
+			return true;
+		}
+	}
+
+	/**
+	 * Must be called once a request that has been allowed by
+	 * {@link CircuitBreaker#allowRequest(String)} has finished
+	 * 
+	 * @param host
+	 *            the host
+	 * @param listenerReply
+	 *            the result of the request
+	 * @param cancelled
+	 *            <code>true</code> if the request has been cancelled, its
+	 *            result does not count
+	 */
+	public synchronized void onResult(String host, ReplyAdapter listenerReply, boolean cancelled) {
+		if (!enabled) {
+			return;
+		}
+		HostCircuit circuit = circuits.get(host);
+		if (circuit == null) {
+			circuit = new HostCircuit(windowSize);
+			circuits.put(host, circuit);
+		}
+		if (cancelled) {
+			circuit.probeInFlight = false;
+			return;
+		}
+		boolean timeout = isTimeout(listenerReply);
+		boolean failed = timeout || isFailure(listenerReply);
+		circuit.record(failed);
+		circuit.consecutiveTimeouts = timeout ? circuit.consecutiveTimeouts + 1 : 0;
+
+		if (circuit.state == State.HALF_OPEN) {
+			circuit.probeInFlight = false;
+			if (failed) {
+				open(host, circuit);
+			} else {
+				circuit.reset();
+				transition(host, circuit, State.CLOSED);
+			}
+		} else if (circuit.state == State.CLOSED) {
+			if (circuit.consecutiveTimeouts >= consecutiveTimeoutThreshold) {
+				open(host, circuit);
+			} else if (circuit.count >= minimumRequests && circuit.failures >= failureRateThreshold * circuit.count) {
+				open(host, circuit);
+			}
+		}
+	}
+
+	private boolean isTimeout(ReplyAdapter listenerReply) {
+		// SocketTimeoutException and ConnectTimeoutException
+		return listenerReply.getStatus() == Status.FAILED && listenerReply.getThrowable() instanceof InterruptedIOException;
+	}
+
+	private boolean isFailure(ReplyAdapter listenerReply) {
+		if (listenerReply.getStatus() == Status.FAILED) {
+			return listenerReply.getThrowable() instanceof IOException;
+		}
+		WebReply reply = (WebReply) listenerReply.getReply();
+		return reply != null && reply.getHttpStatusCode() >= 500;
+	}
+
+	private void open(String host, HostCircuit circuit) {
+		circuit.openedAt = System.currentTimeMillis();
+		transition(host, circuit, State.OPEN);
+	}
+
+	private void transition(String host, HostCircuit circuit, State state) {
+		if (circuit.state != state) {
+			LOGGER.info("Circuit of " + host + ": " + circuit.state + " -> " + state + " (" + circuit.failures + "/" + circuit.count
+					+ " failed, " + circuit.consecutiveTimeouts + " consecutive timeouts)");
+			circuit.state = state;
+		}
+	}
+
+	/**
+	 * Returns the state of the circuit of a host
+	 * 
+	 * @param host
+	 *            the host
+	 * @return the {@link State}
+	 */
+	public synchronized State getState(String host) {
+		HostCircuit circuit = circuits.get(host);
+		return circuit == null ? State.CLOSED : circuit.state;
+	}
+
+	/**
+	 * Returns a snapshot of the states of all hosts that have been contacted
+	 * 
+	 * @return a map of hosts and the {@link State}s of their circuits
+	 */
+	public synchronized Map<String, State> getStates() {
+		Map<String, State> states = new HashMap<String, State>();
+		for (Map.Entry<String, HostCircuit> entry : circuits.entrySet()) {
+			states.put(entry.getKey(), entry.getValue().state);
+		}
+		return states;
+	}
+
+	/**
+	 * Closes all circuits and forgets all recorded requests
+	 */
+	public synchronized void reset() {
+		circuits.clear();
+	}
+
+	@SuppressWarnings("javadoc")
+	public synchronized boolean isEnabled() {
+		return enabled;
+	}
+
+	@SuppressWarnings("javadoc")
+	public synchronized void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+		if (!enabled) {
+			circuits.clear();
+		}
+	}
+
+	@SuppressWarnings("javadoc")
+	public synchronized int getWindowSize() {
+		return windowSize;
+	}
+
+	/**
+	 * Sets the number of most recent requests the error rate is computed from,
+	 * resets all circuits
+	 * 
+	 * @param windowSize
+	 *            the number of requests
+	 */
+	public synchronized void setWindowSize(int windowSize) {
+		this.windowSize = windowSize;
+		circuits.clear();
+	}
+
+	@SuppressWarnings("javadoc")
+	public synchronized int getMinimumRequests() {
+		return minimumRequests;
+	}
+
+	@SuppressWarnings("javadoc")
+	public synchronized void setMinimumRequests(int minimumRequests) {
+		this.minimumRequests = minimumRequests;
+	}
+
+	@SuppressWarnings("javadoc")
+	public synchronized float getFailureRateThreshold() {
+		return failureRateThreshold;
+	}
+
+	@SuppressWarnings("javadoc")
+	public synchronized void setFailureRateThreshold(float failureRateThreshold) {
+		this.failureRateThreshold = failureRateThreshold;
+	}
+
+	@SuppressWarnings("javadoc")
+	public synchronized int getConsecutiveTimeoutThreshold() {
+		return consecutiveTimeoutThreshold;
+	}
+
+	@SuppressWarnings("javadoc")
+	public synchronized void setConsecutiveTimeoutThreshold(int consecutiveTimeoutThreshold) {
+		this.consecutiveTimeoutThreshold = consecutiveTimeoutThreshold;
+	}
+
+	@SuppressWarnings("javadoc")
+	public synchronized long getOpenDuration() {
+		return openDuration;
+	}
+
+	@SuppressWarnings("javadoc")
+	public synchronized void setOpenDuration(long openDuration) {
+		this.openDuration = openDuration;
+	}
+
+	/**
+	 * The circuit of a single host, records the outcome of the most recent
+	 * requests in a ring buffer
+	 */
+	private static final class HostCircuit {
+		private final boolean[] outcomes;
+		private int next;
+		private int count;
+		private int failures;
+		private int consecutiveTimeouts;
+		private State state = State.CLOSED;
+		private long openedAt;
+		private boolean probeInFlight;
+
+		private HostCircuit(int windowSize) {
+			outcomes = new boolean[windowSize];
+		}
+
+		private void record(boolean failed) {
+			if (count == outcomes.length) {
+				if (outcomes[next]) {
+					failures--;
+				}
+			} else {
+				count++;
+			}
+			outcomes[next] = failed;
+			if (failed) {
+				failures++;
+			}
+			next = (next + 1) % outcomes.length;
+		}
+
+		private void reset() {
+			next = 0;
+			count = 0;
+			failures = 0;
+			consecutiveTimeouts = 0;
+		}
+	}
+}
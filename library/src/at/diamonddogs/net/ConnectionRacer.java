@@ -0,0 +1,371 @@
+/*
+ * Copyright (C) 2012, 2013 the diamond:dogs|group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.diamonddogs.net;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Connects to hosts that resolve to several addresses by racing connection
+ * attempts ("happy eyeballs"). The addresses are ordered so that IPv6 and IPv4
+ * alternate, an attempt to the next address is started if the previous one
+ * did not succeed within a short delay, the first socket that connects is
+ * used and all other attempts are cancelled. A broken path to one address
+ * family therefore only costs the attempt delay instead of the whole
+ * connection timeout.
+ *
+ * The address family that won the last race is remembered per network and
+ * tried first on subsequent connections.
+ */
+public class ConnectionRacer {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(ConnectionRacer.class.getSimpleName());
+
+	/**
+	 * The default time in ms to wait for an attempt before the next address is
+	 * tried
+	 */
+	public static final long DEFAULT_ATTEMPT_DELAY = 250;
+
+	/**
+	 * The network used if the {@link at.diamonddogs.util.ConnectivityMonitor}
+	 * has not been started
+	 */
+	private static final String DEFAULT_NETWORK = "default";
+
+	/**
+	 * The maximum number of networks whose preferred address family is
+	 * remembered
+	 */
+	private static final int MAX_NETWORKS = 16;
+
+	private static ConnectionRacer INSTANCE;
+
+	/**
+	 * Maps networks to <code>true</code> if IPv6 won the last race on that
+	 * network, <code>false</code> if IPv4 won
+	 */
+	private final Map<String, Boolean> preferIpv6 = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+			return size() > MAX_NETWORKS;
+		}
+	};
+
+	private String network = DEFAULT_NETWORK;
+
+	private long attemptDelay = DEFAULT_ATTEMPT_DELAY;
+
+	/**
+	 * Runs blocking connection attempts, created on demand
+	 */
+	private ThreadPoolExecutor connector;
+
+	private ConnectionRacer() {
+	}
+
+	/**
+	 * Obtains the {@link ConnectionRacer} singleton instance
+	 *
+	 * @return an instance of {@link ConnectionRacer}
+	 */
+	public static synchronized ConnectionRacer getInstance() {
+		if (INSTANCE == null) {
+			INSTANCE = new ConnectionRacer();
+		}
+		return INSTANCE;
+	}
+
+	/**
+	 * Sets the network that connections are currently made on, called by
+	 * {@link at.diamonddogs.util.ConnectivityMonitor} if the network changes
+	 *
+	 * @param network
+	 *            a key identifying the network
+	 */
+	public synchronized void setNetwork(String network) {
+		this.network = network == null ? DEFAULT_NETWORK : network;
+	}
+
+	/**
+	 * Sets the time to wait for an attempt before the next address is tried
+	 *
+	 * @param attemptDelay
+	 *            the delay in ms
+	 */
+	public synchronized void setAttemptDelay(long attemptDelay) {
+		this.attemptDelay = attemptDelay;
+	}
+
+	@SuppressWarnings("javadoc")
+	public synchronized long getAttemptDelay() {
+		return attemptDelay;
+	}
+
+	/**
+	 * Orders addresses in the order they will be tried. The address families
+	 * alternate, starting with the family that won the last race on the
+	 * current network or, if there has been no race yet, with the family of
+	 * the first address returned by the resolver.
+	 *
+	 * @param addresses
+	 *            the addresses of a host
+	 * @return the ordered addresses
+	 */
+	public InetAddress[] sortAddresses(InetAddress[] addresses) {
+		if (addresses.length < 2) {
+			return addresses;
+		}
+		Boolean preferred;
+		synchronized (this) {
+			preferred = preferIpv6.get(network);
+		}
+		boolean ipv6First = preferred == null ? addresses[0] instanceof Inet6Address : preferred.booleanValue();
+		List<InetAddress> first = new ArrayList<InetAddress>(addresses.length);
+		List<InetAddress> second = new ArrayList<InetAddress>(addresses.length);
+		for (InetAddress address : addresses) {
+			if ((address instanceof Inet6Address) == ipv6First) {
+				first.add(address);
+			} else {
+				second.add(address);
+			}
+		}
+		InetAddress[] sorted = new InetAddress[addresses.length];
+		int i = 0;
+		for (int j = 0; j < Math.max(first.size(), second.size()); j++) {
+			if (j < first.size()) {
+				sorted[i++] = first.get(j);
+			}
+			if (j < second.size()) {
+				sorted[i++] = second.get(j);
+			}
+		}
+		return sorted;
+	}
+
+	/**
+	 * Checks whether a race included attempts to both address families, only
+	 * such races say which family works better on the current network and
+	 * should be passed to {@link ConnectionRacer#onConnected(InetAddress)}
+	 *
+	 * @param addresses
+	 *            the addresses in the order they have been tried
+	 * @param attempted
+	 *            the number of addresses that have been tried
+	 * @return <code>true</code> if both address families have been tried
+	 */
+	public static boolean isMixed(InetAddress[] addresses, int attempted) {
+		boolean ipv6 = false;
+		boolean ipv4 = false;
+		for (int i = 0; i < attempted && i < addresses.length; i++) {
+			if (addresses[i] instanceof Inet6Address) {
+				ipv6 = true;
+			} else {
+				ipv4 = true;
+			}
+		}
+		return ipv6 && ipv4;
+	}
+
+	/**
+	 * Remembers the address family that won a race on the current network
+	 *
+	 * @param address
+	 *            the address a connection has been established to
+	 */
+	public synchronized void onConnected(InetAddress address) {
+		preferIpv6.put(network, address instanceof Inet6Address);
+	}
+
+	/**
+	 * Connects a blocking socket to one of the addresses of a host
+	 *
+	 * @param addresses
+	 *            the addresses of the host
+	 * @param port
+	 *            the port to connect to
+	 * @param localAddress
+	 *            the local address to bind to, may be <code>null</code>
+	 * @param localPort
+	 *            the local port to bind to, 0 for any port
+	 * @param timeout
+	 *            the connection timeout in ms, 0 means no timeout
+	 * @return the connected {@link Socket}
+	 * @throws IOException
+	 *             if no address could be connected to
+	 */
+	public Socket connect(InetAddress[] addresses, int port, InetAddress localAddress, int localPort, int timeout) throws IOException {
+		InetAddress[] sorted = sortAddresses(addresses);
+		InetSocketAddress local = localAddress != null || localPort > 0 ? new InetSocketAddress(localAddress, Math.max(0, localPort))
+				: null;
+		if (sorted.length == 1 || localPort > 0) {
+			// a fixed local port cannot be bound by several sockets
+			Socket socket = new Socket();
+			try {
+				if (local != null) {
+					socket.bind(local);
+				}
+				socket.connect(new InetSocketAddress(sorted[0], port), timeout);
+			} catch (IOException e) {
+				closeQuietly(socket);
+				throw e;
+			}
+			// nothing has been raced, the preference stays as it is
+			return socket;
+		}
+		return race(sorted, port, local, timeout);
+	}
+
+	private Socket race(InetAddress[] addresses, int port, InetSocketAddress local, int timeout) throws IOException {
+		long start = System.currentTimeMillis();
+		long deadline = timeout > 0 ? start + timeout : Long.MAX_VALUE;
+		long delay = getAttemptDelay();
+		BlockingQueue<Attempt> results = new LinkedBlockingQueue<Attempt>();
+		List<Attempt> attempts = new ArrayList<Attempt>(addresses.length);
+		Attempt winner = null;
+		IOException failure = null;
+		int next = 0;
+		int pending = 0;
+		long nextAttempt = start;
+		try {
+			while (true) {
+				long now = System.currentTimeMillis();
+				if (next < addresses.length && (now >= nextAttempt || pending == 0)) {
+					int attemptTimeout = deadline == Long.MAX_VALUE ? 0 : (int) Math.max(1, deadline - now);
+					Attempt attempt = new Attempt(new InetSocketAddress(addresses[next++], port), local, attemptTimeout, results);
+					attempts.add(attempt);
+					getConnector().execute(attempt);
+					pending++;
+					nextAttempt = now + delay;
+					continue;
+				}
+				if (pending == 0) {
+					throw failure;
+				}
+				if (now >= deadline) {
+					throw new SocketTimeoutException("connect timed out");
+				}
+				long wait = Math.min(deadline, next < addresses.length ? nextAttempt : Long.MAX_VALUE) - now;
+				Attempt result = results.poll(wait, TimeUnit.MILLISECONDS);
+				if (result == null) {
+					continue;
+				}
+				pending--;
+				if (result.error == null) {
+					winner = result;
+					break;
+				}
+				failure = result.error;
+				LOGGER.debug("Could not connect to " + result.address + ": " + failure);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("connect interrupted");
+		} finally {
+			for (Attempt attempt : attempts) {
+				if (attempt != winner) {
+					closeQuietly(attempt.socket);
+				}
+			}
+		}
+		if (isMixed(addresses, next)) {
+			onConnected(winner.address.getAddress());
+		}
+		if (winner != attempts.get(0)) {
+			LOGGER.debug("Connected to " + winner.address + " after " + (System.currentTimeMillis() - start) + "ms, "
+					+ addresses[0] + " lost the race");
+		}
+		return winner.socket;
+	}
+
+	private synchronized ThreadPoolExecutor getConnector() {
+		if (connector == null) {
+			connector = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 30, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+					new ThreadFactory() {
+						private final AtomicInteger count = new AtomicInteger();
+
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "ConnectionRacer-" + count.incrementAndGet());
+							t.setDaemon(true);
+							return t;
+						}
+					});
+		}
+		return connector;
+	}
+
+	private static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			LOGGER.debug("Could not close socket", e);
+		}
+	}
+
+	/**
+	 * A single blocking connection attempt, cancelled by closing its socket
+	 */
+	private static final class Attempt implements Runnable {
+		private final InetSocketAddress address;
+		private final InetSocketAddress local;
+		private final int timeout;
+		private final BlockingQueue<Attempt> results;
+		private final Socket socket = new Socket();
+		private IOException error;
+
+		private Attempt(InetSocketAddress address, InetSocketAddress local, int timeout, BlockingQueue<Attempt> results) {
+			this.address = address;
+			this.local = local;
+			this.timeout = timeout;
+			this.results = results;
+		}
+
+		@Override
+		public void run() {
+			try {
+				if (local != null) {
+					socket.bind(local);
+				}
+				socket.connect(address, timeout);
+			} catch (IOException e) {
+				error = e;
+			}
+			results.add(this);
+		}
+	}
+}
@@ -0,0 +1,360 @@
+/*
+ * Copyright (C) 2012, 2013 the diamond:dogs|group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.diamonddogs.net;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A process wide DNS cache used by all {@link WebClient}s that open their own
+ * sockets. Successful lookups are cached for a configurable time to live,
+ * failed lookups for a shorter one. Entries that are used frequently are
+ * resolved again in the background shortly before they expire, so that
+ * requests to popular hosts never wait for the resolver.
+ * 
+ * The platform resolver does not expose the TTL of DNS records, the TTLs of
+ * this cache should therefore be chosen to match the records of the hosts an
+ * app talks to.
+ */
+public class DnsCache {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(DnsCache.class.getSimpleName());
+
+	/**
+	 * The default time in ms a successful lookup is cached
+	 */
+	public static final long DEFAULT_TTL = 60000;
+
+	/**
+	 * The default time in ms a failed lookup is cached
+	 */
+	public static final long DEFAULT_NEGATIVE_TTL = 5000;
+
+	/**
+	 * The maximum number of hosts that are cached
+	 */
+	private static final int MAX_ENTRIES = 128;
+
+	/**
+	 * Entries are refreshed in the background once this fraction of their TTL
+	 * has elapsed
+	 */
+	private static final float REFRESH_THRESHOLD = 0.75f;
+
+	/**
+	 * Entries are only refreshed in the background if they have been used at
+	 * least this many times since they have been resolved
+	 */
+	private static final int POPULAR_HITS = 2;
+
+	private static DnsCache INSTANCE;
+
+	private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+			return size() > MAX_ENTRIES;
+		}
+	};
+
+	private long ttl = DEFAULT_TTL;
+
+	private long negativeTtl = DEFAULT_NEGATIVE_TTL;
+
+	/**
+	 * Runs background refreshes and pre-resolutions, created on demand
+	 */
+	private ScheduledThreadPoolExecutor resolver;
+
+	private long hits;
+
+	private long misses;
+
+	private long resolutions;
+
+	private long failedResolutions;
+
+	private long totalResolutionTime;
+
+	private long maxResolutionTime;
+
+	private DnsCache() {
+	}
+
+	/**
+	 * Obtains the {@link DnsCache} singleton instance
+	 * 
+	 * @return an instance of {@link DnsCache}
+	 */
+	public static synchronized DnsCache getInstance() {
+		if (INSTANCE == null) {
+			INSTANCE = new DnsCache();
+		}
+		return INSTANCE;
+	}
+
+	/**
+	 * Returns the addresses of a host, resolves the host if it is not cached
+	 * 
+	 * @param host
+	 *            the host name or a literal address
+	 * @return the addresses of the host, never empty
+	 * @throws UnknownHostException
+	 *             if the host could not be resolved
+	 */
+	public InetAddress[] lookup(String host) throws UnknownHostException {
+		String key = host.toLowerCase();
+		boolean refresh = false;
+		synchronized (this) {
+			Entry entry = entries.get(key);
+			long now = System.currentTimeMillis();
+			if (entry != null && now < entry.expires) {
+				hits++;
+				entry.hits++;
+				if (entry.addresses == null) {
+					throw new UnknownHostException(host);
+				}
+				if (!entry.refreshing && entry.hits >= POPULAR_HITS && now >= entry.refreshAt) {
+					entry.refreshing = true;
+					refresh = true;
+				}
+				if (!refresh) {
+					return entry.addresses.clone();
+				}
+			} else {
+				misses++;
+			}
+			if (refresh) {
+				InetAddress[] addresses = entry.addresses.clone();
+				resolveInBackground(key);
+				return addresses;
+			}
+		}
+		return resolve(key);
+	}
+
+	/**
+	 * Resolves hosts in the background, e.g. when the app is started, so that
+	 * the first request to each host does not have to wait for the resolver
+	 * 
+	 * @param hosts
+	 *            the host names
+	 */
+	public void preResolve(String... hosts) {
+		preResolve(Arrays.asList(hosts));
+	}
+
+	/**
+	 * Resolves hosts in the background, e.g. when the app is started, so that
+	 * the first request to each host does not have to wait for the resolver
+	 * 
+	 * @param hosts
+	 *            the host names
+	 */
+	public synchronized void preResolve(Collection<String> hosts) {
+		long now = System.currentTimeMillis();
+		for (String host : hosts) {
+			String key = host.toLowerCase();
+			Entry entry = entries.get(key);
+			if (entry == null || now >= entry.refreshAt) {
+				resolveInBackground(key);
+			}
+		}
+	}
+
+	private void resolveInBackground(final String host) {
+		if (resolver == null) {
+			resolver = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "DnsCache-resolver");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		try {
+			resolver.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						resolve(host);
+					} catch (UnknownHostException e) {
+						LOGGER.debug("Could not resolve " + host + " in the background");
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			LOGGER.debug("Could not schedule resolution of " + host);
+		}
+	}
+
+	private InetAddress[] resolve(String host) throws UnknownHostException {
+		long start = System.currentTimeMillis();
+		InetAddress[] addresses = null;
+		try {
+			addresses = InetAddress.getAllByName(host);
+			if (addresses.length == 0) {
+				throw new UnknownHostException(host);
+			}
+			return addresses.clone();
+		} finally {
+			long end = System.currentTimeMillis();
+			long duration = end - start;
+			synchronized (this) {
+				Entry previous = entries.get(host);
+				if (addresses == null && previous != null && previous.addresses != null && end < previous.expires) {
+					// a failed refresh must not replace a valid lookup
+					previous.refreshing = false;
+				} else {
+					Entry entry = new Entry();
+					entry.addresses = addresses;
+					long entryTtl = addresses == null ? negativeTtl : ttl;
+					entry.expires = end + entryTtl;
+					entry.refreshAt = end + (long) (entryTtl * REFRESH_THRESHOLD);
+					entries.put(host, entry);
+				}
+
+				resolutions++;
+				if (addresses == null) {
+					failedResolutions++;
+				}
+				totalResolutionTime += duration;
+				maxResolutionTime = Math.max(maxResolutionTime, duration);
+			}
+			LOGGER.debug("Resolved " + host + " in " + duration + "ms: " + (addresses == null ? "failed" : Arrays.toString(addresses)));
+		}
+	}
+
+	/**
+	 * Removes all cached lookups, should be called if the network changes
+	 */
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	/**
+	 * Sets the time to live of successful and failed lookups, already cached
+	 * lookups are not affected
+	 * 
+	 * @param ttl
+	 *            the time in ms a successful lookup is cached
+	 * @param negativeTtl
+	 *            the time in ms a failed lookup is cached, 0 disables caching
+	 *            of failed lookups
+	 */
+	public synchronized void setTtl(long ttl, long negativeTtl) {
+		this.ttl = ttl;
+		this.negativeTtl = negativeTtl;
+	}
+
+	@SuppressWarnings("javadoc")
+	public synchronized long getTtl() {
+		return ttl;
+	}
+
+	@SuppressWarnings("javadoc")
+	public synchronized long getNegativeTtl() {
+		return negativeTtl;
+	}
+
+	/**
+	 * Returns a snapshot of the cache's statistics
+	 * 
+	 * @return the current {@link DnsStatistics}
+	 */
+	public synchronized DnsStatistics getStatistics() {
+		DnsStatistics statistics = new DnsStatistics();
+		statistics.cachedHosts = entries.size();
+		statistics.hits = hits;
+		statistics.misses = misses;
+		statistics.resolutions = resolutions;
+		statistics.failedResolutions = failedResolutions;
+		statistics.totalResolutionTime = totalResolutionTime;
+		statistics.maxResolutionTime = maxResolutionTime;
+		return statistics;
+	}
+
+	/**
+	 * A cached lookup
+	 */
+	private static final class Entry {
+		/** the addresses, <code>null</code> if the lookup failed */
+		private InetAddress[] addresses;
+		private long expires;
+		private long refreshAt;
+		private int hits;
+		private boolean refreshing;
+	}
+
+	/**
+	 * Snapshot of cache statistics
+	 */
+	public static final class DnsStatistics {
+		/** number of hosts currently cached */
+		public int cachedHosts;
+		/** number of lookups served from the cache */
+		public long hits;
+		/** number of lookups that had to wait for the resolver */
+		public long misses;
+		/** number of resolutions, including background resolutions */
+		public long resolutions;
+		/** number of resolutions that failed */
+		public long failedResolutions;
+		/** time in ms spent resolving */
+		public long totalResolutionTime;
+		/** the slowest resolution in ms */
+		public long maxResolutionTime;
+
+		/**
+		 * Returns the fraction of lookups that have been served from the
+		 * cache
+		 * 
+		 * @return the hit rate between 0 and 1
+		 */
+		public float getHitRate() {
+			long lookups = hits + misses;
+			return lookups == 0 ? 0 : (float) hits / lookups;
+		}
+
+		/**
+		 * Returns the average time a resolution took
+		 * 
+		 * @return the average resolution time in ms
+		 */
+		public long getAverageResolutionTime() {
+			return resolutions == 0 ? 0 : totalResolutionTime / resolutions;
+		}
+
+		@Override
+		public String toString() {
+			return "DnsStatistics [cachedHosts=" + cachedHosts + ", hits=" + hits + ", misses=" + misses + ", hitRate=" + getHitRate()
+					+ ", resolutions=" + resolutions + ", failedResolutions=" + failedResolutions + ", averageResolutionTime="
+					+ getAverageResolutionTime() + ", maxResolutionTime=" + maxResolutionTime + "]";
+		}
+	}
+}
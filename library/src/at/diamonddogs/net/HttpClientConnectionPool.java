@@ -0,0 +1,753 @@
+/*
+ * Copyright (C) 2012, 2013 the diamond:dogs|group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.diamonddogs.net;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpInetConnection;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpVersion;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.scheme.LayeredSocketFactory;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.scheme.SocketFactory;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import at.diamonddogs.net.ssl.CustomSSLSocketFactory;
+import at.diamonddogs.net.ssl.SSLHelper;
+
+/**
+ * A process wide, pooled {@link ClientConnectionManager} that is shared by all
+ * {@link WebClientDefaultHttpClient} instances. Keep-alive connections are
+ * reused across {@link WebClient}s, so consecutive requests to the same host
+ * do not have to pay for a new TCP / TLS handshake. Idle and expired
+ * connections are evicted periodically.
+ * 
+ * Connections to hosts that are about to be used can be established ahead of
+ * time using {@link HttpClientConnectionPool#preconnect(String, int)}.
+ */
+public class HttpClientConnectionPool {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(HttpClientConnectionPool.class.getSimpleName());
+
+	/**
+	 * Holds singleton instance
+	 */
+	private static HttpClientConnectionPool INSTANCE;
+
+	/**
+	 * The default maximum number of pooled connections
+	 */
+	public static final int DEFAULT_MAX_TOTAL_CONNECTIONS = 20;
+
+	/**
+	 * The default maximum number of pooled connections per route (host)
+	 */
+	public static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 6;
+
+	/**
+	 * The default time in ms after which an idle connection will be closed
+	 */
+	public static final long DEFAULT_IDLE_TIMEOUT = 30000;
+
+	/**
+	 * The default time in ms a thread will wait for a pooled connection
+	 */
+	public static final long DEFAULT_CONNECTION_REQUEST_TIMEOUT = 30000;
+
+	/**
+	 * The interval in ms in which idle and expired connections are evicted
+	 */
+	private static final long EVICTION_INTERVAL = 10000;
+
+	/**
+	 * The time in ms a warm-up waits for a free connection, warm-ups never
+	 * wait for connections that are used by requests
+	 */
+	private static final long PRECONNECT_LEASE_TIMEOUT = 100;
+
+	/**
+	 * The number of threads opening warmed connections
+	 */
+	private static final int PRECONNECT_THREADS = 2;
+
+	private int maxTotalConnections = DEFAULT_MAX_TOTAL_CONNECTIONS;
+
+	private int maxConnectionsPerRoute = DEFAULT_MAX_CONNECTIONS_PER_ROUTE;
+
+	private long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+
+	private long connectionRequestTimeout = DEFAULT_CONNECTION_REQUEST_TIMEOUT;
+
+	/**
+	 * The parameters shared by all pooled connections
+	 */
+	private HttpParams params;
+
+	/**
+	 * The {@link SchemeRegistry} of the current connection manager
+	 */
+	private SchemeRegistry schemeRegistry;
+
+	/**
+	 * The active connection manager
+	 */
+	private ThreadSafeClientConnManager connectionManager;
+
+	/**
+	 * Connection managers replaced by
+	 * {@link HttpClientConnectionPool#configure(int, int, long)}, they will be
+	 * shut down once they do not hold any connections anymore
+	 */
+	private final List<ThreadSafeClientConnManager> retiredConnectionManagers = new LinkedList<ThreadSafeClientConnManager>();
+
+	/**
+	 * The ssl factory the https scheme has been registered with, used to
+	 * detect changes made by {@link SSLHelper}
+	 */
+	private CustomSSLSocketFactory registeredSslFactory;
+
+	/**
+	 * Evicts idle connections
+	 */
+	private ScheduledExecutorService evictor;
+
+	/**
+	 * Opens warmed connections, created on demand
+	 */
+	private ScheduledThreadPoolExecutor preconnector;
+
+	/**
+	 * Warmed connections that have not been used by a request yet, mapped to
+	 * the time they expire at
+	 */
+	private final Map<String, Long> warmConnections = new HashMap<String, Long>();
+
+	/**
+	 * Counts the requests sent on pooled connections and marks warmed
+	 * connections as used once a request is sent on them
+	 */
+	private final HttpRequestInterceptor warmConnectionInterceptor = new WarmConnectionInterceptor();
+
+	/**
+	 * Number of requests that have been sent on a connection of the pool
+	 */
+	private final AtomicLong leasedConnections = new AtomicLong();
+
+	/**
+	 * Number of connections that actually had to be established
+	 */
+	private final AtomicLong openedConnections = new AtomicLong();
+
+	/**
+	 * Number of connections that have been opened by a warm-up
+	 */
+	private final AtomicLong warmedConnections = new AtomicLong();
+
+	/**
+	 * Number of warmed connections that have been used by a request
+	 */
+	private final AtomicLong usedWarmConnections = new AtomicLong();
+
+	/**
+	 * Number of warmed connections that expired without being used
+	 */
+	private final AtomicLong expiredWarmConnections = new AtomicLong();
+
+	private HttpClientConnectionPool() {
+	}
+
+	/**
+	 * Obtains the {@link HttpClientConnectionPool} singleton instance
+	 *
+	 * @return an instance of {@link HttpClientConnectionPool}
+	 */
+	public static synchronized HttpClientConnectionPool getInstance() {
+		if (INSTANCE == null) {
+			INSTANCE = new HttpClientConnectionPool();
+		}
+		return INSTANCE;
+	}
+
+	/**
+	 * Configures the pool limits. Connections that are held by the previous
+	 * configuration will be closed once they have been released.
+	 *
+	 * @param maxTotalConnections
+	 *            the maximum number of connections (all hosts)
+	 * @param maxConnectionsPerRoute
+	 *            the maximum number of connections per host
+	 * @param idleTimeout
+	 *            the time in ms after which an idle connection will be closed
+	 */
+	public synchronized void configure(int maxTotalConnections, int maxConnectionsPerRoute, long idleTimeout) {
+		if (maxTotalConnections < 1 || maxConnectionsPerRoute < 1) {
+			throw new IllegalArgumentException("connection limits must be greater than 0");
+		}
+		this.maxTotalConnections = maxTotalConnections;
+		this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+		this.idleTimeout = idleTimeout;
+		if (connectionManager != null) {
+			connectionManager.closeIdleConnections(0, TimeUnit.MILLISECONDS);
+			retiredConnectionManagers.add(connectionManager);
+			connectionManager = null;
+		}
+		LOGGER.info("pool configured, maxTotal: " + maxTotalConnections + " maxPerRoute: " + maxConnectionsPerRoute + " idleTimeout: "
+				+ idleTimeout);
+	}
+
+	/**
+	 * Sets the maximum time in ms a request will wait for a free connection
+	 * if the pool limits have been reached
+	 *
+	 * @param connectionRequestTimeout
+	 *            the timeout in ms
+	 */
+	public synchronized void setConnectionRequestTimeout(long connectionRequestTimeout) {
+		this.connectionRequestTimeout = connectionRequestTimeout;
+		if (params != null) {
+			ConnManagerParams.setTimeout(params, connectionRequestTimeout);
+		}
+	}
+
+	/**
+	 * Returns the shared {@link ClientConnectionManager}, creates it if
+	 * required. The https scheme is kept in sync with the factory provided by
+	 * {@link SSLHelper}.
+	 *
+	 * @return the shared {@link ClientConnectionManager}
+	 */
+	public synchronized ClientConnectionManager getConnectionManager() {
+		return obtainConnectionManager();
+	}
+
+	private ClientConnectionManager obtainConnectionManager() {
+		if (connectionManager == null) {
+			createConnectionManager();
+		} else if (registeredSslFactory != SSLHelper.getInstance().SSL_FACTORY_APACHE) {
+			registerHttpsScheme(schemeRegistry);
+		}
+		return connectionManager;
+	}
+
+	/**
+	 * Returns the {@link HttpRequestInterceptor} that has to be added to
+	 * clients using this pool, so that connection leases and the use of
+	 * warmed connections can be tracked
+	 * 
+	 * @return the interceptor tracking warmed connections
+	 */
+	public HttpRequestInterceptor getWarmConnectionInterceptor() {
+		return warmConnectionInterceptor;
+	}
+
+	/**
+	 * Opens connections to a host in the background, so that the next
+	 * requests to that host do not have to wait for DNS, TCP and TLS. Warmed
+	 * connections are kept in the pool until they are used by a request or
+	 * until the idle timeout expires. The pool limits are respected, no
+	 * connections will be opened if the host already has enough connections
+	 * or if the pool is exhausted.
+	 * 
+	 * @param host
+	 *            the host name (https is assumed) or a url consisting of
+	 *            scheme, host and optional port
+	 * @param count
+	 *            the number of connections to open
+	 */
+	public void preconnect(String host, final int count) {
+		final HttpHost target;
+		try {
+			URL url = new URL(host.indexOf("://") == -1 ? "https://" + host : host);
+			if (!"http".equals(url.getProtocol()) && !"https".equals(url.getProtocol())) {
+				throw new IllegalArgumentException("Unsupported scheme: " + host);
+			}
+			target = new HttpHost(url.getHost(), url.getPort(), url.getProtocol());
+		} catch (MalformedURLException e) {
+			throw new IllegalArgumentException("Invalid host: " + host);
+		}
+		synchronized (this) {
+			if (preconnector == null) {
+				preconnector = new ScheduledThreadPoolExecutor(PRECONNECT_THREADS, new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "HttpClientConnectionPool-preconnect");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+			}
+			try {
+				preconnector.execute(new Runnable() {
+					@Override
+					public void run() {
+						warmUp(target, count);
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				LOGGER.debug("Could not schedule warm-up of " + target);
+			}
+		}
+	}
+
+	private void warmUp(HttpHost target, int count) {
+		ClientConnectionManager manager;
+		HttpRoute route;
+		HttpParams connectionParams;
+		long warmTimeout;
+		int free;
+		synchronized (this) {
+			manager = obtainConnectionManager();
+			route = new HttpRoute(target, null, schemeRegistry.getScheme(target).isLayered());
+			connectionParams = params;
+			warmTimeout = idleTimeout;
+			free = Math.min(maxConnectionsPerRoute - connectionManager.getConnectionsInPool(route), maxTotalConnections
+					- connectionManager.getConnectionsInPool());
+		}
+		List<ManagedClientConnection> connections = new ArrayList<ManagedClientConnection>();
+		int warmed = 0;
+		try {
+			for (int i = 0; i < Math.min(count, free); i++) {
+				connections.add(manager.requestConnection(route, null).getConnection(PRECONNECT_LEASE_TIMEOUT, TimeUnit.MILLISECONDS));
+			}
+			for (ManagedClientConnection connection : connections) {
+				if (connection.isOpen()) {
+					// an idle connection, no need to warm it
+					continue;
+				}
+				connection.open(route, new BasicHttpContext(), connectionParams);
+				if (route.isSecure()) {
+					// obtaining the session completes the handshake
+					connection.getSSLSession();
+				}
+				connection.markReusable();
+				synchronized (warmConnections) {
+					warmConnections.put(getWarmConnectionKey(connection), System.currentTimeMillis() + warmTimeout);
+				}
+				warmedConnections.incrementAndGet();
+				warmed++;
+			}
+		} catch (ConnectionPoolTimeoutException e) {
+			LOGGER.debug("No free connection to warm for " + target);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (Throwable tr) {
+			LOGGER.info("Could not warm connection to " + target, tr);
+		} finally {
+			for (ManagedClientConnection connection : connections) {
+				// connections that have not been marked reusable are closed
+				manager.releaseConnection(connection, warmTimeout, TimeUnit.MILLISECONDS);
+			}
+		}
+		LOGGER.debug("Warmed " + warmed + " connection(s) to " + target);
+	}
+
+	private String getWarmConnectionKey(HttpInetConnection connection) {
+		return connection.getRemoteAddress() + ":" + connection.getRemotePort() + "/" + connection.getLocalPort();
+	}
+
+	/**
+	 * Marks a warmed connection as used
+	 * 
+	 * @param connection
+	 *            the connection a request is sent on
+	 * @return <code>true</code> if the connection has been opened by a
+	 *         warm-up and has not been used before
+	 */
+	private boolean claimWarmConnection(HttpInetConnection connection) {
+		synchronized (warmConnections) {
+			if (warmConnections.isEmpty() || warmConnections.remove(getWarmConnectionKey(connection)) == null) {
+				return false;
+			}
+		}
+		usedWarmConnections.incrementAndGet();
+		return true;
+	}
+
+	private void evictWarmConnections() {
+		long now = System.currentTimeMillis();
+		synchronized (warmConnections) {
+			Iterator<Long> expires = warmConnections.values().iterator();
+			while (expires.hasNext()) {
+				if (expires.next() <= now) {
+					expires.remove();
+					expiredWarmConnections.incrementAndGet();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the {@link HttpParams} shared by all pooled connections
+	 *
+	 * @return the default {@link HttpParams}
+	 */
+	public synchronized HttpParams getParams() {
+		if (params == null) {
+			createConnectionManager();
+		}
+		return params;
+	}
+
+	/**
+	 * Returns the time in ms a connection may be kept alive while idle
+	 *
+	 * @return the idle timeout
+	 */
+	public synchronized long getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	private void createConnectionManager() {
+		params = new BasicHttpParams();
+		HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+		HttpProtocolParams.setContentCharset(params, HTTP.UTF_8);
+		HttpConnectionParams.setStaleCheckingEnabled(params, true);
+		ConnManagerParams.setMaxTotalConnections(params, maxTotalConnections);
+		ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(maxConnectionsPerRoute));
+		ConnManagerParams.setTimeout(params, connectionRequestTimeout);
+
+		schemeRegistry = new SchemeRegistry();
+		schemeRegistry.register(new Scheme("http", new CountingSocketFactory(PlainSocketFactory.getSocketFactory()), 80));
+		registerHttpsScheme(schemeRegistry);
+
+		connectionManager = new ThreadSafeClientConnManager(params, schemeRegistry);
+		startEvictor();
+		LOGGER.debug("created pooled connection manager");
+	}
+
+	private void registerHttpsScheme(SchemeRegistry registry) {
+		CustomSSLSocketFactory sslSocketFactory = SSLHelper.getInstance().SSL_FACTORY_APACHE;
+		LayeredSocketFactory factory;
+		if (sslSocketFactory != null) {
+			factory = sslSocketFactory;
+		} else {
+			factory = SSLSocketFactory.getSocketFactory();
+		}
+		registry.register(new Scheme("https", new CountingLayeredSocketFactory(factory), 443));
+		registeredSslFactory = sslSocketFactory;
+	}
+
+	private void startEvictor() {
+		if (evictor != null) {
+			return;
+		}
+		evictor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "HttpClientConnectionPool-evictor");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		evictor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				evictIdleConnections();
+			}
+		}, EVICTION_INTERVAL, EVICTION_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Closes expired and idle connections, called periodically
+	 */
+	public synchronized void evictIdleConnections() {
+		try {
+			if (connectionManager != null) {
+				connectionManager.closeExpiredConnections();
+				connectionManager.closeIdleConnections(idleTimeout, TimeUnit.MILLISECONDS);
+			}
+			evictWarmConnections();
+			for (int i = retiredConnectionManagers.size() - 1; i >= 0; i--) {
+				ThreadSafeClientConnManager retired = retiredConnectionManagers.get(i);
+				retired.closeIdleConnections(0, TimeUnit.MILLISECONDS);
+				if (retired.getConnectionsInPool() == 0) {
+					retired.shutdown();
+					retiredConnectionManagers.remove(i);
+				}
+			}
+		} catch (Throwable tr) {
+			LOGGER.warn("Error while evicting idle connections", tr);
+		}
+	}
+
+	/**
+	 * Closes all pooled connections and stops the eviction thread. The pool
+	 * will be recreated on the next call to
+	 * {@link HttpClientConnectionPool#getConnectionManager()}
+	 */
+	public synchronized void shutdown() {
+		if (evictor != null) {
+			evictor.shutdownNow();
+			evictor = null;
+		}
+		if (preconnector != null) {
+			preconnector.shutdownNow();
+			preconnector = null;
+		}
+		synchronized (warmConnections) {
+			warmConnections.clear();
+		}
+		if (connectionManager != null) {
+			connectionManager.shutdown();
+			connectionManager = null;
+		}
+		for (ThreadSafeClientConnManager retired : retiredConnectionManagers) {
+			retired.shutdown();
+		}
+		retiredConnectionManagers.clear();
+	}
+
+	/**
+	 * Returns the number of pooled connections (leased and idle) for a host
+	 *
+	 * @param host
+	 *            the host name
+	 * @param port
+	 *            the port, -1 for the scheme's default port
+	 * @param secure
+	 *            <code>true</code> for https, <code>false</code> for http
+	 * @return the number of connections for the host
+	 */
+	public synchronized int getConnectionsInPool(String host, int port, boolean secure) {
+		if (connectionManager == null) {
+			return 0;
+		}
+		String scheme = secure ? "https" : "http";
+		int targetPort = port == -1 ? schemeRegistry.getScheme(scheme).getDefaultPort() : port;
+		return connectionManager.getConnectionsInPool(new HttpRoute(new HttpHost(host, targetPort, scheme), null, secure));
+	}
+
+	/**
+	 * Returns a snapshot of the pool's statistics
+	 *
+	 * @return the current {@link PoolStatistics}
+	 */
+	public synchronized PoolStatistics getStatistics() {
+		PoolStatistics statistics = new PoolStatistics();
+		statistics.connectionsInPool = connectionManager == null ? 0 : connectionManager.getConnectionsInPool();
+		statistics.maxTotalConnections = maxTotalConnections;
+		statistics.maxConnectionsPerRoute = maxConnectionsPerRoute;
+		statistics.leasedConnections = leasedConnections.get();
+		statistics.openedConnections = openedConnections.get();
+		statistics.warmedConnections = warmedConnections.get();
+		statistics.usedWarmConnections = usedWarmConnections.get();
+		statistics.expiredWarmConnections = expiredWarmConnections.get();
+		return statistics;
+	}
+
+	/**
+	 * Snapshot of pool statistics
+	 */
+	public static final class PoolStatistics {
+		/** number of connections currently held by the pool */
+		public int connectionsInPool;
+		/** configured maximum number of connections */
+		public int maxTotalConnections;
+		/** configured maximum number of connections per route */
+		public int maxConnectionsPerRoute;
+		/**
+		 * number of requests that have been sent on a connection of the pool,
+		 * including every hop of a redirect
+		 */
+		public long leasedConnections;
+		/**
+		 * number of new connections that had to be established, including
+		 * warmed connections
+		 */
+		public long openedConnections;
+		/** number of connections opened by warm-ups */
+		public long warmedConnections;
+		/** number of warmed connections that have been used by a request */
+		public long usedWarmConnections;
+		/** number of warmed connections that expired without being used */
+		public long expiredWarmConnections;
+
+		/**
+		 * Returns the number of requests that have been served by an already
+		 * established connection
+		 *
+		 * @return the number of reused connections
+		 */
+		public long getReusedConnections() {
+			return Math.max(0, leasedConnections - (openedConnections - warmedConnections));
+		}
+
+		@Override
+		public String toString() {
+			return "PoolStatistics [connectionsInPool=" + connectionsInPool + ", maxTotalConnections=" + maxTotalConnections
+					+ ", maxConnectionsPerRoute=" + maxConnectionsPerRoute + ", leasedConnections=" + leasedConnections
+					+ ", openedConnections=" + openedConnections + ", warmedConnections=" + warmedConnections + ", usedWarmConnections="
+					+ usedWarmConnections + ", expiredWarmConnections=" + expiredWarmConnections + "]";
+		}
+	}
+
+	/**
+	 * Delegating {@link SocketFactory} that counts established connections
+	 * and connects using the {@link ConnectionRacer}
+	 */
+	private class CountingSocketFactory implements SocketFactory {
+
+		protected final SocketFactory delegate;
+
+		private CountingSocketFactory(SocketFactory delegate) {
+			this.delegate = delegate;
+		}
+
+		@Override
+		public Socket createSocket() throws IOException {
+			return delegate.createSocket();
+		}
+
+		/**
+		 * Connects using the {@link DnsCache} and the {@link ConnectionRacer},
+		 * the socket created by the delegate is replaced by the socket that
+		 * won the race
+		 */
+		@Override
+		public Socket connectSocket(Socket sock, String host, int port, InetAddress localAddress, int localPort, HttpParams params)
+				throws IOException, UnknownHostException, ConnectTimeoutException {
+			InetAddress[] addresses = DnsCache.getInstance().lookup(host);
+			Socket socket;
+			try {
+				socket = ConnectionRacer.getInstance().connect(addresses, port, localAddress, localPort,
+						HttpConnectionParams.getConnectionTimeout(params));
+			} catch (SocketTimeoutException e) {
+				throw new ConnectTimeoutException("Connect to " + host + ":" + port + " timed out");
+			}
+			if (sock != null) {
+				sock.close();
+			}
+			socket.setSoTimeout(HttpConnectionParams.getSoTimeout(params));
+			try {
+				socket = layer(socket, host, port);
+			} catch (IOException e) {
+				socket.close();
+				throw e;
+			}
+			openedConnections.incrementAndGet();
+			return socket;
+		}
+
+		/**
+		 * Layers a protocol on top of a connected socket
+		 *
+		 * @param socket
+		 *            the connected socket
+		 * @param host
+		 *            the host name
+		 * @param port
+		 *            the port
+		 * @return the socket that will be used for the connection
+		 * @throws IOException
+		 *             if the protocol could not be layered
+		 */
+		protected Socket layer(Socket socket, String host, int port) throws IOException {
+			return socket;
+		}
+
+		@Override
+		public boolean isSecure(Socket sock) throws IllegalArgumentException {
+			return delegate.isSecure(sock);
+		}
+	}
+
+	/**
+	 * Delegating {@link LayeredSocketFactory} that counts established
+	 * connections
+	 */
+	private final class CountingLayeredSocketFactory extends CountingSocketFactory implements LayeredSocketFactory {
+
+		private CountingLayeredSocketFactory(LayeredSocketFactory delegate) {
+			super(delegate);
+		}
+
+		/**
+		 * The host name is required for certificate verification
+		 */
+		@Override
+		protected Socket layer(Socket socket, String host, int port) throws IOException {
+			return createSocket(socket, host, port, true);
+		}
+
+		@Override
+		public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException, UnknownHostException {
+			return ((LayeredSocketFactory) delegate).createSocket(socket, host, port, autoClose);
+		}
+	}
+
+	/**
+	 * Counts the requests sent on pooled connections and detects requests
+	 * that are sent on warmed connections. Runs once per request, so
+	 * redirect hops are counted while warm-ups are not.
+	 */
+	private final class WarmConnectionInterceptor implements HttpRequestInterceptor {
+		@Override
+		public void process(HttpRequest request, HttpContext context) throws HttpException, IOException {
+			leasedConnections.incrementAndGet();
+			Object connection = context.getAttribute(ExecutionContext.HTTP_CONNECTION);
+			if (connection instanceof HttpInetConnection) {
+				try {
+					if (claimWarmConnection((HttpInetConnection) connection)) {
+						LOGGER.debug("Using warmed connection for " + request.getRequestLine());
+					}
+				} catch (IllegalStateException e) {
+					// the connection has already been released
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2012, 2013 the diamond:dogs|group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.diamonddogs.net;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.content.Context;
+import at.diamonddogs.util.Utils;
+
+/**
+ * Remembers permanent redirects (301 and 308), so that later requests to a
+ * moved URL go straight to its final URL instead of paying for the redirect
+ * again. The number of redirects is bounded, the least recently used ones are
+ * dropped first. Redirects are persisted in the cache directory once a
+ * {@link Context} has been provided, see
+ * {@link RedirectStore#setContext(Context)}.
+ */
+public class RedirectStore {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(RedirectStore.class.getSimpleName());
+
+	/**
+	 * The default maximum number of redirects that are remembered
+	 */
+	public static final int DEFAULT_MAX_ENTRIES = 256;
+
+	/**
+	 * The name of the file redirects are persisted in
+	 */
+	private static final String FILE_NAME = "redirects";
+
+	/**
+	 * The maximum number of remembered redirects that are followed in a row,
+	 * guards against cycles
+	 */
+	private static final int MAX_CHAIN = 10;
+
+	private static RedirectStore INSTANCE;
+
+	private int maxEntries = DEFAULT_MAX_ENTRIES;
+
+	/**
+	 * Maps URLs to the URLs they have been moved to permanently
+	 */
+	private final Map<String, String> redirects = new LinkedHashMap<String, String>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+			return size() > maxEntries;
+		}
+	};
+
+	private Context context;
+
+	private boolean loaded;
+
+	private RedirectStore() {
+	}
+
+	/**
+	 * Obtains the {@link RedirectStore} singleton instance
+	 * 
+	 * @return an instance of {@link RedirectStore}
+	 */
+	public static synchronized RedirectStore getInstance() {
+		if (INSTANCE == null) {
+			INSTANCE = new RedirectStore();
+		}
+		return INSTANCE;
+	}
+
+	/**
+	 * Provides the {@link Context} used to persist redirects, persisted
+	 * redirects are loaded on first use
+	 * 
+	 * @param context
+	 *            a {@link Context}
+	 */
+	public synchronized void setContext(Context context) {
+		if (this.context == null && context != null) {
+			this.context = context.getApplicationContext() == null ? context : context.getApplicationContext();
+		}
+	}
+
+	/**
+	 * Sets the maximum number of redirects that are remembered
+	 * 
+	 * @param maxEntries
+	 *            the maximum number of redirects
+	 */
+	public synchronized void setMaxEntries(int maxEntries) {
+		this.maxEntries = maxEntries;
+	}
+
+	@SuppressWarnings("javadoc")
+	public synchronized int getMaxEntries() {
+		return maxEntries;
+	}
+
+	/**
+	 * Returns the canonical URL of a {@link URL}, i.e. the URL that a chain
+	 * of remembered permanent redirects ends at
+	 * 
+	 * @param url
+	 *            the {@link URL} to resolve
+	 * @return the canonical {@link URL}, <code>url</code> if it has not been
+	 *         moved
+	 */
+	public synchronized URL resolve(URL url) {
+		if (url == null) {
+			return null;
+		}
+		load();
+		String source = url.toExternalForm();
+		String target = source;
+		String next;
+		int hops = 0;
+		while ((next = redirects.get(target)) != null && hops < MAX_CHAIN) {
+			target = next;
+			hops++;
+		}
+		if (hops == 0) {
+			return url;
+		}
+		try {
+			return new URL(target);
+		} catch (MalformedURLException e) {
+			LOGGER.warn("Dropping invalid redirect target: " + target);
+			redirects.remove(source);
+			save();
+			return url;
+		}
+	}
+
+	/**
+	 * Remembers a redirect if it is permanent
+	 * 
+	 * @param from
+	 *            the {@link URL} that has been requested
+	 * @param to
+	 *            the {@link URL} the reply redirected to
+	 * @param statusCode
+	 *            the status code of the reply
+	 */
+	public synchronized void onRedirect(URL from, URL to, int statusCode) {
+		if (statusCode != WebClient.HTTPStatus.HTTP_MOVED_PERM && statusCode != WebClient.HTTPStatus.HTTP_PERM_REDIRECT) {
+			return;
+		}
+		load();
+		String source = from.toExternalForm();
+		String target = to.toExternalForm();
+		if (source.equals(target) || source.equals(resolve(to).toExternalForm())) {
+			// a cycle, the server will not redirect back forever
+			redirects.remove(target);
+			save();
+			return;
+		}
+		if (target.equals(redirects.put(source, target))) {
+			return;
+		}
+		LOGGER.debug("Remembering permanent redirect: " + source + " -> " + target);
+		save();
+	}
+
+	/**
+	 * Forgets the redirect of a {@link URL}, e.g. because its target no
+	 * longer exists
+	 * 
+	 * @param url
+	 *            the {@link URL} that has been moved
+	 */
+	public synchronized void remove(URL url) {
+		load();
+		if (redirects.remove(url.toExternalForm()) != null) {
+			save();
+		}
+	}
+
+	/**
+	 * Forgets all redirects
+	 */
+	public synchronized void clear() {
+		loaded = true;
+		redirects.clear();
+		File file = getFile();
+		if (file != null) {
+			file.delete();
+		}
+	}
+
+	private File getFile() {
+		if (context == null) {
+			return null;
+		}
+		File dir = Utils.getCacheDir(context);
+		return dir == null ? null : new File(dir, FILE_NAME);
+	}
+
+	private void load() {
+		if (loaded || context == null) {
+			return;
+		}
+		loaded = true;
+		File file = getFile();
+		if (file == null || !file.exists()) {
+			return;
+		}
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				int separator = line.indexOf('\t');
+				if (separator > 0) {
+					redirects.put(line.substring(0, separator), line.substring(separator + 1));
+				}
+			}
+			LOGGER.debug("Loaded " + redirects.size() + " permanent redirects");
+		} catch (IOException e) {
+			LOGGER.warn("Could not load redirects", e);
+		} finally {
+			closeQuietly(reader);
+		}
+	}
+
+	/**
+	 * Writes all redirects to a temporary file that replaces the persisted
+	 * redirects once it is complete, in least recently used order
+	 */
+	private void save() {
+		File file = getFile();
+		if (file == null) {
+			return;
+		}
+		File tmp = new File(file.getPath() + ".tmp");
+		Writer writer = null;
+		try {
+			writer = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+			for (Map.Entry<String, String> entry : redirects.entrySet()) {
+				writer.write(entry.getKey());
+				writer.write('\t');
+				writer.write(entry.getValue());
+				writer.write('\n');
+			}
+			writer.close();
+			writer = null;
+			if (!tmp.renameTo(file)) {
+				LOGGER.warn("Could not persist redirects to " + file);
+			}
+		} catch (IOException e) {
+			LOGGER.warn("Could not persist redirects", e);
+		} finally {
+			closeQuietly(writer);
+		}
+	}
+
+	private static void closeQuietly(Closeable closeable) {
+		if (closeable == null) {
+			return;
+		}
+		try {
+			closeable.close();
+		} catch (IOException e) {
+			LOGGER.debug("Could not close " + closeable, e);
+		}
+	}
+}
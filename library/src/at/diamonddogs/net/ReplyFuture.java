@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2012, 2013 the diamond:dogs|group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.diamonddogs.net;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import at.diamonddogs.data.adapter.ReplyAdapter;
+import at.diamonddogs.data.dataobjects.WebRequest;
+
+/**
+ * A {@link Future} that is completed by a {@link WebClient} whose
+ * {@link WebRequest} does not occupy a single thread from start to end
+ */
+class ReplyFuture implements Future<ReplyAdapter> {
+
+	private final CountDownLatch latch = new CountDownLatch(1);
+
+	private final WebRequest webRequest;
+
+	private ReplyAdapter result;
+
+	private boolean cancelled;
+
+	/**
+	 * Creates a new {@link ReplyFuture}
+	 *
+	 * @param webRequest
+	 *            the {@link WebRequest} that will be cancelled if the
+	 *            {@link ReplyFuture} is cancelled
+	 */
+	ReplyFuture(WebRequest webRequest) {
+		this.webRequest = webRequest;
+	}
+
+	/**
+	 * Completes the {@link ReplyFuture}
+	 *
+	 * @param replyAdapter
+	 *            the result
+	 * @return <code>false</code> if the {@link ReplyFuture} has already been
+	 *         completed or cancelled
+	 */
+	synchronized boolean set(ReplyAdapter replyAdapter) {
+		if (latch.getCount() == 0 || cancelled) {
+			return false;
+		}
+		result = replyAdapter;
+		latch.countDown();
+		return true;
+	}
+
+	/**
+	 * Called once the {@link ReplyFuture} has been cancelled, aborts the work
+	 * in progress
+	 *
+	 * @param mayInterruptIfRunning
+	 *            see {@link Future#cancel(boolean)}
+	 */
+	protected void onCancel(boolean mayInterruptIfRunning) {
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		synchronized (this) {
+			if (latch.getCount() == 0 || cancelled) {
+				return false;
+			}
+			cancelled = true;
+		}
+		webRequest.setCancelled(true);
+		onCancel(mayInterruptIfRunning);
+		latch.countDown();
+		return true;
+	}
+
+	@Override
+	public synchronized boolean isCancelled() {
+		return cancelled;
+	}
+
+	@Override
+	public synchronized boolean isDone() {
+		return latch.getCount() == 0;
+	}
+
+	@Override
+	public ReplyAdapter get() throws InterruptedException, ExecutionException {
+		latch.await();
+		return getResult();
+	}
+
+	@Override
+	public ReplyAdapter get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		if (!latch.await(timeout, unit)) {
+			throw new TimeoutException();
+		}
+		return getResult();
+	}
+
+	private synchronized ReplyAdapter getResult() {
+		if (cancelled) {
+			throw new CancellationException();
+		}
+		return result;
+	}
+}
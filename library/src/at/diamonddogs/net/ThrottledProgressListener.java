@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2012, 2013 the diamond:dogs|group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.diamonddogs.net;
+
+import at.diamonddogs.net.WebClient.DecodingProgressListener;
+import at.diamonddogs.net.WebClient.DownloadProgressListener;
+
+/**
+ * Coalesces download progress before it is passed to a
+ * {@link DownloadProgressListener}. Progress is accumulated and published at
+ * most once per minimum interval, unless the accumulated progress exceeds the
+ * minimum byte delta. The remaining progress is published by
+ * {@link ThrottledProgressListener#flush()}, which {@link WebClient}s call
+ * once a download has ended, so that listeners always receive the final
+ * value.
+ *
+ * All {@link WebClient}s wrap their {@link DownloadProgressListener} using
+ * the default limits, listeners that need different limits can be wrapped
+ * before they are passed to
+ * {@link WebClient#setDownloadProgressListener(DownloadProgressListener)}.
+ */
+public class ThrottledProgressListener implements DecodingProgressListener {
+
+	/**
+	 * The default minimum time in ms between two progress updates
+	 */
+	public static final long DEFAULT_MIN_INTERVAL = 100;
+
+	/**
+	 * Disables publishing by byte delta
+	 */
+	public static final long NO_MIN_BYTES = Long.MAX_VALUE;
+
+	private static volatile long defaultMinInterval = DEFAULT_MIN_INTERVAL;
+
+	private static volatile long defaultMinBytes = NO_MIN_BYTES;
+
+	private final DownloadProgressListener delegate;
+
+	private final long minInterval;
+
+	private final long minBytes;
+
+	private long pendingDecoded;
+
+	private long pendingWire;
+
+	private long lastPublished;
+
+	/**
+	 * Creates a {@link ThrottledProgressListener} using the default limits
+	 *
+	 * @param delegate
+	 *            the listener that receives the coalesced progress
+	 */
+	public ThrottledProgressListener(DownloadProgressListener delegate) {
+		this(delegate, defaultMinInterval, defaultMinBytes);
+	}
+
+	/**
+	 * Creates a {@link ThrottledProgressListener}
+	 *
+	 * @param delegate
+	 *            the listener that receives the coalesced progress
+	 * @param minInterval
+	 *            the minimum time in ms between two progress updates, 0
+	 *            publishes every update
+	 * @param minBytes
+	 *            progress is published before the interval has passed if at
+	 *            least this many bytes have been accumulated,
+	 *            {@link #NO_MIN_BYTES} disables this
+	 */
+	public ThrottledProgressListener(DownloadProgressListener delegate, long minInterval, long minBytes) {
+		if (delegate == null) {
+			throw new IllegalArgumentException("delegate must not be null");
+		}
+		this.delegate = delegate;
+		this.minInterval = minInterval;
+		this.minBytes = minBytes;
+	}
+
+	/**
+	 * Sets the limits used by {@link WebClient}s that are created afterwards
+	 *
+	 * @param minInterval
+	 *            the minimum time in ms between two progress updates, 0
+	 *            publishes every update
+	 * @param minBytes
+	 *            progress is published before the interval has passed if at
+	 *            least this many bytes have been accumulated,
+	 *            {@link #NO_MIN_BYTES} disables this
+	 */
+	public static void setDefaults(long minInterval, long minBytes) {
+		defaultMinInterval = minInterval;
+		defaultMinBytes = minBytes;
+	}
+
+	@Override
+	public synchronized void downloadSize(long size) {
+		delegate.downloadSize(size);
+	}
+
+	@Override
+	public void downloadProgress(long progress) {
+		downloadProgress(progress, progress);
+	}
+
+	@Override
+	public synchronized void downloadProgress(long decodedProgress, long wireProgress) {
+		pendingDecoded += decodedProgress;
+		pendingWire += wireProgress;
+		long now = System.currentTimeMillis();
+		if (now - lastPublished >= minInterval || pendingWire >= minBytes || pendingDecoded >= minBytes) {
+			lastPublished = now;
+			publish();
+		}
+	}
+
+	/**
+	 * Publishes the progress that has not been published yet
+	 */
+	public synchronized void flush() {
+		if (pendingDecoded != 0 || pendingWire != 0) {
+			lastPublished = System.currentTimeMillis();
+			publish();
+		}
+	}
+
+	private void publish() {
+		long decoded = pendingDecoded;
+		long wire = pendingWire;
+		pendingDecoded = 0;
+		pendingWire = 0;
+		if (delegate instanceof DecodingProgressListener) {
+			((DecodingProgressListener) delegate).downloadProgress(decoded, wire);
+		} else {
+			delegate.downloadProgress(wire);
+		}
+	}
+
+	@SuppressWarnings("javadoc")
+	public DownloadProgressListener getDelegate() {
+		return delegate;
+	}
+}
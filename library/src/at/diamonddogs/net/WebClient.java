@@ -15,19 +15,31 @@
  */
 package at.diamonddogs.net;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.security.DigestInputStream;
+import java.io.RandomAccessFile;
+import java.net.MalformedURLException;
+import java.net.URL;
 import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
-import java.util.zip.GZIPInputStream;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.codec.binary.Hex;
+import org.apache.http.HttpEntity;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -39,6 +51,17 @@ import at.diamonddogs.data.adapter.ReplyAdapter.Status;
 import at.diamonddogs.data.dataobjects.TempFile;
 import at.diamonddogs.data.dataobjects.WebReply;
 import at.diamonddogs.data.dataobjects.WebRequest;
+import at.diamonddogs.data.dataobjects.WebRequest.Type;
+import at.diamonddogs.exception.CircuitOpenException;
+import at.diamonddogs.exception.DeadlineExceededException;
+import at.diamonddogs.exception.WebClientException;
+import at.diamonddogs.net.coding.ContentCodingRegistry;
+import at.diamonddogs.net.coding.GzipRequestEntity;
+import at.diamonddogs.net.retry.FixedIntervalRetryPolicy;
+import at.diamonddogs.net.retry.RetryPolicy;
+import at.diamonddogs.util.ByteArrayPool;
+import at.diamonddogs.util.PresizedByteArrayOutputStream;
+import at.diamonddogs.util.WorkerQueue;
 
 /**
  * An abstract {@link WebClient} to be used when implementing new
@@ -48,11 +71,6 @@ public abstract class WebClient implements Callable<ReplyAdapter> {
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(WebClient.class);
 
-	/**
-	 * The read buffer size
-	 */
-	private static final int READ_BUFFER_SIZE = 4096;
-
 	/**
 	 * The {@link WebRequest} executed by this {@link WebClient}
 	 */
@@ -74,8 +92,506 @@ public abstract class WebClient implements Callable<ReplyAdapter> {
 	 */
 	protected boolean followProtocolRedirect;
 
+	/**
+	 * The number of bytes of the current {@link TempFile} download that have
+	 * been written to disk
+	 */
+	private long persistedBytes = 0;
+
+	/**
+	 * The length of the {@link TempFile} before the download started, -1 if
+	 * the download has not been started yet
+	 */
+	private long initialFileLength = -1;
+
+	/**
+	 * The ETag or Last-Modified value of the {@link TempFile} download, used to
+	 * verify that a resumed download still refers to the same file
+	 */
+	private String resumeValidator;
+
+	/**
+	 * The MD5 digest of the {@link TempFile} download, kept across resumed
+	 * attempts
+	 */
+	private MessageDigest downloadDigest;
+
+	/**
+	 * Runs cancel hooks, so that closing sockets never blocks the thread that
+	 * cancelled a {@link WebRequest}, created on demand
+	 */
+	private static ThreadPoolExecutor canceller;
+
+	/**
+	 * Guards {@link WebClient#cancelHook}
+	 */
+	private final Object cancelLock = new Object();
+
+	/**
+	 * Aborts the I/O of the attempt currently in progress
+	 */
+	private Runnable cancelHook;
+
 	protected abstract void buildHeader();
 
+	/**
+	 * Runs a single attempt of the {@link WebRequest}, without retrying and
+	 * without informing the {@link WebClientReplyListener}.
+	 * {@link WebClient}s that implement this method get retries according to
+	 * the {@link RetryPolicy} of the {@link WebRequest} for free, see
+	 * {@link WebClient#call()} and {@link WebClient#submit(WorkerQueue)}.
+	 * 
+	 * @return the {@link ReplyAdapter} of the attempt
+	 */
+	protected abstract ReplyAdapter execute();
+
+	/**
+	 * Runs the {@link WebRequest} on the calling thread, blocking the thread
+	 * while waiting for retries
+	 */
+	@Override
+	public ReplyAdapter call() {
+		if (webRequest == null) {
+			throw new WebClientException("WebRequest must not be null!");
+		}
+		getRetryPolicy().onRequest(webRequest);
+		int attempt = 1;
+		ReplyAdapter listenerReply = runAttempt();
+		long delay;
+		while ((delay = getRetryDelay(attempt, listenerReply)) >= 0) {
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				LOGGER.info("Interrupted while waiting for a retry of: " + webRequest, e);
+				break;
+			}
+			attempt++;
+			listenerReply = runAttempt();
+		}
+		if (webClientReplyListener != null) {
+			webClientReplyListener.onWebReply(this, listenerReply);
+		}
+		return listenerReply;
+	}
+
+	/**
+	 * Runs the {@link WebRequest} on a {@link WorkerQueue}. Every attempt is a
+	 * separate task, retries are scheduled, so that no worker thread is
+	 * blocked while waiting for a retry. Attempts are queued with the
+	 * {@link at.diamonddogs.data.dataobjects.NonTimeCriticalTask.PRIORITY}
+	 * and deadline of the {@link WebRequest}.
+	 * 
+	 * @param workerQueue
+	 *            the {@link WorkerQueue} that runs the attempts
+	 * @return a {@link Future} that allows the caller to wait for the result
+	 *         or <code>null</code> if the {@link WorkerQueue} has been shut
+	 *         down
+	 */
+	public Future<ReplyAdapter> submit(WorkerQueue workerQueue) {
+		if (webRequest == null) {
+			throw new WebClientException("WebRequest must not be null!");
+		}
+		getRetryPolicy().onRequest(webRequest);
+		AttemptTask attemptTask = new AttemptTask(workerQueue);
+		if (!attemptTask.start()) {
+			return null;
+		}
+		return attemptTask.future;
+	}
+
+	/**
+	 * Cancels the {@link WebRequest} and aborts the I/O of the attempt in
+	 * progress by running the cancel hook, so that a worker thread blocked in
+	 * a connect or read is freed immediately instead of once the timeout
+	 * expires. The hook is run asynchronously, this method never blocks.
+	 */
+	public void cancel() {
+		if (webRequest != null) {
+			webRequest.setCancelled(true);
+		}
+		Runnable hook;
+		synchronized (cancelLock) {
+			hook = cancelHook;
+			cancelHook = null;
+		}
+		if (hook != null) {
+			runCancelHook(hook);
+		}
+	}
+
+	/**
+	 * Registers the hook that aborts the I/O of the current attempt, must be
+	 * called by {@link WebClient}s as soon as the connection of an attempt
+	 * has been created. If the {@link WebRequest} has already been cancelled,
+	 * the hook is run immediately.
+	 * 
+	 * @param hook
+	 *            a {@link Runnable} that closes the connection or socket of
+	 *            the attempt
+	 */
+	protected void setCancelHook(Runnable hook) {
+		synchronized (cancelLock) {
+			if (webRequest == null || !webRequest.isCancelled()) {
+				cancelHook = hook;
+				return;
+			}
+		}
+		runCancelHook(hook);
+	}
+
+	/**
+	 * Removes the cancel hook once the I/O of an attempt is complete
+	 */
+	protected void clearCancelHook() {
+		synchronized (cancelLock) {
+			cancelHook = null;
+		}
+	}
+
+	private void runCancelHook(final Runnable hook) {
+		LOGGER.debug("Aborting connection of cancelled request: " + (webRequest == null ? "" : webRequest.getUrl()));
+		getCanceller().execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					hook.run();
+				} catch (Throwable tr) {
+					LOGGER.debug("Could not abort connection", tr);
+				}
+			}
+		});
+	}
+
+	private static synchronized ThreadPoolExecutor getCanceller() {
+		if (canceller == null) {
+			canceller = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 30, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+					new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "WebClient-cancel");
+							t.setDaemon(true);
+							return t;
+						}
+					});
+		}
+		return canceller;
+	}
+
+	/**
+	 * Runs a single attempt, unless the deadline of the {@link WebRequest} has
+	 * passed or the circuit of the host is open
+	 * 
+	 * @return the {@link ReplyAdapter} of the attempt
+	 */
+	private ReplyAdapter runAttempt() {
+		ReplyAdapter listenerReply = checkDeadline();
+		if (listenerReply != null) {
+			return listenerReply;
+		}
+		listenerReply = checkCircuit();
+		if (listenerReply != null) {
+			return listenerReply;
+		}
+		listenerReply = checkDeadline(execute());
+		recordCircuit(listenerReply);
+		return listenerReply;
+	}
+
+	/**
+	 * Must be called before every attempt, so that {@link WebRequest}s whose
+	 * deadline passed while they were queued or waiting for a retry never
+	 * reach the network
+	 * 
+	 * @return <code>null</code> if the attempt may be made, a
+	 *         {@link ReplyAdapter} with {@link Status#DEADLINE_EXCEEDED}
+	 *         otherwise
+	 */
+	protected ReplyAdapter checkDeadline() {
+		if (!webRequest.isDeadlineExceeded()) {
+			return null;
+		}
+		LOGGER.info("Deadline exceeded, not running: " + webRequest.getUrl());
+		return createListenerReply(webRequest, null, new DeadlineExceededException(webRequest.getDeadline(), null),
+				Status.DEADLINE_EXCEEDED);
+	}
+
+	/**
+	 * Must be called after every attempt, reports failed attempts that ended
+	 * after the deadline of the {@link WebRequest} as
+	 * {@link Status#DEADLINE_EXCEEDED}, since their timeouts have been
+	 * shortened to the remaining time
+	 * 
+	 * @param listenerReply
+	 *            the result of the attempt
+	 * @return the result of the attempt or a {@link ReplyAdapter} with
+	 *         {@link Status#DEADLINE_EXCEEDED}
+	 */
+	protected ReplyAdapter checkDeadline(ReplyAdapter listenerReply) {
+		if (listenerReply.getStatus() != Status.FAILED || !webRequest.isDeadlineExceeded()) {
+			return listenerReply;
+		}
+		LOGGER.info("Deadline exceeded: " + webRequest.getUrl());
+		return createListenerReply(webRequest, null, new DeadlineExceededException(webRequest.getDeadline(),
+				listenerReply.getThrowable()), Status.DEADLINE_EXCEEDED);
+	}
+
+	/**
+	 * Returns the connection timeout of the current attempt, i.e. the
+	 * connection timeout of the {@link WebRequest}, shortened to the time
+	 * left until its deadline
+	 * 
+	 * @return the connection timeout in ms
+	 */
+	protected int getConnectionTimeout() {
+		return limitToDeadline(webRequest.getConnectionTimeout());
+	}
+
+	/**
+	 * Returns the read timeout of the current attempt, i.e. the read timeout
+	 * of the {@link WebRequest}, shortened to the time left until its
+	 * deadline
+	 * 
+	 * @return the read timeout in ms
+	 */
+	protected int getReadTimeout() {
+		return limitToDeadline(webRequest.getReadTimeout());
+	}
+
+	/**
+	 * Must be called while a body is read, the read timeout only limits each
+	 * read, a slowly trickling body would otherwise run past the deadline
+	 * 
+	 * @throws DeadlineExceededException
+	 *             if the deadline of the {@link WebRequest} has passed
+	 */
+	protected void checkTransferDeadline() {
+		if (webRequest.isDeadlineExceeded()) {
+			LOGGER.info("Deadline exceeded while reading: " + webRequest.getUrl());
+			throw new DeadlineExceededException(webRequest.getDeadline(), null);
+		}
+	}
+
+	private int limitToDeadline(int timeout) {
+		long remaining = webRequest.getRemainingTime();
+		if (remaining == Long.MAX_VALUE) {
+			return timeout;
+		}
+		// 0 would disable the timeout
+		int limit = (int) Math.max(1, Math.min(Integer.MAX_VALUE, remaining));
+		return timeout <= 0 ? limit : Math.min(timeout, limit);
+	}
+
+	/**
+	 * Must be called before every attempt, asks the {@link CircuitBreaker}
+	 * whether the host of the {@link WebRequest} may be contacted
+	 * 
+	 * @return <code>null</code> if the attempt may be made, a
+	 *         {@link ReplyAdapter} with {@link Status#CIRCUIT_OPEN} otherwise
+	 */
+	protected ReplyAdapter checkCircuit() {
+		String host = webRequest.getUrl().getHost();
+		if (CircuitBreaker.getInstance().allowRequest(host)) {
+			return null;
+		}
+		LOGGER.info("Circuit open, not running: " + webRequest.getUrl());
+		return createListenerReply(webRequest, null, new CircuitOpenException(host), Status.CIRCUIT_OPEN);
+	}
+
+	/**
+	 * Must be called after every attempt that has been allowed by
+	 * {@link WebClient#checkCircuit()}
+	 * 
+	 * @param listenerReply
+	 *            the result of the attempt
+	 */
+	protected void recordCircuit(ReplyAdapter listenerReply) {
+		// timeouts shortened by the deadline say nothing about the host
+		boolean cancelled = webRequest.isCancelled() || listenerReply.getStatus() == Status.DEADLINE_EXCEEDED
+				|| listenerReply.getThrowable() instanceof CancellationException
+				|| listenerReply.getThrowable() instanceof InterruptedException;
+		CircuitBreaker.getInstance().onResult(webRequest.getUrl().getHost(), listenerReply, cancelled);
+	}
+
+	/**
+	 * Returns the {@link URL} the first request of an attempt is sent to, i.e.
+	 * the {@link URL} of the {@link WebRequest} or, if it has been moved
+	 * permanently, the {@link URL} it has been moved to
+	 * 
+	 * @return the canonical {@link URL} of the {@link WebRequest}
+	 */
+	protected URL getRequestUrl() {
+		return RedirectStore.getInstance().resolve(webRequest.getUrl());
+	}
+
+	/**
+	 * Decides whether a reply redirects and whether the redirect is followed.
+	 * Redirects are followed if the {@link WebRequest} follows redirects, the
+	 * maximum number of redirects has not been reached and the target uses
+	 * the same protocol or protocol redirects are allowed. 307 and 308 resend
+	 * the {@link HttpEntity}, they are only followed if it is repeatable.
+	 * Clients must call {@link WebClient#onRedirectFollowed(URL, URL, int)}
+	 * once they actually follow the redirect.
+	 * 
+	 * @param url
+	 *            the {@link URL} that has been requested
+	 * @param type
+	 *            the {@link Type} of the request
+	 * @param statusCode
+	 *            the status code of the reply
+	 * @param replyHeader
+	 *            the header of the reply
+	 * @param redirectCount
+	 *            the number of redirects that have been followed so far
+	 * @return the {@link URL} to follow the redirect to or <code>null</code>
+	 *         if the reply is not a redirect that should be followed
+	 */
+	protected URL getRedirectTarget(URL url, Type type, int statusCode, Map<String, List<String>> replyHeader, int redirectCount) {
+		if (!isRedirect(statusCode) || !webRequest.isFollowRedirects()) {
+			return null;
+		}
+		if (redirectCount >= webRequest.getMaxRedirects()) {
+			LOGGER.info("Not following more than " + webRequest.getMaxRedirects() + " redirects: " + webRequest.getUrl());
+			return null;
+		}
+		String location = getHeaderValue(replyHeader, "Location");
+		if (location == null) {
+			return null;
+		}
+		URL target;
+		try {
+			target = new URL(url, location);
+		} catch (MalformedURLException e) {
+			LOGGER.info("Invalid redirect location: " + location);
+			return null;
+		}
+		String protocol = target.getProtocol();
+		if (!"http".equalsIgnoreCase(protocol) && !"https".equalsIgnoreCase(protocol)) {
+			return null;
+		}
+		if (!protocol.equalsIgnoreCase(url.getProtocol()) && !followProtocolRedirect) {
+			return null;
+		}
+		HttpEntity entity = webRequest.getHttpEntity();
+		if (getRedirectType(type, statusCode) == Type.POST && entity != null && !entity.isRepeatable()) {
+			LOGGER.info("Not following " + statusCode + ", the HttpEntity cannot be resent: " + webRequest.getUrl());
+			return null;
+		}
+		return target;
+	}
+
+	/**
+	 * Must be called once a redirect returned by
+	 * {@link WebClient#getRedirectTarget(URL, Type, int, Map, int)} is
+	 * followed, permanent redirects are remembered by the
+	 * {@link RedirectStore}
+	 * 
+	 * @param url
+	 *            the {@link URL} that has been redirected
+	 * @param target
+	 *            the {@link URL} the redirect is followed to
+	 * @param statusCode
+	 *            the status code of the redirect
+	 */
+	protected void onRedirectFollowed(URL url, URL target, int statusCode) {
+		RedirectStore.getInstance().onRedirect(url, target, statusCode);
+		LOGGER.debug("Following " + statusCode + " redirect to: " + target);
+	}
+
+	/**
+	 * Returns the {@link Type} a redirect is followed with. 307 and 308 keep
+	 * the method, 301 and 302 turn POST into GET like browsers do, 303 turns
+	 * everything but HEAD into GET.
+	 * 
+	 * @param type
+	 *            the {@link Type} of the redirected request
+	 * @param statusCode
+	 *            the status code of the redirect
+	 * @return the {@link Type} of the request to the redirect target
+	 */
+	protected Type getRedirectType(Type type, int statusCode) {
+		if (statusCode == HTTPStatus.HTTP_TEMP_REDIRECT || statusCode == HTTPStatus.HTTP_PERM_REDIRECT || type == Type.HEAD) {
+			return type;
+		}
+		return Type.GET;
+	}
+
+	private static boolean isRedirect(int statusCode) {
+		switch (statusCode) {
+		case HTTPStatus.HTTP_MOVED_PERM:
+		case HTTPStatus.HTTP_MOVED_TEMP:
+		case HTTPStatus.HTTP_SEE_OTHER:
+		case HTTPStatus.HTTP_TEMP_REDIRECT:
+		case HTTPStatus.HTTP_PERM_REDIRECT:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the {@link RetryPolicy} of the {@link WebRequest}
+	 * 
+	 * @return the {@link RetryPolicy}, never <code>null</code>
+	 */
+	protected RetryPolicy getRetryPolicy() {
+		RetryPolicy retryPolicy = webRequest.getRetryPolicy();
+		return retryPolicy == null ? FixedIntervalRetryPolicy.getInstance() : retryPolicy;
+	}
+
+	/**
+	 * Asks the {@link RetryPolicy} of the {@link WebRequest} whether an attempt
+	 * should be retried. Cancelled {@link WebRequest}s, {@link WebRequest}s
+	 * rejected by the {@link CircuitBreaker}, {@link WebRequest}s whose
+	 * {@link HttpEntity} cannot be sent twice and retries that would start
+	 * after the deadline of the {@link WebRequest} are never retried.
+	 * 
+	 * @param attempt
+	 *            the number of attempts that have been made, starting at 1
+	 * @param listenerReply
+	 *            the result of the attempt
+	 * @return the delay of the retry in ms or {@link RetryPolicy#NO_RETRY}
+	 */
+	protected long getRetryDelay(int attempt, ReplyAdapter listenerReply) {
+		if (webRequest.isCancelled() || listenerReply.getStatus() == Status.CIRCUIT_OPEN
+				|| listenerReply.getStatus() == Status.DEADLINE_EXCEEDED) {
+			return RetryPolicy.NO_RETRY;
+		}
+		HttpEntity entity = webRequest.getHttpEntity();
+		if (webRequest.getRequestType() == Type.POST && entity != null && !entity.isRepeatable()) {
+			return RetryPolicy.NO_RETRY;
+		}
+		WebReply reply = (WebReply) listenerReply.getReply();
+		Throwable throwable = listenerReply.getStatus() == Status.OK ? null : listenerReply.getThrowable();
+		long delay = getRetryPolicy().getRetryDelay(webRequest, attempt, reply, throwable);
+		if (delay >= 0 && delay >= webRequest.getRemainingTime()) {
+			LOGGER.info("Not retrying " + webRequest.getUrl() + ", the retry would start after the deadline");
+			return RetryPolicy.NO_RETRY;
+		}
+		if (delay >= 0) {
+			LOGGER.info("Retrying " + webRequest.getUrl() + " in " + delay + "ms, attempt: " + attempt);
+		}
+		return delay;
+	}
+
+	/**
+	 * Returns the {@link HttpEntity} that is sent, i.e. the {@link HttpEntity}
+	 * of the {@link WebRequest}, gzip compressed if the {@link WebRequest} asks
+	 * for it
+	 * 
+	 * @return the {@link HttpEntity} to send or <code>null</code>
+	 */
+	protected HttpEntity getRequestEntity() {
+		HttpEntity entity = webRequest.getHttpEntity();
+		if (entity == null || !webRequest.isCompressRequestBody() || entity.getContentEncoding() != null) {
+			return entity;
+		}
+		long length = entity.getContentLength();
+		if (length >= 0 && length < webRequest.getCompressionThreshold()) {
+			return entity;
+		}
+		return new GzipRequestEntity(entity);
+	}
+
 	/**
 	 * Constructs a {@link WebClient}
 	 * 
@@ -90,7 +606,6 @@ public abstract class WebClient implements Callable<ReplyAdapter> {
 		} catch (Throwable th) {
 			followProtocolRedirect = false;
 		}
-
 	}
 
 	protected WebReply handleResponseOk(InputStream i, int statusCode, Map<String, List<String>> replyHeader) throws IOException {
@@ -98,7 +613,7 @@ public abstract class WebClient implements Callable<ReplyAdapter> {
 		reply.setHttpStatusCode(statusCode);
 		reply.setReplyHeader(replyHeader);
 		if (webRequest.getTmpFile().first) {
-			saveData(i);
+			saveData(i, statusCode, replyHeader);
 			return reply;
 		}
 		return getData(i, reply);
@@ -113,28 +628,30 @@ public abstract class WebClient implements Callable<ReplyAdapter> {
 		return webRequest;
 	}
 
-	private void saveData(InputStream i) throws IOException {
+	private void saveData(InputStream i, int statusCode, Map<String, List<String>> replyHeader) throws IOException {
 		if (i == null) {
 			return;
 		}
 		TempFile tmp = webRequest.getTmpFile().second;
 		FileOutputStream fos = null;
+		byte[] buffer = null;
 		try {
 
-			MessageDigest md = MessageDigest.getInstance("MD5");
-			DigestInputStream dis = new DigestInputStream(i, md);
-
 			File file = new File(tmp.getPath());
 			LOGGER.debug(file.getAbsolutePath() + "can write: " + file.canWrite());
-			if (file.exists() && !tmp.isAppend()) {
-				file.delete();
-			}
-			byte buffer[] = new byte[READ_BUFFER_SIZE];
-			fos = new FileOutputStream(file, tmp.isAppend());
+			boolean resumed = prepareDownload(file, tmp, statusCode, replyHeader);
+			i = shapeBandwidth(i);
+			buffer = ByteArrayPool.getInstance().acquire();
+			fos = new FileOutputStream(file, tmp.isAppend() || resumed);
 			int bytesRead = 0;
-			while ((bytesRead = dis.read(buffer)) != -1) {
+			while ((bytesRead = i.read(buffer)) != -1) {
+				checkTransferDeadline();
 				if (!webRequest.isCancelled()) {
 					fos.write(buffer, 0, bytesRead);
+					// only bytes that have been written are part of the digest,
+					// so that a resumed download continues where this one ended
+					downloadDigest.update(buffer, 0, bytesRead);
+					persistedBytes += bytesRead;
 					publishDownloadProgress(bytesRead);
 				} else {
 					LOGGER.info("Cancelled Download");
@@ -143,18 +660,22 @@ public abstract class WebClient implements Callable<ReplyAdapter> {
 			}
 			fos.flush();
 			fos.close();
+			fos = null;
 
 			if (webRequest.isCancelled()) {
 				LOGGER.info("delete file due to canclled download: " + file.getName());
 				file.delete();
+				discardResumeState();
 			} else {
 
 				if (tmp.isUseChecksum()) {
-					String md5 = new String(Hex.encodeHex(md.digest()));
+					String md5 = new String(Hex.encodeHex(downloadDigest.digest()));
 
 					LOGGER.debug("md5 check, original: " + tmp.getChecksum() + " file: " + md5);
 
 					if (!md5.equalsIgnoreCase(tmp.getChecksum())) {
+						// resuming a corrupt download is pointless
+						discardResumeState();
 						throw new IOException("Error while downloading File.\nOriginal Checksum: " + tmp.getChecksum() + "\nChecksum: "
 								+ md5);
 					}
@@ -162,87 +683,328 @@ public abstract class WebClient implements Callable<ReplyAdapter> {
 			}
 
 		} catch (Exception e) {
-			if (fos != null && tmp.isAppend()) {
+			// the file needs to be closed in any case, otherwise the download
+			// cannot be resumed
+			if (fos != null) {
 				fos.flush();
 				fos.close();
 			}
-			LOGGER.error("Failed download", e);
+			LOGGER.error("Failed download, persisted bytes: " + persistedBytes, e);
 			// Please do not do that - that hides the original error!
 			throw new IOException(e.getMessage());
 
 			// Who ever changed this... new IOException(e) is API level 9!!! and
 			// gives a nice NoSuchMethodException :)
 			// throw new IOException(e);
+		} finally {
+			ByteArrayPool.getInstance().release(buffer);
+			flushDownloadProgress();
+		}
+	}
+
+	/**
+	 * Prepares the {@link TempFile} for the download. A partial reply is
+	 * appended to the bytes persisted by the previous attempt, a full reply
+	 * restarts the download.
+	 * 
+	 * @return <code>true</code> if a previous download is being resumed
+	 */
+	private boolean prepareDownload(File file, TempFile tmp, int statusCode, Map<String, List<String>> replyHeader)
+			throws IOException, NoSuchAlgorithmException {
+		if (statusCode == HTTPStatus.HTTP_PARTIAL && isResumable()) {
+			long start = getContentRangeStart(replyHeader);
+			String validator = getValidator(replyHeader);
+			if (start != persistedBytes || (validator != null && !validator.equals(resumeValidator))) {
+				discardResumeState();
+				throw new IOException("Unexpected partial reply, Content-Range start: " + start + ", expected: " + persistedBytes
+						+ ", validator: " + validator + ", expected: " + resumeValidator);
+			}
+			LOGGER.info("Resuming download of " + file.getName() + " at " + persistedBytes);
+			return true;
+		}
+
+		if (initialFileLength < 0) {
+			initialFileLength = tmp.isAppend() && file.exists() ? file.length() : 0;
+		} else if (persistedBytes > 0 && tmp.isAppend()) {
+			// the server did not honor the range request, drop the bytes of
+			// the previous attempt
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				raf.setLength(initialFileLength);
+			} finally {
+				raf.close();
+			}
+		}
+		if (file.exists() && !tmp.isAppend()) {
+			file.delete();
+		}
+		persistedBytes = 0;
+		downloadDigest = MessageDigest.getInstance("MD5");
+		// a partial reply to a range specified by the user cannot be resumed
+		resumeValidator = statusCode == HTTPStatus.HTTP_OK ? getValidator(replyHeader) : null;
+		return false;
+	}
+
+	/**
+	 * Checks if an interrupted {@link TempFile} download can be resumed by
+	 * the next attempt. Resuming requires a validator (strong ETag or
+	 * Last-Modified), so that the server can tell whether the file has changed
+	 * in the meantime.
+	 * 
+	 * @return <code>true</code> if the next attempt should request the
+	 *         remaining bytes only
+	 */
+	protected boolean isResumable() {
+		return webRequest != null && webRequest.getTmpFile().first && !webRequest.isCancelled() && persistedBytes > 0
+				&& resumeValidator != null;
+	}
+
+	/**
+	 * Returns the header fields required to resume an interrupted
+	 * {@link TempFile} download. {@link WebClient}s must add these fields to
+	 * every request.
+	 * 
+	 * @return the header fields or <code>null</code> if there is nothing to
+	 *         resume
+	 */
+	protected Map<String, String> getResumeHeader() {
+		if (!isResumable()) {
+			return null;
+		}
+		Map<String, String> header = new HashMap<String, String>();
+		header.put("Range", "bytes=" + persistedBytes + "-");
+		header.put("If-Range", resumeValidator);
+		// ranges refer to the identity encoding
+		header.put("Accept-Encoding", "identity");
+		return header;
+	}
+
+	/**
+	 * Must be called by {@link WebClient}s before handling a reply. A resume
+	 * attempt that has been rejected by the server throws an
+	 * {@link IOException}, so that the next attempt downloads the whole file.
+	 * 
+	 * @param statusCode
+	 *            the http status code of the reply
+	 * @throws IOException
+	 *             if the range requested to resume a download is not
+	 *             satisfiable
+	 */
+	protected void checkRangeSatisfiable(int statusCode) throws IOException {
+		if (statusCode == HTTPStatus.HTTP_RANGE_NOT_SATISFIABLE && isResumable()) {
+			discardResumeState();
+			throw new IOException("Range not satisfiable, restarting download: " + webRequest.getUrl());
+		}
+	}
+
+	private void discardResumeState() {
+		resumeValidator = null;
+	}
+
+	private String getValidator(Map<String, List<String>> replyHeader) {
+		if (webRequest.getHeader() != null && webRequest.getHeader().containsKey("Range")) {
+			return null;
+		}
+		String etag = getHeaderValue(replyHeader, "ETag");
+		if (etag != null && !etag.startsWith("W/")) {
+			return etag;
+		}
+		return getHeaderValue(replyHeader, "Last-Modified");
+	}
+
+	private long getContentRangeStart(Map<String, List<String>> replyHeader) {
+		// bytes <start>-<end>/<total>
+		String contentRange = getHeaderValue(replyHeader, "Content-Range");
+		if (contentRange == null) {
+			return -1;
+		}
+		try {
+			String range = contentRange.trim();
+			if (range.startsWith("bytes")) {
+				range = range.substring(5).trim();
+			}
+			return Long.parseLong(range.substring(0, range.indexOf('-')).trim());
+		} catch (RuntimeException e) {
+			return -1;
 		}
 	}
 
+	/**
+	 * Shapes reading the reply according to the
+	 * {@link BandwidthLimiter.TrafficClass} of the
+	 * {@link WebRequest}, see {@link BandwidthLimiter}
+	 * 
+	 * @param i
+	 *            the stream read from the network
+	 * @return the shaped stream
+	 */
+	protected InputStream shapeBandwidth(InputStream i) {
+		return BandwidthLimiter.getInstance().shape(i, webRequest.getTrafficClass());
+	}
+
 	private WebReply getData(InputStream i, WebReply reply) throws IOException {
 		if (i == null) {
 			return reply;
 		}
 
 		if (webRequest.isGetStream()) {
-			if (isGzipEncoded(reply)) {
-				reply.setInputStream(new GZIPInputStream(i));
-			} else {
-				reply.setInputStream(i);
-			}
+			reply.setInputStream(decodeContent(shapeBandwidth(i), reply));
 			return reply;
 		}
 
-		byte buffer[] = new byte[READ_BUFFER_SIZE];
+		WireCountingInputStream wire = new WireCountingInputStream(shapeBandwidth(i));
+		InputStream toRead = decodeContent(wire, reply);
+		boolean encoded = toRead != wire;
 
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-
-		InputStream toRead;
-		if (isGzipEncoded(reply)) {
-			LOGGER.info("Reply is gzip encoded! " + reply);
-			try {
-				toRead = new GZIPInputStream(i);
-			} catch (Throwable tr) {
-				LOGGER.warn(
-						"Problem with GZIP reply, using normal input stream! This issue can be caused by an empty body (i.e. HEAD request)",
-						tr);
-				toRead = i;
+		// the content length of an encoded reply is the compressed size, it
+		// is only used as a lower bound in that case. Bodiless replies may
+		// carry the content length of the entity they describe.
+		PresizedByteArrayOutputStream baos = new PresizedByteArrayOutputStream(encoded || !hasBody(reply) ? -1
+				: getContentLength(reply));
+		byte[] buffer = ByteArrayPool.getInstance().acquire();
+		try {
+			int bytesRead = 0;
+			long wireBytes = 0;
+			while ((bytesRead = toRead.read(buffer)) != -1) {
+				checkTransferDeadline();
+				if (!webRequest.isCancelled()) {
+					baos.write(buffer, 0, bytesRead);
+					publishDownloadProgress(bytesRead, wire.count - wireBytes);
+					wireBytes = wire.count;
+				} else {
+					break;
+				}
 			}
-		} else {
-			toRead = i;
+		} finally {
+			ByteArrayPool.getInstance().release(buffer);
+			flushDownloadProgress();
 		}
+		reply.setData(baos.getBytes());
 
-		int bytesRead = 0;
-		while ((bytesRead = toRead.read(buffer)) != -1) {
-			if (!webRequest.isCancelled()) {
-				baos.write(buffer, 0, bytesRead);
-				publishDownloadProgress(bytesRead);
-			} else {
-				break;
+		try {
+			toRead.close();
+		} catch (Exception e) {
+		}
+		return reply;
+	}
+
+	/**
+	 * Checks whether a reply can have a body, replies to HEAD requests, 1xx,
+	 * 204 and 304 replies never have one
+	 * 
+	 * @param reply
+	 *            the {@link WebReply}
+	 * @return <code>true</code> if the reply may have a body
+	 */
+	private boolean hasBody(WebReply reply) {
+		int statusCode = reply.getHttpStatusCode();
+		return webRequest.getRequestType() != Type.HEAD && (statusCode < 100 || statusCode >= 200)
+				&& statusCode != HTTPStatus.HTTP_NO_CONTENT && statusCode != HTTPStatus.HTTP_NOT_MODIFIED;
+	}
+
+	/**
+	 * Wraps the body of a reply with the decoders of its Content-Encoding.
+	 * Codings are undone in the reverse order they have been applied in. A
+	 * reply with an unsupported coding is returned as is.
+	 * 
+	 * @param i
+	 *            the body as received
+	 * @param reply
+	 *            the {@link WebReply}
+	 * @return the decoded body
+	 */
+	private InputStream decodeContent(InputStream i, WebReply reply) {
+		List<String> header = null;
+		for (Map.Entry<String, List<String>> entry : reply.getReplyHeader().entrySet()) {
+			if ("Content-Encoding".equalsIgnoreCase(entry.getKey())) {
+				header = entry.getValue();
+			}
+		}
+		if (header == null) {
+			return i;
+		}
+		List<String> codings = new ArrayList<String>();
+		for (String value : header) {
+			for (String coding : value.split(",")) {
+				coding = coding.trim();
+				if (coding.length() > 0 && !"identity".equalsIgnoreCase(coding)) {
+					codings.add(coding);
+				}
 			}
 		}
-		reply.setData(baos.toByteArray());
+		ContentCodingRegistry registry = ContentCodingRegistry.getInstance();
+		for (String coding : codings) {
+			if (registry.get(coding) == null) {
+				LOGGER.warn("Unsupported Content-Encoding, using normal input stream: " + codings);
+				return i;
+			}
+		}
+		InputStream decoded = i;
 		try {
-			baos.close();
-		} catch (Exception e) {
+			for (int index = codings.size() - 1; index >= 0; index--) {
+				decoded = registry.get(codings.get(index)).decode(decoded);
+			}
+			LOGGER.debug("Reply is encoded: " + codings);
+			return decoded;
+		} catch (IOException e) {
+			LOGGER.warn("Problem with encoded reply, using normal input stream! This issue can be caused by an empty body (i.e. HEAD request)", e);
+			return i;
+		}
+	}
+
+	/**
+	 * Returns the value of the Accept-Encoding header field. Downloads to a
+	 * {@link TempFile} are stored as received and therefore request the
+	 * identity encoding.
+	 * 
+	 * @return the value of the Accept-Encoding header field
+	 */
+	protected String getAcceptEncoding() {
+		if (webRequest.getTmpFile().first) {
+			return "identity";
 		}
+		return ContentCodingRegistry.getInstance().getAcceptEncoding();
+	}
 
+	/**
+	 * Returns the Content-Length of a {@link WebReply}
+	 * 
+	 * @param reply
+	 *            the {@link WebReply}
+	 * @return the Content-Length or -1 if unknown
+	 */
+	protected long getContentLength(WebReply reply) {
+		String contentLength = getHeaderValue(reply.getReplyHeader(), "Content-Length");
+		if (contentLength == null) {
+			return -1;
+		}
 		try {
-			toRead.close();
-		} catch (Exception e) {
+			return Long.parseLong(contentLength.trim());
+		} catch (NumberFormatException e) {
+			return -1;
 		}
-		return reply;
 	}
 
-	private boolean isGzipEncoded(WebReply reply) {
-		if (!reply.getReplyHeader().containsKey("Content-Encoding")) {
-			return false;
+	/**
+	 * Returns the first value of a header field, the name of the field is
+	 * matched case insensitive
+	 * 
+	 * @param header
+	 *            the header
+	 * @param field
+	 *            the name of the field
+	 * @return the first value of the field or <code>null</code>
+	 */
+	public static String getHeaderValue(Map<String, List<String>> header, String field) {
+		if (header == null) {
+			return null;
 		}
-		List<String> encodings = reply.getReplyHeader().get("Content-Encoding");
-		for (String encoding : encodings) {
-			LOGGER.debug("Encoding: " + encoding);
-			if (encoding.contains("gzip")) {
-				return true;
+		for (Map.Entry<String, List<String>> entry : header.entrySet()) {
+			if (field.equalsIgnoreCase(entry.getKey()) && entry.getValue() != null && !entry.getValue().isEmpty()) {
+				return entry.getValue().get(0);
 			}
 		}
-		return false;
+		return null;
 	}
 
 	protected void publishFileSize(long size) {
@@ -252,8 +1014,36 @@ public abstract class WebClient implements Callable<ReplyAdapter> {
 	}
 
 	protected void publishDownloadProgress(long progress) {
-		if (downloadProgressListener != null) {
-			downloadProgressListener.downloadProgress(progress);
+		publishDownloadProgress(progress, progress);
+	}
+
+	/**
+	 * Publishes progress that has been held back by the
+	 * {@link ThrottledProgressListener}, must be called once a download has
+	 * ended
+	 */
+	protected void flushDownloadProgress() {
+		if (downloadProgressListener instanceof ThrottledProgressListener) {
+			((ThrottledProgressListener) downloadProgressListener).flush();
+		}
+	}
+
+	/**
+	 * Publishes the progress of a download whose content is encoded. Plain
+	 * {@link DownloadProgressListener}s receive the bytes read from the
+	 * network, which matches the size passed to
+	 * {@link DownloadProgressListener#downloadSize(long)}.
+	 * 
+	 * @param decodedProgress
+	 *            the number of decoded bytes
+	 * @param wireProgress
+	 *            the number of bytes read from the network
+	 */
+	protected void publishDownloadProgress(long decodedProgress, long wireProgress) {
+		if (downloadProgressListener instanceof DecodingProgressListener) {
+			((DecodingProgressListener) downloadProgressListener).downloadProgress(decodedProgress, wireProgress);
+		} else if (downloadProgressListener != null) {
+			downloadProgressListener.downloadProgress(wireProgress);
 		}
 	}
 
@@ -267,6 +1057,7 @@ public abstract class WebClient implements Callable<ReplyAdapter> {
 	protected WebReply handleResponseNotOk(InputStream i, int statusCode, Map<String, List<String>> replyHeader) {
 		WebReply reply = new WebReply();
 		reply.setHttpStatusCode(statusCode);
+		reply.setReplyHeader(replyHeader);
 
 		if (i == null) {
 			reply.setData(null);
@@ -278,8 +1069,6 @@ public abstract class WebClient implements Callable<ReplyAdapter> {
 			}
 
 		}
-
-		reply.setReplyHeader(replyHeader);
 		return reply;
 	}
 
@@ -292,9 +1081,20 @@ public abstract class WebClient implements Callable<ReplyAdapter> {
 		return listenerReply;
 	}
 
-	@SuppressWarnings("javadoc")
+	/**
+	 * Sets the {@link DownloadProgressListener}. Progress is coalesced by a
+	 * {@link ThrottledProgressListener} using the default limits, unless the
+	 * listener already is a {@link ThrottledProgressListener}.
+	 * 
+	 * @param downloadProgressListener
+	 *            the {@link DownloadProgressListener}, may be <code>null</code>
+	 */
 	public void setDownloadProgressListener(DownloadProgressListener downloadProgressListener) {
-		this.downloadProgressListener = downloadProgressListener;
+		if (downloadProgressListener == null || downloadProgressListener instanceof ThrottledProgressListener) {
+			this.downloadProgressListener = downloadProgressListener;
+		} else {
+			this.downloadProgressListener = new ThrottledProgressListener(downloadProgressListener);
+		}
 	}
 
 	@SuppressWarnings("javadoc")
@@ -307,6 +1107,71 @@ public abstract class WebClient implements Callable<ReplyAdapter> {
 		this.webRequest = webRequest;
 	}
 
+	/**
+	 * Runs the attempts of a {@link WebRequest} as separate tasks on a
+	 * {@link WorkerQueue}
+	 */
+	private final class AttemptTask implements Runnable {
+
+		private final WorkerQueue workerQueue;
+
+		private final ReplyFuture future;
+
+		private int attempt = 1;
+
+		/**
+		 * The task of the attempt currently in progress
+		 */
+		private volatile FutureTask<Void> current;
+
+		private AttemptTask(WorkerQueue workerQueue) {
+			this.workerQueue = workerQueue;
+			this.future = new ReplyFuture(webRequest) {
+				@Override
+				protected void onCancel(boolean mayInterruptIfRunning) {
+					FutureTask<Void> task = current;
+					if (task != null) {
+						task.cancel(mayInterruptIfRunning);
+					}
+					if (mayInterruptIfRunning) {
+						WebClient.this.cancel();
+					}
+				}
+			};
+		}
+
+		private boolean start() {
+			current = new FutureTask<Void>(this, null);
+			return workerQueue.execute(current, webRequest);
+		}
+
+		@Override
+		public void run() {
+			if (future.isDone()) {
+				return;
+			}
+			ReplyAdapter listenerReply = runAttempt();
+			long delay = getRetryDelay(attempt, listenerReply);
+			if (delay >= 0 && !future.isDone()) {
+				attempt++;
+				boolean scheduled = workerQueue.schedule(new Runnable() {
+					@Override
+					public void run() {
+						if (!future.isDone() && !start()) {
+							future.cancel(false);
+						}
+					}
+				}, delay, webRequest);
+				if (scheduled) {
+					return;
+				}
+			}
+			if (future.set(listenerReply) && webClientReplyListener != null) {
+				webClientReplyListener.onWebReply(WebClient.this, listenerReply);
+			}
+		}
+	}
+
 	/**
 	 * Interface that needs to be implemented by every class that wished to
 	 * receive {@link WebReply} notifications
@@ -346,6 +1211,61 @@ public abstract class WebClient implements Callable<ReplyAdapter> {
 		public void downloadProgress(long progress);
 	}
 
+	/**
+	 * A {@link DownloadProgressListener} that is informed about the decoded
+	 * size of encoded replies as well. Replaces
+	 * {@link DownloadProgressListener#downloadProgress(long)}, which is not
+	 * called for instances of this interface.
+	 */
+	public interface DecodingProgressListener extends DownloadProgressListener {
+		/**
+		 * Informs listeners about the bytes read
+		 * 
+		 * @param decodedProgress
+		 *            decoded bytes read
+		 * @param wireProgress
+		 *            bytes read from the network, equals decodedProgress if
+		 *            the reply is not encoded
+		 */
+		public void downloadProgress(long decodedProgress, long wireProgress);
+	}
+
+	/**
+	 * Counts the bytes read from the network
+	 */
+	private static final class WireCountingInputStream extends FilterInputStream {
+		private long count;
+
+		private WireCountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b != -1) {
+				count++;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			int bytesRead = super.read(buffer, offset, length);
+			if (bytesRead > 0) {
+				count += bytesRead;
+			}
+			return bytesRead;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			count += skipped;
+			return skipped;
+		}
+	}
+
 	/**
 	 * Copy of HttpURLConnection, needed since we are working with multiple http
 	 * implementations and we want to have a common class with constants.
@@ -378,6 +1298,10 @@ public abstract class WebClient implements Callable<ReplyAdapter> {
 		@SuppressWarnings("javadoc")
 		public static final int HTTP_USE_PROXY = 305;
 		@SuppressWarnings("javadoc")
+		public static final int HTTP_TEMP_REDIRECT = 307;
+		@SuppressWarnings("javadoc")
+		public static final int HTTP_PERM_REDIRECT = 308;
+		@SuppressWarnings("javadoc")
 		public static final int HTTP_BAD_REQUEST = 400;
 		@SuppressWarnings("javadoc")
 		public static final int HTTP_UNAUTHORIZED = 401;
@@ -410,6 +1334,8 @@ public abstract class WebClient implements Callable<ReplyAdapter> {
 		@SuppressWarnings("javadoc")
 		public static final int HTTP_UNSUPPORTED_TYPE = 415;
 		@SuppressWarnings("javadoc")
+		public static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+		@SuppressWarnings("javadoc")
 		public static final int HTTP_INTERNAL_ERROR = 500;
 		@SuppressWarnings("javadoc")
 		public static final int HTTP_NOT_IMPLEMENTED = 501;
@@ -20,39 +20,31 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.ProtocolException;
-import java.net.SocketTimeoutException;
-import java.net.URI;
-import java.net.URISyntaxException;
+import java.net.URL;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HeaderElementIterator;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
-import org.apache.http.HttpVersion;
 import org.apache.http.NoHttpResponseException;
 import org.apache.http.client.HttpRequestRetryHandler;
-import org.apache.http.client.RedirectHandler;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpHead;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.client.params.HttpClientParams;
-import org.apache.http.conn.ClientConnectionManager;
-import org.apache.http.conn.ConnectTimeoutException;
-import org.apache.http.conn.ConnectionPoolTimeoutException;
-import org.apache.http.conn.scheme.PlainSocketFactory;
-import org.apache.http.conn.scheme.Scheme;
-import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.message.BasicHeaderElementIterator;
 import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
-import org.apache.http.params.HttpProtocolParams;
 import org.apache.http.protocol.HTTP;
 import org.apache.http.protocol.HttpContext;
 import org.slf4j.Logger;
@@ -64,15 +56,14 @@ import at.diamonddogs.data.adapter.ReplyAdapter;
 import at.diamonddogs.data.adapter.ReplyAdapter.Status;
 import at.diamonddogs.data.dataobjects.WebReply;
 import at.diamonddogs.data.dataobjects.WebRequest.Type;
+import at.diamonddogs.exception.DeadlineExceededException;
 import at.diamonddogs.exception.WebClientException;
-import at.diamonddogs.net.ssl.CustomSSLSocketFactory;
-import at.diamonddogs.net.ssl.SSLHelper;
 
 /**
  * This {@link WebClient} will be used on Froyo and below. Please do not use
  * this class directly, use {@link WebClientFactory} instead.
  */
-public class WebClientDefaultHttpClient extends WebClient implements HttpRequestRetryHandler, RedirectHandler {
+public class WebClientDefaultHttpClient extends WebClient implements HttpRequestRetryHandler {
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(WebClientDefaultHttpClient.class.getSimpleName());
 
@@ -98,7 +89,7 @@ public class WebClientDefaultHttpClient extends WebClient implements HttpRequest
 	}
 
 	@Override
-	public ReplyAdapter call() {
+	protected ReplyAdapter execute() {
 		ReplyAdapter listenerReply = null;
 		HttpResponse response = null;
 		try {
@@ -108,29 +99,30 @@ public class WebClientDefaultHttpClient extends WebClient implements HttpRequest
 				throw new WebClientException("WebRequest must not be null!");
 			}
 
-			if (webRequest.getRequestType() == Type.GET) {
-				requestBase = new HttpGet(webRequest.getUrl().toURI());
-			} else if (webRequest.getRequestType() == Type.HEAD) {
-				requestBase = new HttpHead(webRequest.getUrl().toURI());
-			} else if (webRequest.getRequestType() == Type.POST) {
-				HttpPost post = new HttpPost(webRequest.getUrl().toURI());
-
-				// we need to remove the content length header, to prevent
-				// httpClient.execute(...) from failing
-				if (webRequest.getHeader() != null) {
-					webRequest.removeHeaderField("Content-Length");
+			URL url = getRequestUrl();
+			Type type = webRequest.getRequestType();
+			int redirectCount = 0;
+			initHttpClient();
+			while (true) {
+				createRequestBase(url, type);
+				LOGGER.info("Running RequestBase: " + requestBase);
+				response = httpClient.execute(requestBase);
+				URL target = getRedirectTarget(url, type, response.getStatusLine().getStatusCode(),
+						convertHeaders(response.getAllHeaders()), redirectCount);
+				if (target == null) {
+					break;
 				}
-
-				handlePostParameters(post);
-
-				requestBase = post;
+				if (webRequest.isDeadlineExceeded()) {
+					throw new DeadlineExceededException(webRequest.getDeadline(), null);
+				}
+				// redirects are followed manually, so that permanent ones
+				// can be remembered and 307 / 308 keep their method
+				consumeContent(response);
+				onRedirectFollowed(url, target, response.getStatusLine().getStatusCode());
+				type = getRedirectType(type, response.getStatusLine().getStatusCode());
+				url = target;
+				redirectCount++;
 			}
-
-			configureConnection();
-
-			LOGGER.info("Running RequestBase: " + requestBase);
-			initHttpClient();
-			response = httpClient.execute(requestBase);
 			reply = runRequest(response);
 
 			listenerReply = createListenerReply(webRequest, reply, null, Status.OK);
@@ -140,35 +132,72 @@ public class WebClientDefaultHttpClient extends WebClient implements HttpRequest
 			listenerReply = createListenerReply(webRequest, null, tr, Status.FAILED);
 			LOGGER.info("Error running webrequest: " + webRequest.getUrl() + " status: "
 					+ (response == null ? "" : response.getStatusLine().getStatusCode()), tr);
-		}
-		if (webClientReplyListener != null) {
-			webClientReplyListener.onWebReply(this, listenerReply);
+			// the connection is in an unknown state, make sure it will not be
+			// returned to the pool
+			if (requestBase != null) {
+				requestBase.abort();
+			}
+		} finally {
+			if (webRequest == null || !webRequest.isGetStream()) {
+				clearCancelHook();
+			}
+			releaseConnection(response);
 		}
 		return listenerReply;
 	}
 
-	private void initHttpClient() {
-		CustomSSLSocketFactory sslSocketFactory = SSLHelper.getInstance().SSL_FACTORY_APACHE;
-		if (sslSocketFactory != null) {
-			SchemeRegistry registry = new SchemeRegistry();
-			registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
-			registry.register(new Scheme("https", sslSocketFactory, 443));
-			HttpParams params = new BasicHttpParams();
-			HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
-			HttpProtocolParams.setContentCharset(params, HTTP.UTF_8);
-			ClientConnectionManager ccm = new ThreadSafeClientConnManager(params, registry);
-			httpClient = new DefaultHttpClient(ccm, params);
-		} else {
-			httpClient = new DefaultHttpClient();
+	/**
+	 * Creates the {@link HttpRequestBase} of the current request
+	 * 
+	 * @param url
+	 *            the {@link URL} to request
+	 * @param type
+	 *            the {@link Type} of the request, may differ from the
+	 *            {@link Type} of the {@link WebRequest} after a redirect
+	 * @throws Throwable
+	 */
+	private void createRequestBase(URL url, Type type) throws Throwable {
+		if (type == Type.GET) {
+			requestBase = new HttpGet(url.toURI());
+		} else if (type == Type.HEAD) {
+			requestBase = new HttpHead(url.toURI());
+		} else if (type == Type.POST) {
+			HttpPost post = new HttpPost(url.toURI());
+
+			// we need to remove the content length header, to prevent
+			// httpClient.execute(...) from failing
+			if (webRequest.getHeader() != null) {
+				webRequest.removeHeaderField("Content-Length");
+			}
+
+			handlePostParameters(post);
+
+			requestBase = post;
 		}
+
+		configureConnection();
+
+		// aborting the request closes its connection, which unblocks
+		// pending connects and reads
+		final HttpRequestBase request = requestBase;
+		setCancelHook(new Runnable() {
+			@Override
+			public void run() {
+				request.abort();
+			}
+		});
+	}
+
+	private void initHttpClient() {
+		HttpClientConnectionPool pool = HttpClientConnectionPool.getInstance();
+		httpClient = new DefaultHttpClient(pool.getConnectionManager(), pool.getParams());
+		httpClient.setKeepAliveStrategy(new PoolKeepAliveStrategy(pool.getIdleTimeout()));
 		httpClient.setHttpRequestRetryHandler(this);
-		if (followProtocolRedirect) {
-			httpClient.setRedirectHandler(this);
-		}
+		httpClient.addRequestInterceptor(pool.getWarmConnectionInterceptor());
 	}
 
 	private void handlePostParameters(HttpPost post) throws Throwable {
-		HttpEntity entity = webRequest.getHttpEntity();
+		HttpEntity entity = getRequestEntity();
 
 		if (entity != null) {
 			post.setEntity(entity);
@@ -177,6 +206,7 @@ public class WebClientDefaultHttpClient extends WebClient implements HttpRequest
 
 	private WebReply runRequest(HttpResponse response) throws IOException {
 		int statusCode = response.getStatusLine().getStatusCode();
+		checkRangeSatisfiable(statusCode);
 		WebReply reply = null;
 
 		switch (statusCode) {
@@ -207,6 +237,32 @@ public class WebClientDefaultHttpClient extends WebClient implements HttpRequest
 		return reply;
 	}
 
+	/**
+	 * Consumes the remaining content of the response, which hands the
+	 * connection back to the {@link HttpClientConnectionPool}. Streamed
+	 * replies will release the connection once the stream has been closed.
+	 *
+	 * @param response
+	 *            the {@link HttpResponse} whose connection should be released
+	 */
+	private void releaseConnection(HttpResponse response) {
+		if (response == null || webRequest == null || webRequest.isGetStream()) {
+			return;
+		}
+		consumeContent(response);
+	}
+
+	private void consumeContent(HttpResponse response) {
+		HttpEntity entity = response.getEntity();
+		if (entity != null) {
+			try {
+				entity.consumeContent();
+			} catch (IOException e) {
+				LOGGER.debug("Could not consume content, connection will not be reused", e);
+			}
+		}
+	}
+
 	private void writeErrorLog(InputStream content) {
 		try {
 			FileOutputStream fos = new FileOutputStream(new File(Environment.getExternalStorageDirectory(), "errorlog.txt"));
@@ -241,9 +297,10 @@ public class WebClientDefaultHttpClient extends WebClient implements HttpRequest
 
 	private void configureConnection() throws ProtocolException {
 		HttpParams params = new BasicHttpParams();
-		HttpConnectionParams.setConnectionTimeout(params, webRequest.getConnectionTimeout());
-		HttpConnectionParams.setSoTimeout(params, webRequest.getReadTimeout());
-		HttpClientParams.setRedirecting(params, webRequest.isFollowRedirects());
+		HttpConnectionParams.setConnectionTimeout(params, getConnectionTimeout());
+		HttpConnectionParams.setSoTimeout(params, getReadTimeout());
+		// redirects are followed by execute()
+		HttpClientParams.setRedirecting(params, false);
 		requestBase.setParams(params);
 		buildHeader();
 	}
@@ -260,49 +317,54 @@ public class WebClientDefaultHttpClient extends WebClient implements HttpRequest
 				}
 			}
 		}
-	}
-
-	@Override
-	public boolean retryRequest(IOException exception, int executionCount, HttpContext context) {
-		LOGGER.error("executionCount:" + executionCount + " NumberOfRetries: " + webRequest.getNumberOfRetries() + " exception: "
-				+ exception.toString());
-		if (executionCount >= webRequest.getNumberOfRetries()) {
-			return false;
+		if (!requestBase.containsHeader("Accept-Encoding")) {
+			requestBase.setHeader("Accept-Encoding", getAcceptEncoding());
 		}
-		// @formatter:off
-		if ((exception instanceof NoHttpResponseException) || (exception instanceof ConnectTimeoutException)
-				|| (exception instanceof ConnectionPoolTimeoutException) || (exception instanceof SocketTimeoutException)) {
-			return true;
+		Map<String, String> resumeHeader = getResumeHeader();
+		if (resumeHeader != null) {
+			for (String field : resumeHeader.keySet()) {
+				requestBase.setHeader(field, resumeHeader.get(field));
+			}
 		}
-		// @formatter:on
-		return false;
 	}
 
+	/**
+	 * Retries are handled by the {@link at.diamonddogs.net.retry.RetryPolicy}
+	 * of the {@link WebRequest}, only requests that failed on a stale pooled
+	 * connection are retried immediately
+	 */
 	@Override
-	public URI getLocationURI(HttpResponse response, HttpContext context) throws org.apache.http.ProtocolException {
-		Header[] headers = response.getHeaders("location");
-		if (headers[0] != null) {
-			try {
-				LOGGER.error("getLocationURI: " + headers[0].getValue());
-				return new URI(headers[0].getValue());
-			} catch (URISyntaxException e) {
-				LOGGER.error("error parsing url", e);
-				return null;
-			}
-		}
-		return null;
+	public boolean retryRequest(IOException exception, int executionCount, HttpContext context) {
+		LOGGER.debug("executionCount:" + executionCount + " exception: " + exception.toString());
+		return exception instanceof NoHttpResponseException && executionCount <= 1;
 	}
 
-	@Override
-	public boolean isRedirectRequested(HttpResponse response, HttpContext context) {
-		if (!webRequest.isFollowRedirects()) {
-			return false;
+	/**
+	 * Keeps connections alive for as long as the server allows it, but never
+	 * longer than the idle timeout of the {@link HttpClientConnectionPool}
+	 */
+	private static final class PoolKeepAliveStrategy implements ConnectionKeepAliveStrategy {
+
+		private final long maxKeepAlive;
+
+		private PoolKeepAliveStrategy(long maxKeepAlive) {
+			this.maxKeepAlive = maxKeepAlive;
 		}
-		int status = response.getStatusLine().getStatusCode();
-		LOGGER.debug("isRedirectRequested: " + status);
-		if (status == HttpStatus.SC_MOVED_PERMANENTLY || status == HttpStatus.SC_MOVED_TEMPORARILY) {
-			return true;
+
+		@Override
+		public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+			HeaderElementIterator it = new BasicHeaderElementIterator(response.headerIterator(HTTP.CONN_KEEP_ALIVE));
+			while (it.hasNext()) {
+				HeaderElement element = it.nextElement();
+				if (element.getValue() != null && "timeout".equalsIgnoreCase(element.getName())) {
+					try {
+						return Math.min(Long.parseLong(element.getValue()) * 1000, maxKeepAlive);
+					} catch (NumberFormatException e) {
+						LOGGER.debug("Invalid keep alive timeout: " + element.getValue());
+					}
+				}
+			}
+			return maxKeepAlive;
 		}
-		return false;
 	}
 }
@@ -34,6 +34,12 @@ public class WebClientFactory {
 
 	private static WebClientFactory INSTANCE = null;
 
+	/**
+	 * Indicates whether {@link WebClientNio} should be used for supported
+	 * {@link WebRequest}s
+	 */
+	private volatile boolean nioEnabled = false;
+
 	/**
 	 * Singleton getInstance() method
 	 * 
@@ -59,22 +65,75 @@ public class WebClientFactory {
 	 * 
 	 */
 	public WebClient getNetworkClient(WebRequest webRequest, Context context) {
+		if (nioEnabled && WebClientNio.isSupported(webRequest) && !isShaped(webRequest)) {
+			LOGGER.debug("Using WebClientNio for: " + webRequest.getUrl());
+			return new WebClientNio(context);
+		}
+		if (WebClientSegmented.isSupported(webRequest)) {
+			LOGGER.debug("Using WebClientSegmented for: " + webRequest.getUrl());
+			return new WebClientSegmented(context);
+		}
+		return getSingleConnectionClient(webRequest, context);
+	}
+
+	/**
+	 * Returns a blocking {@link WebClient} that runs the {@link WebRequest} on
+	 * a single connection, judging by the android platform only
+	 * 
+	 * @param webRequest
+	 *            the {@link WebRequest} to obtain a {@link WebClient} for
+	 * @param context
+	 *            a {@link Context}
+	 * @return a {@link WebClient}
+	 */
+	public WebClient getSingleConnectionClient(WebRequest webRequest, Context context) {
 		WebClient client = null;
-		// HttpUrlConnection, that should be used starting from FROYO, cuts off
-		// POST data ... we need to force the obsolete client implementation!!!
-		if (isPostWithData(webRequest)) {
-			LOGGER.info("!!!WARNING!!! FORCE USING WebClientDefaultHttpClient DUE TO BUGGY IMPLEMENTATION OF HttpUrlConnection (POST DATA WOULD OTHERWISE BE CUT OFF)!!!");
-			client = new WebClientDefaultHttpClient(context);
-		} else if (Build.VERSION.SDK_INT > Build.VERSION_CODES.FROYO) {
+		// WebClientHttpURLConnection streams POST data using fixed length or
+		// chunked streaming mode, so there is no need to fall back to the
+		// obsolete client implementation for POST requests anymore
+		if (Build.VERSION.SDK_INT > Build.VERSION_CODES.FROYO) {
 			LOGGER.debug("Using WebClientHttpURLConnection, since SDK bigger than Froyo: " + Build.VERSION.SDK_INT);
 			client = new WebClientHttpURLConnection(context);
 		} else {
 			LOGGER.debug("Using WebClientDefaultHttpClient, since SDK smaller or equal Froyo: " + Build.VERSION.SDK_INT);
 			client = new WebClientDefaultHttpClient(context);
 		}
+		client.setWebRequest(webRequest);
 		return client;
 	}
 
+	/**
+	 * Enables or disables the non blocking {@link WebClientNio}. If enabled,
+	 * all {@link WebRequest}s supported by {@link WebClientNio} share a single
+	 * network thread, all other {@link WebRequest}s keep using the blocking
+	 * clients.
+	 * 
+	 * @param nioEnabled
+	 *            <code>true</code> to enable {@link WebClientNio}
+	 */
+	public void setNioEnabled(boolean nioEnabled) {
+		this.nioEnabled = nioEnabled;
+	}
+
+	@SuppressWarnings("javadoc")
+	public boolean isNioEnabled() {
+		return nioEnabled;
+	}
+
+	/**
+	 * Checks if the {@link BandwidthLimiter} limits the
+	 * {@link BandwidthLimiter.TrafficClass} of a {@link WebRequest}.
+	 * {@link WebClientNio} reads replies on the event loop, which must not
+	 * wait for budget, so shaped {@link WebRequest}s use the blocking clients.
+	 * 
+	 * @param webRequest
+	 *            the {@link WebRequest} to check
+	 * @return <code>true</code> if reading the reply will be shaped
+	 */
+	private boolean isShaped(WebRequest webRequest) {
+		return BandwidthLimiter.getInstance().getRate(webRequest.getTrafficClass()) != BandwidthLimiter.UNLIMITED;
+	}
+
 	/**
 	 * Checks if the {@link WebRequest} has post data
 	 * 
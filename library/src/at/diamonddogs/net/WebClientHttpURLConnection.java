@@ -16,6 +16,7 @@
 package at.diamonddogs.net;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.ProtocolException;
 import java.net.URL;
@@ -24,6 +25,8 @@ import java.util.Map;
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLSocketFactory;
 
+import org.apache.http.HttpEntity;
+import org.apache.http.protocol.HTTP;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -31,6 +34,9 @@ import android.content.Context;
 import at.diamonddogs.data.adapter.ReplyAdapter;
 import at.diamonddogs.data.adapter.ReplyAdapter.Status;
 import at.diamonddogs.data.dataobjects.WebReply;
+import at.diamonddogs.data.dataobjects.WebRequest;
+import at.diamonddogs.data.dataobjects.WebRequest.Type;
+import at.diamonddogs.exception.DeadlineExceededException;
 import at.diamonddogs.exception.WebClientException;
 import at.diamonddogs.net.ssl.SSLHelper;
 
@@ -48,9 +54,16 @@ public class WebClientHttpURLConnection extends WebClient {
 	private HttpURLConnection connection;
 
 	/**
-	 * Stores the number of retries for a request
+	 * Indicates that the {@link HttpEntity} of the {@link WebRequest} has
+	 * already been written (required for non repeatable entities)
 	 */
-	private int retryCount = 0;
+	private boolean entityWritten = false;
+
+	/**
+	 * The {@link Type} of the current request, changes if a redirect is
+	 * followed with a different method
+	 */
+	private Type requestType;
 
 	/**
 	 * Default {@link WebClient} constructor
@@ -63,78 +76,69 @@ public class WebClientHttpURLConnection extends WebClient {
 	}
 
 	@Override
-	public ReplyAdapter call() {
-
-		ReplyAdapter listenerReply = null;
-		if (webRequest == null) {
-			throw new WebClientException("WebRequest must not be null!");
-		}
-		retryCount = webRequest.getNumberOfRetries();
-		do {
-			try {
-				retryCount--;
-				WebReply reply;
-
-				connection = (HttpURLConnection) webRequest.getUrl().openConnection();
-				configureConnection();
-				reply = runRequest();
-
-				if (needsFollowRedirect(reply)) {
-					String url = getRedirectUrl(reply);
-					LOGGER.debug("following redirect manually to new url: " + url);
-					connection = (HttpURLConnection) new URL(url).openConnection();
-					configureConnection();
-					reply = runRequest();
+	protected ReplyAdapter execute() {
+		ReplyAdapter listenerReply;
+		try {
+			URL url = getRequestUrl();
+			requestType = webRequest.getRequestType();
+			int redirectCount = 0;
+			int statusCode;
+			URL target;
+			while (true) {
+				connection = (HttpURLConnection) url.openConnection();
+				setDisconnectHook(connection);
+				statusCode = sendRequest();
+				target = getRedirectTarget(url, requestType, statusCode, connection.getHeaderFields(), redirectCount);
+				if (target == null) {
+					break;
 				}
-
-				listenerReply = createListenerReply(webRequest, reply, null, Status.OK);
-
-				int status = ((WebReply) listenerReply.getReply()).getHttpStatusCode();
-				if (!(status == -1)) {
-					retryCount = -1;
-				}
-			} catch (Throwable tr) {
-
-				if (retryCount != 0) {
-					try {
-						Thread.sleep(webRequest.getRetryInterval());
-					} catch (InterruptedException e) {
-						LOGGER.error("Error in WebRequest: " + webRequest, e);
-					}
-				}
-				listenerReply = createListenerReply(webRequest, null, tr, Status.FAILED);
-				LOGGER.info("Error running webrequest: " + webRequest.getUrl(), tr);
-			} finally {
-				if (connection != null && !webRequest.isGetStream()) {
-					connection.disconnect();
+				if (webRequest.isDeadlineExceeded()) {
+					throw new DeadlineExceededException(webRequest.getDeadline(), null);
 				}
+				// redirects are followed manually, so that permanent ones
+				// can be remembered
+				connection.disconnect();
+				onRedirectFollowed(url, target, statusCode);
+				requestType = getRedirectType(requestType, statusCode);
+				url = target;
+				redirectCount++;
 			}
-		} while (retryCount >= 0);
+			WebReply reply = readReply(statusCode);
 
-		if (webClientReplyListener != null) {
-			webClientReplyListener.onWebReply(this, listenerReply);
+			listenerReply = createListenerReply(webRequest, reply, null, Status.OK);
+		} catch (Throwable tr) {
+			listenerReply = createListenerReply(webRequest, null, tr, Status.FAILED);
+			LOGGER.info("Error running webrequest: " + webRequest.getUrl(), tr);
+		} finally {
+			if (connection != null && !webRequest.isGetStream()) {
+				clearCancelHook();
+				connection.disconnect();
+			}
 		}
 		return listenerReply;
 	}
 
-	private String getRedirectUrl(WebReply wr) {
-		return wr.getReplyHeader().get("location").get(0);
-	}
-
-	private boolean needsFollowRedirect(WebReply wr) {
-		if (!followProtocolRedirect || !webRequest.isFollowRedirects()) {
-			return false;
-		}
-		if (wr.getHttpStatusCode() == HTTPStatus.HTTP_MOVED_TEMP || wr.getHttpStatusCode() == HTTPStatus.HTTP_MOVED_PERM) {
-			return true;
-		}
-		return false;
+	/**
+	 * Disconnects the connection if the {@link WebRequest} is cancelled, which
+	 * closes its socket and unblocks pending connects and reads. Streamed
+	 * replies keep the hook until the next attempt.
+	 * 
+	 * @param c
+	 *            the connection of the attempt
+	 */
+	private void setDisconnectHook(final HttpURLConnection c) {
+		setCancelHook(new Runnable() {
+			@Override
+			public void run() {
+				c.disconnect();
+			}
+		});
 	}
 
 	private void configureConnection() throws ProtocolException {
-		connection.setReadTimeout(webRequest.getReadTimeout());
-		connection.setConnectTimeout(webRequest.getConnectionTimeout());
-		connection.setInstanceFollowRedirects(webRequest.isFollowRedirects());
+		connection.setReadTimeout(getReadTimeout());
+		connection.setConnectTimeout(getConnectionTimeout());
+		connection.setInstanceFollowRedirects(false);
 
 		setSslFactory();
 		setRequestType();
@@ -149,7 +153,7 @@ public class WebClientHttpURLConnection extends WebClient {
 	}
 
 	private void setRequestType() throws ProtocolException {
-		switch (webRequest.getRequestType()) {
+		switch (requestType) {
 		case POST:
 			connection.setRequestMethod("POST");
 			connection.setDoOutput(true);
@@ -168,6 +172,10 @@ public class WebClientHttpURLConnection extends WebClient {
 		Map<String, String> header = webRequest.getHeader();
 		if (header != null) {
 			for (String field : header.keySet()) {
+				if (hasEntity() && HTTP.CONTENT_LEN.equalsIgnoreCase(field)) {
+					// the content length is determined by the streaming mode
+					continue;
+				}
 				if (webRequest.isAppendHeader()) {
 					connection.addRequestProperty(field, header.get(field));
 				} else {
@@ -175,13 +183,80 @@ public class WebClientHttpURLConnection extends WebClient {
 				}
 			}
 		}
+		if (connection.getRequestProperty("Accept-Encoding") == null) {
+			// disables the transparent gzip decoding of HttpURLConnection,
+			// replies are decoded by the WebClient
+			connection.setRequestProperty("Accept-Encoding", getAcceptEncoding());
+		}
+		Map<String, String> resumeHeader = getResumeHeader();
+		if (resumeHeader != null) {
+			for (String field : resumeHeader.keySet()) {
+				connection.setRequestProperty(field, resumeHeader.get(field));
+			}
+		}
 	}
 
-	private WebReply runRequest() throws IOException {
+	private boolean hasEntity() {
+		return requestType == Type.POST && webRequest.getHttpEntity() != null;
+	}
+
+	/**
+	 * Streams the {@link HttpEntity} of the {@link WebRequest} to the
+	 * connection. Uses fixed length streaming mode if the length of the entity
+	 * is known and chunked streaming mode otherwise, the entity is never
+	 * buffered in memory as a whole.
+	 * 
+	 * @throws IOException
+	 */
+	private void writeEntity() throws IOException {
+		HttpEntity entity = getRequestEntity();
+		if (entityWritten && !entity.isRepeatable()) {
+			throw new WebClientException("The HttpEntity of " + webRequest + " is not repeatable and has already been sent");
+		}
+
+		if (entity.getContentType() != null && connection.getRequestProperty(HTTP.CONTENT_TYPE) == null) {
+			connection.setRequestProperty(HTTP.CONTENT_TYPE, entity.getContentType().getValue());
+		}
+		if (entity.getContentEncoding() != null && connection.getRequestProperty(HTTP.CONTENT_ENCODING) == null) {
+			connection.setRequestProperty(HTTP.CONTENT_ENCODING, entity.getContentEncoding().getValue());
+		}
+
+		long length = entity.getContentLength();
+		if (length >= 0 && length <= Integer.MAX_VALUE) {
+			connection.setFixedLengthStreamingMode((int) length);
+		} else {
+			connection.setChunkedStreamingMode(0);
+		}
+
+		entityWritten = true;
+		OutputStream out = connection.getOutputStream();
+		try {
+			entity.writeTo(out);
+			out.flush();
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Sends the current request
+	 * 
+	 * @return the status code of the reply
+	 * @throws IOException
+	 */
+	private int sendRequest() throws IOException {
 
 		configureConnection();
 
-		int statusCode = connection.getResponseCode();
+		if (hasEntity()) {
+			writeEntity();
+		}
+
+		return connection.getResponseCode();
+	}
+
+	private WebReply readReply(int statusCode) throws IOException {
+		checkRangeSatisfiable(statusCode);
 
 		WebReply reply = null;
 
@@ -0,0 +1,499 @@
+/*
+ * Copyright (C) 2012, 2013 the diamond:dogs|group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.diamonddogs.net;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.protocol.HTTP;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.content.Context;
+import at.diamonddogs.data.adapter.ReplyAdapter;
+import at.diamonddogs.data.adapter.ReplyAdapter.Status;
+import at.diamonddogs.data.dataobjects.WebReply;
+import at.diamonddogs.data.dataobjects.WebRequest;
+import at.diamonddogs.data.dataobjects.WebRequest.Type;
+import at.diamonddogs.exception.DeadlineExceededException;
+import at.diamonddogs.exception.WebClientException;
+import at.diamonddogs.net.nio.NioEventLoop;
+import at.diamonddogs.net.nio.NioHttpExchange;
+import at.diamonddogs.net.retry.RetryPolicy;
+import at.diamonddogs.util.WorkerQueue;
+
+/**
+ * A non blocking {@link WebClient} that runs all requests on a single selector
+ * thread ({@link NioEventLoop}). Only plain http requests whose reply is kept
+ * in memory are supported, check {@link WebClientNio#isSupported(WebRequest)}
+ * before using this client. Please do not use this class directly, use
+ * {@link WebClientFactory} instead.
+ */
+public class WebClientNio extends WebClient implements AsyncWebClient, NioHttpExchange.Callback {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(WebClientNio.class.getSimpleName());
+
+	/**
+	 * The maximum size of a POST entity, entities need to be buffered in
+	 * memory
+	 */
+	public static final int MAX_ENTITY_SIZE = 64 * 1024;
+
+	private static final String CRLF = "\r\n";
+
+	/**
+	 * The request header currently being built
+	 */
+	private StringBuilder requestHeader;
+
+	/**
+	 * The serialized entity of the {@link WebRequest}, if any
+	 */
+	private byte[] entity;
+
+	/**
+	 * The url of the current exchange (differs from the url of the
+	 * {@link WebRequest} after a redirect)
+	 */
+	private URL currentUrl;
+
+	/**
+	 * The {@link Type} of the current exchange (differs from the {@link Type}
+	 * of the {@link WebRequest} after a redirect that changes the method)
+	 */
+	private Type currentType;
+
+	/**
+	 * The exchange currently in progress
+	 */
+	private volatile NioHttpExchange currentExchange;
+
+	/**
+	 * The number of attempts that have been made
+	 */
+	private int attempt;
+
+	private int redirectCount;
+
+	private ReplyFuture future;
+
+	/**
+	 * Set while {@link WebClientNio#execute()} runs a single attempt, which is
+	 * neither retried nor reported to the {@link WebClientReplyListener}
+	 */
+	private volatile boolean singleAttempt;
+
+	/**
+	 * Default {@link WebClient} constructor
+	 *
+	 * @param context
+	 *            a {@link Context} object
+	 */
+	public WebClientNio(Context context) {
+		super(context);
+	}
+
+	/**
+	 * Checks if a {@link WebRequest} can be executed by {@link WebClientNio}
+	 *
+	 * @param webRequest
+	 *            the {@link WebRequest} to check
+	 * @return <code>true</code> if the request is supported
+	 */
+	public static boolean isSupported(WebRequest webRequest) {
+		if (webRequest.getUrl() == null || !"http".equalsIgnoreCase(webRequest.getUrl().getProtocol())) {
+			return false;
+		}
+		if (webRequest.isGetStream() || (webRequest.getTmpFile() != null && webRequest.getTmpFile().first)) {
+			return false;
+		}
+		if (webRequest.getRequestType() == Type.POST && webRequest.getHttpEntity() != null) {
+			HttpEntity httpEntity = webRequest.getHttpEntity();
+			return httpEntity.isRepeatable() && httpEntity.getContentLength() >= 0 && httpEntity.getContentLength() <= MAX_ENTITY_SIZE;
+		}
+		return true;
+	}
+
+	/**
+	 * Runs the request and blocks until the reply is available. Prefer
+	 * {@link WebClientNio#submit()}.
+	 */
+	@Override
+	public ReplyAdapter call() {
+		return await(submit());
+	}
+
+	/**
+	 * Runs a single attempt and blocks until its reply is available
+	 */
+	@Override
+	protected ReplyAdapter execute() {
+		singleAttempt = true;
+		future = createFuture();
+		setCancelHook(new Runnable() {
+			@Override
+			public void run() {
+				future.cancel(true);
+			}
+		});
+		try {
+			startAttempt();
+			return await(future);
+		} finally {
+			clearCancelHook();
+		}
+	}
+
+	private ReplyAdapter await(Future<ReplyAdapter> f) {
+		try {
+			return f.get();
+		} catch (InterruptedException e) {
+			f.cancel(true);
+			return createListenerReply(webRequest, null, e, Status.FAILED);
+		} catch (ExecutionException e) {
+			return createListenerReply(webRequest, null, e.getCause(), Status.FAILED);
+		} catch (CancellationException e) {
+			return createListenerReply(webRequest, null, e, Status.FAILED);
+		}
+	}
+
+	/**
+	 * Does not use the {@link WorkerQueue}, see {@link WebClientNio#submit()}
+	 */
+	@Override
+	public Future<ReplyAdapter> submit(WorkerQueue workerQueue) {
+		return submit();
+	}
+
+	@Override
+	public Future<ReplyAdapter> submit() {
+		if (webRequest == null) {
+			throw new WebClientException("WebRequest must not be null!");
+		}
+		singleAttempt = false;
+		future = createFuture();
+		getRetryPolicy().onRequest(webRequest);
+		ReplyAdapter rejected = checkDeadline();
+		if (rejected == null) {
+			rejected = checkCircuit();
+		}
+		if (rejected != null) {
+			finish(rejected);
+			return future;
+		}
+		startAttempt();
+		return future;
+	}
+
+	private ReplyFuture createFuture() {
+		return new ReplyFuture(webRequest) {
+			@Override
+			protected void onCancel(boolean mayInterruptIfRunning) {
+				NioHttpExchange exchange = currentExchange;
+				if (exchange != null) {
+					NioEventLoop.getInstance().cancel(exchange);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Sends the first exchange of an attempt, failures are reported through
+	 * the future
+	 */
+	private void startAttempt() {
+		attempt = 1;
+		redirectCount = 0;
+		currentUrl = getStartUrl();
+		currentType = webRequest.getRequestType();
+		try {
+			entity = readEntity();
+			send();
+		} catch (Throwable tr) {
+			LOGGER.info("Error running webrequest: " + webRequest.getUrl(), tr);
+			ReplyAdapter failed = checkDeadline(createListenerReply(webRequest, null, tr, Status.FAILED));
+			recordAttempt(failed);
+			finish(failed);
+		}
+	}
+
+	private byte[] readEntity() throws IOException {
+		if (!hasEntity()) {
+			return null;
+		}
+		// the length of the uncompressed entity is known, see isSupported
+		ByteArrayOutputStream baos = new ByteArrayOutputStream((int) webRequest.getHttpEntity().getContentLength());
+		getRequestEntity().writeTo(baos);
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Returns the canonical {@link URL} of the {@link WebRequest}, unless it
+	 * has been moved to https, which this client cannot handle
+	 * 
+	 * @return the {@link URL} of the first exchange of an attempt
+	 */
+	private URL getStartUrl() {
+		URL url = getRequestUrl();
+		return "http".equalsIgnoreCase(url.getProtocol()) ? url : webRequest.getUrl();
+	}
+
+	private boolean hasEntity() {
+		return webRequest.getRequestType() == Type.POST && webRequest.getHttpEntity() != null;
+	}
+
+	private void send() throws IOException {
+		if (webRequest.isCancelled()) {
+			throw new CancellationException("WebRequest has been cancelled: " + webRequest);
+		}
+		if (webRequest.isDeadlineExceeded()) {
+			throw new DeadlineExceededException(webRequest.getDeadline(), null);
+		}
+		int port = currentUrl.getPort() == -1 ? currentUrl.getDefaultPort() : currentUrl.getPort();
+		NioHttpExchange exchange = new NioHttpExchange(currentUrl.getHost(), port, buildRequest(),
+				currentType == Type.HEAD, getConnectionTimeout(), getReadTimeout(), this);
+		currentExchange = exchange;
+		NioEventLoop.getInstance().execute(exchange);
+	}
+
+	private byte[] buildRequest() throws IOException {
+		String path = currentUrl.getFile();
+		if (path == null || path.length() == 0) {
+			path = "/";
+		}
+		requestHeader = new StringBuilder(256);
+		// redirects may turn a POST into a GET, which has no entity
+		byte[] body = currentType == Type.POST ? entity : null;
+		requestHeader.append(currentType.name()).append(' ').append(path).append(" HTTP/1.1").append(CRLF);
+		appendHeaderField(HTTP.TARGET_HOST, currentUrl.getPort() == -1 ? currentUrl.getHost() : currentUrl.getHost() + ":"
+				+ currentUrl.getPort());
+		buildHeader();
+		if (!isOverridden(HTTP.CONN_DIRECTIVE)) {
+			appendHeaderField(HTTP.CONN_DIRECTIVE, HTTP.CONN_KEEP_ALIVE);
+		}
+		if (!isOverridden("Accept-Encoding")) {
+			appendHeaderField("Accept-Encoding", getAcceptEncoding());
+		}
+		if (body != null) {
+			HttpEntity httpEntity = getRequestEntity();
+			if (httpEntity.getContentType() != null && !hasHeaderField(HTTP.CONTENT_TYPE)) {
+				appendHeaderField(HTTP.CONTENT_TYPE, httpEntity.getContentType().getValue());
+			}
+			if (httpEntity.getContentEncoding() != null && !hasHeaderField(HTTP.CONTENT_ENCODING)) {
+				appendHeaderField(HTTP.CONTENT_ENCODING, httpEntity.getContentEncoding().getValue());
+			}
+			appendHeaderField(HTTP.CONTENT_LEN, String.valueOf(body.length));
+		}
+		requestHeader.append(CRLF);
+
+		byte[] header = requestHeader.toString().getBytes("ISO-8859-1");
+		if (body == null) {
+			return header;
+		}
+		byte[] request = new byte[header.length + body.length];
+		System.arraycopy(header, 0, request, 0, header.length);
+		System.arraycopy(body, 0, request, header.length, body.length);
+		return request;
+	}
+
+	/**
+	 * The body has already been read by the {@link NioEventLoop}, shaping it
+	 * would only delay the reply. {@link WebClientFactory} does not use this
+	 * client for {@link WebRequest}s whose traffic class is shaped.
+	 */
+	@Override
+	protected InputStream shapeBandwidth(InputStream i) {
+		return i;
+	}
+
+	@Override
+	protected void buildHeader() {
+		Map<String, String> header = webRequest.getHeader();
+		if (header != null) {
+			for (String field : header.keySet()) {
+				if (HTTP.CONTENT_LEN.equalsIgnoreCase(field) || HTTP.TARGET_HOST.equalsIgnoreCase(field)) {
+					// computed by the client
+					continue;
+				}
+				appendHeaderField(field, header.get(field));
+			}
+		}
+	}
+
+	private void appendHeaderField(String field, String value) {
+		requestHeader.append(field).append(": ").append(value).append(CRLF);
+	}
+
+	/**
+	 * Checks whether a header field of the {@link WebRequest} replaces the
+	 * default value of the client. Header fields of {@link WebRequest}s that
+	 * append their header are sent in addition to the default values, like
+	 * {@link java.net.URLConnection#addRequestProperty(String, String)} does.
+	 * 
+	 * @param field
+	 *            the name of the header field
+	 * @return <code>true</code> if the default value must not be sent
+	 */
+	private boolean isOverridden(String field) {
+		return !webRequest.isAppendHeader() && hasHeaderField(field);
+	}
+
+	private boolean hasHeaderField(String field) {
+		Map<String, String> header = webRequest.getHeader();
+		if (header != null) {
+			for (String key : header.keySet()) {
+				if (field.equalsIgnoreCase(key)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public void onResponse(NioHttpExchange exchange, int statusCode, Map<String, List<String>> header, byte[] body) {
+		if (exchange != currentExchange) {
+			return;
+		}
+		try {
+			Map<String, List<String>> replyHeader = header;
+			URL target = getRedirectTarget(currentUrl, currentType, statusCode, replyHeader, redirectCount);
+			// redirects to https cannot be handled by this client
+			if (target != null && "http".equalsIgnoreCase(target.getProtocol())) {
+				onRedirectFollowed(currentUrl, target, statusCode);
+				currentType = getRedirectType(currentType, statusCode);
+				currentUrl = target;
+				redirectCount++;
+				send();
+				return;
+			}
+
+			WebReply reply;
+			switch (statusCode) {
+			case HTTPStatus.HTTP_PARTIAL:
+			case HTTPStatus.HTTP_OK:
+				LOGGER.debug("WebRequest OK: " + webRequest);
+				publishFileSize(body.length);
+				reply = handleResponseOk(new ByteArrayInputStream(body), statusCode, replyHeader);
+				break;
+			case HTTPStatus.HTTP_NO_CONTENT:
+				reply = handleResponseOk(null, statusCode, replyHeader);
+				break;
+			case HTTPStatus.HTTP_NOT_MODIFIED:
+				reply = handleResponseNotModified(statusCode, replyHeader);
+				break;
+			default:
+				LOGGER.debug("WebRequest DEFAULT: " + webRequest + " status code: " + statusCode);
+				reply = handleResponseNotOk(new ByteArrayInputStream(body), statusCode, replyHeader);
+				break;
+			}
+			ReplyAdapter listenerReply = createListenerReply(webRequest, reply, null, Status.OK);
+			recordAttempt(listenerReply);
+			if (!retry(listenerReply)) {
+				finish(listenerReply);
+			}
+		} catch (Throwable tr) {
+			onFailure(exchange, tr);
+		}
+	}
+
+	@Override
+	public void onFailure(NioHttpExchange exchange, Throwable throwable) {
+		if (exchange != currentExchange) {
+			return;
+		}
+		LOGGER.info("Error running webrequest: " + webRequest.getUrl(), throwable);
+		ReplyAdapter listenerReply = checkDeadline(createListenerReply(webRequest, null, throwable, Status.FAILED));
+		recordAttempt(listenerReply);
+		if (throwable instanceof CancellationException || !retry(listenerReply)) {
+			finish(listenerReply);
+		}
+	}
+
+	/**
+	 * Schedules a retry on the {@link NioEventLoop} if the {@link RetryPolicy}
+	 * of the {@link WebRequest} asks for it
+	 * 
+	 * @param listenerReply
+	 *            the result of the current attempt
+	 * @return <code>true</code> if a retry has been scheduled
+	 */
+	private boolean retry(ReplyAdapter listenerReply) {
+		if (singleAttempt) {
+			return false;
+		}
+		long delay = getRetryDelay(attempt, listenerReply);
+		if (delay < 0) {
+			return false;
+		}
+		attempt++;
+		currentUrl = getStartUrl();
+		currentType = webRequest.getRequestType();
+		redirectCount = 0;
+		NioEventLoop.getInstance().schedule(new Runnable() {
+			@Override
+			public void run() {
+				ReplyAdapter rejected = checkDeadline();
+				if (rejected == null) {
+					rejected = checkCircuit();
+				}
+				if (rejected != null) {
+					finish(rejected);
+					return;
+				}
+				try {
+					send();
+				} catch (Throwable tr) {
+					ReplyAdapter failed = checkDeadline(createListenerReply(webRequest, null, tr, Status.FAILED));
+					recordAttempt(failed);
+					finish(failed);
+				}
+			}
+		}, delay);
+		return true;
+	}
+
+	/**
+	 * Records the result of an attempt with the {@link CircuitBreaker}, single
+	 * attempts are recorded by the {@link WebClient}
+	 * 
+	 * @param listenerReply
+	 *            the result of the attempt
+	 */
+	private void recordAttempt(ReplyAdapter listenerReply) {
+		if (!singleAttempt) {
+			recordCircuit(listenerReply);
+		}
+	}
+
+	private void finish(ReplyAdapter listenerReply) {
+		if (!future.set(listenerReply)) {
+			return;
+		}
+		if (!singleAttempt && webClientReplyListener != null) {
+			webClientReplyListener.onWebReply(this, listenerReply);
+		}
+	}
+}
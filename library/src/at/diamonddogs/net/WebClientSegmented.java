@@ -0,0 +1,621 @@
+/*
+ * Copyright (C) 2012, 2013 the diamond:dogs|group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.diamonddogs.net;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import org.apache.commons.codec.binary.Hex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.content.Context;
+import at.diamonddogs.data.adapter.ReplyAdapter;
+import at.diamonddogs.data.adapter.ReplyAdapter.Status;
+import at.diamonddogs.data.dataobjects.TempFile;
+import at.diamonddogs.data.dataobjects.WebReply;
+import at.diamonddogs.data.dataobjects.WebRequest;
+import at.diamonddogs.data.dataobjects.WebRequest.Type;
+import at.diamonddogs.exception.WebClientException;
+import at.diamonddogs.net.retry.RetryPolicy;
+import at.diamonddogs.util.ByteArrayPool;
+import at.diamonddogs.util.WorkerQueue;
+
+/**
+ * Downloads a {@link TempFile} using multiple concurrent connections. The size
+ * of the file is probed using a HEAD request, the file is then split into
+ * {@link TempFile#getSegments()} byte ranges that are fetched through a
+ * {@link WorkerQueue} and written to their position in a preallocated file.
+ * Falls back to a single connection if the server does not support byte
+ * ranges. Please do not use this class directly, use {@link WebClientFactory}
+ * instead.
+ */
+public class WebClientSegmented extends WebClient {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(WebClientSegmented.class.getSimpleName());
+
+	/**
+	 * The minimum size of a single segment, smaller files are downloaded using
+	 * fewer segments
+	 */
+	public static final long MIN_SEGMENT_SIZE = 512 * 1024;
+
+	private final Context context;
+
+	/**
+	 * The {@link WorkerQueue} that runs the segments
+	 */
+	private WorkerQueue workerQueue;
+
+	/**
+	 * The file segments are written to
+	 */
+	private FileChannel channel;
+
+	/**
+	 * The ETag or Last-Modified value returned by the HEAD request
+	 */
+	private String validator;
+
+	/**
+	 * Set once a segment failed, stops all other segments
+	 */
+	private volatile boolean aborted;
+
+	/**
+	 * The single connection {@link WebClient}s currently running, cancelled
+	 * together with this {@link WebClient}
+	 */
+	private final List<WebClient> activeClients = new ArrayList<WebClient>();
+
+	/**
+	 * Default {@link WebClient} constructor
+	 *
+	 * @param context
+	 *            a {@link Context} object
+	 */
+	public WebClientSegmented(Context context) {
+		super(context);
+		this.context = context;
+	}
+
+	/**
+	 * Checks if a {@link WebRequest} should be executed by
+	 * {@link WebClientSegmented}
+	 *
+	 * @param webRequest
+	 *            the {@link WebRequest} to check
+	 * @return <code>true</code> if the {@link WebRequest} is a GET request
+	 *         targeting a {@link TempFile} with more than one segment
+	 */
+	public static boolean isSupported(WebRequest webRequest) {
+		if (webRequest.getTmpFile() == null || !webRequest.getTmpFile().first || webRequest.getTmpFile().second == null) {
+			return false;
+		}
+		TempFile tmp = webRequest.getTmpFile().second;
+		return tmp.getSegments() > 1 && !tmp.isAppend() && webRequest.getRequestType() == Type.GET && !webRequest.isGetStream();
+	}
+
+	/**
+	 * Segments are retried individually, the download as a whole occupies a
+	 * single worker thread. Cancelling the returned {@link Future} aborts the
+	 * connections of all segments.
+	 */
+	@Override
+	public Future<ReplyAdapter> submit(WorkerQueue workerQueue) {
+		FutureTask<ReplyAdapter> task = new FutureTask<ReplyAdapter>(this) {
+			@Override
+			public boolean cancel(boolean mayInterruptIfRunning) {
+				boolean cancelled = super.cancel(mayInterruptIfRunning);
+				if (cancelled && mayInterruptIfRunning) {
+					WebClientSegmented.this.cancel();
+				}
+				return cancelled;
+			}
+		};
+		if (!workerQueue.execute(task, webRequest)) {
+			return null;
+		}
+		return task;
+	}
+
+	/**
+	 * Runs the download on the calling thread. The download as a whole is not
+	 * retried, segments are retried individually.
+	 */
+	@Override
+	public ReplyAdapter call() {
+		if (webRequest == null) {
+			throw new WebClientException("WebRequest must not be null!");
+		}
+		getRetryPolicy().onRequest(webRequest);
+		ReplyAdapter listenerReply = checkDeadline();
+		if (listenerReply == null) {
+			listenerReply = execute();
+		}
+		if (webClientReplyListener != null) {
+			webClientReplyListener.onWebReply(this, listenerReply);
+		}
+		return listenerReply;
+	}
+
+	/**
+	 * Probes the file and downloads it using multiple connections or, if that
+	 * is not possible, a single connection
+	 */
+	@Override
+	protected ReplyAdapter execute() {
+		ReplyAdapter listenerReply;
+		setCancelHook(new Runnable() {
+			@Override
+			public void run() {
+				List<WebClient> clients;
+				synchronized (activeClients) {
+					clients = new ArrayList<WebClient>(activeClients);
+				}
+				for (WebClient client : clients) {
+					client.cancel();
+				}
+			}
+		});
+		try {
+			WebReply head = probe();
+			long length = head == null ? -1 : getContentLength(head);
+			if (head == null || length < 2 * MIN_SEGMENT_SIZE || workerQueue == null
+					|| !"bytes".equalsIgnoreCase(getHeaderValue(head.getReplyHeader(), "Accept-Ranges"))) {
+				LOGGER.info("Segmented download not possible, using a single connection: " + webRequest.getUrl());
+				listenerReply = runSingleConnection();
+			} else {
+				validator = getHeaderValue(head.getReplyHeader(), "ETag");
+				if (validator == null || validator.startsWith("W/")) {
+					validator = getHeaderValue(head.getReplyHeader(), "Last-Modified");
+				}
+				download(length);
+				WebReply reply = new WebReply();
+				reply.setHttpStatusCode(HTTPStatus.HTTP_OK);
+				reply.setReplyHeader(head.getReplyHeader());
+				listenerReply = createListenerReply(webRequest, reply, null, Status.OK);
+			}
+		} catch (Throwable tr) {
+			LOGGER.info("Error running webrequest: " + webRequest.getUrl(), tr);
+			listenerReply = checkDeadline(createListenerReply(webRequest, null, tr, Status.FAILED));
+		}
+		clearCancelHook();
+		flushDownloadProgress();
+		return listenerReply;
+	}
+
+	private WebReply probe() {
+		WebClient client = WebClientFactory.getInstance().getSingleConnectionClient(createSubRequest(Type.HEAD), context);
+		ReplyAdapter replyAdapter = callTracked(client);
+		if (replyAdapter.getStatus() != Status.OK || ((WebReply) replyAdapter.getReply()).getHttpStatusCode() != HTTPStatus.HTTP_OK) {
+			return null;
+		}
+		return (WebReply) replyAdapter.getReply();
+	}
+
+	private ReplyAdapter runSingleConnection() {
+		WebClient client = WebClientFactory.getInstance().getSingleConnectionClient(webRequest, context);
+		client.setWebRequest(webRequest);
+		// progress is coalesced by the listener of this client
+		client.setDownloadProgressListener(new ThrottledProgressListener(new DownloadProgressListener() {
+			@Override
+			public void downloadSize(long size) {
+				publishFileSize(size);
+			}
+
+			@Override
+			public void downloadProgress(long progress) {
+				publishDownloadProgress(progress);
+			}
+		}, 0, ThrottledProgressListener.NO_MIN_BYTES));
+		return callTracked(client);
+	}
+
+	/**
+	 * Runs a single connection {@link WebClient}, which is cancelled if this
+	 * {@link WebClient} is cancelled while it is running
+	 * 
+	 * @param client
+	 *            the {@link WebClient} to run
+	 * @return the {@link ReplyAdapter} of the {@link WebClient}
+	 */
+	private ReplyAdapter callTracked(WebClient client) {
+		track(client);
+		try {
+			return client.call();
+		} finally {
+			untrack(client);
+		}
+	}
+
+	private void track(WebClient client) {
+		synchronized (activeClients) {
+			activeClients.add(client);
+		}
+		if (webRequest.isCancelled()) {
+			client.cancel();
+		}
+	}
+
+	private void untrack(WebClient client) {
+		synchronized (activeClients) {
+			activeClients.remove(client);
+		}
+	}
+
+	private void download(long length) throws IOException, InterruptedException {
+		TempFile tmp = webRequest.getTmpFile().second;
+		File file = new File(tmp.getPath());
+		if (file.exists()) {
+			file.delete();
+		}
+
+		int count = (int) Math.min(tmp.getSegments(), length / MIN_SEGMENT_SIZE);
+		long segmentSize = length / count;
+		LOGGER.info("Downloading " + webRequest.getUrl() + " (" + length + " bytes) using " + count + " segments");
+
+		boolean complete = false;
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			try {
+				raf.setLength(length);
+				channel = raf.getChannel();
+				publishFileSize(length);
+
+				List<SegmentDownload> segments = new ArrayList<SegmentDownload>(count);
+				for (int i = 0; i < count; i++) {
+					long start = i * segmentSize;
+					long end = i == count - 1 ? length - 1 : start + segmentSize - 1;
+					SegmentDownload segment = new SegmentDownload(start, end);
+					segments.add(segment);
+					segment.schedule(0);
+				}
+
+				// this client runs on the same WorkerQueue as its segments, run
+				// all segments that have not been picked up by a worker yet on
+				// this thread, otherwise all workers could end up waiting
+				for (SegmentDownload segment : segments) {
+					segment.runDue();
+				}
+				Throwable failure = null;
+				for (SegmentDownload segment : segments) {
+					Throwable tr = segment.await();
+					if (tr != null && failure == null) {
+						// stop the remaining segments, but wait for them
+						// before closing the file
+						aborted = true;
+						failure = tr;
+					}
+				}
+				if (failure != null) {
+					throw new IOException("Segment failed: " + failure.getMessage());
+				}
+			} finally {
+				raf.close();
+			}
+
+			if (webRequest.isCancelled()) {
+				LOGGER.info("delete file due to canclled download: " + file.getName());
+				return;
+			}
+
+			if (tmp.isUseChecksum()) {
+				String md5 = getMd5(file);
+				LOGGER.debug("md5 check, original: " + tmp.getChecksum() + " file: " + md5);
+				if (!md5.equalsIgnoreCase(tmp.getChecksum())) {
+					throw new IOException("Error while downloading File.\nOriginal Checksum: " + tmp.getChecksum() + "\nChecksum: " + md5);
+				}
+			}
+			complete = true;
+		} finally {
+			if (!complete) {
+				// segments are not resumable, a partial file is useless
+				aborted = true;
+				file.delete();
+			}
+		}
+	}
+
+	private String getMd5(File file) throws IOException {
+		FileInputStream fis = new FileInputStream(file);
+		byte[] buffer = ByteArrayPool.getInstance().acquire();
+		try {
+			MessageDigest md = MessageDigest.getInstance("MD5");
+			int bytesRead;
+			while ((bytesRead = fis.read(buffer)) != -1) {
+				md.update(buffer, 0, bytesRead);
+			}
+			return new String(Hex.encodeHex(md.digest()));
+		} catch (Exception e) {
+			throw new IOException(e.getMessage());
+		} finally {
+			ByteArrayPool.getInstance().release(buffer);
+			fis.close();
+		}
+	}
+
+	private WebRequest createSubRequest(Type type) {
+		WebRequest request = new WebRequest();
+		request.setUrl(webRequest.getUrl());
+		request.setRequestType(type);
+		request.setReadTimeout(webRequest.getReadTimeout());
+		request.setConnectionTimeout(webRequest.getConnectionTimeout());
+		request.setDeadline(webRequest.getDeadline());
+		request.setFollowRedirects(webRequest.isFollowRedirects());
+		request.setTrafficClass(webRequest.getTrafficClass());
+		// segments handle retries themselves
+		request.setNumberOfRetries(0);
+		Map<String, String> header = new HashMap<String, String>();
+		if (webRequest.getHeader() != null) {
+			header.putAll(webRequest.getHeader());
+		}
+		// ranges refer to the identity encoding
+		header.put("Accept-Encoding", "identity");
+		request.setHeader(header);
+		return request;
+	}
+
+	private boolean isStopped() {
+		return aborted || webRequest.isCancelled();
+	}
+
+	private synchronized void publishSegmentProgress(long progress) {
+		publishDownloadProgress(progress);
+	}
+
+	@Override
+	protected void buildHeader() {
+		// headers are set on the requests of the segments
+	}
+
+	@SuppressWarnings("javadoc")
+	public void setWorkerQueue(WorkerQueue workerQueue) {
+		this.workerQueue = workerQueue;
+	}
+
+	/**
+	 * Downloads a single byte range, interrupted downloads are continued at the
+	 * last byte written. Every attempt is a separate task, retries are
+	 * scheduled according to the {@link RetryPolicy} of the {@link WebRequest},
+	 * so that no worker thread is blocked while waiting for a retry.
+	 */
+	private final class SegmentDownload implements Runnable {
+
+		private final long start;
+		private final long end;
+
+		/**
+		 * The next byte to download, only accessed by the task of the current
+		 * attempt
+		 */
+		private long position;
+
+		private int attempt = 1;
+
+		/**
+		 * The task of the attempt that is queued or running
+		 */
+		private FutureTask<Void> task;
+
+		/**
+		 * The time the queued attempt is due
+		 */
+		private long due;
+
+		private boolean done;
+
+		private Throwable failure;
+
+		private SegmentDownload(long start, long end) {
+			this.start = start;
+			this.end = end;
+			this.position = start;
+		}
+
+		/**
+		 * Queues the next attempt of this segment
+		 * 
+		 * @param delay
+		 *            the delay of the attempt in ms
+		 */
+		private synchronized void schedule(long delay) {
+			task = new FutureTask<Void>(this, null);
+			due = System.currentTimeMillis() + delay;
+			boolean queued = delay == 0 ? workerQueue.execute(task, webRequest) : workerQueue.schedule(task, delay, webRequest);
+			if (!queued) {
+				// the attempt is run by the thread waiting for the segment
+				LOGGER.debug("WorkerQueue shut down, segment " + start + "-" + end + " is run by the waiting thread");
+			}
+			notifyAll();
+		}
+
+		private synchronized void finish(Throwable throwable) {
+			done = true;
+			failure = throwable;
+			notifyAll();
+		}
+
+		/**
+		 * Runs the queued attempt on the calling thread, if it is due and has
+		 * not been picked up by a worker yet
+		 */
+		private void runDue() {
+			FutureTask<Void> current;
+			synchronized (this) {
+				if (done || System.currentTimeMillis() < due) {
+					return;
+				}
+				current = task;
+			}
+			current.run();
+		}
+
+		/**
+		 * Waits until the segment is complete, attempts that are due but have
+		 * not been picked up by a worker are run on the calling thread
+		 * 
+		 * @return the failure of the segment or <code>null</code>
+		 * @throws InterruptedException
+		 *             if the calling thread has been interrupted
+		 */
+		private Throwable await() throws InterruptedException {
+			while (true) {
+				FutureTask<Void> current;
+				synchronized (this) {
+					if (done) {
+						return failure;
+					}
+					long wait = due - System.currentTimeMillis();
+					if (wait > 0) {
+						wait(wait);
+						continue;
+					}
+					current = task;
+				}
+				// does nothing if a worker is running the attempt already
+				current.run();
+				synchronized (this) {
+					while (!done && task == current && !current.isDone()) {
+						wait();
+					}
+				}
+			}
+		}
+
+		/**
+		 * Runs a single attempt
+		 */
+		@Override
+		public void run() {
+			if (isStopped()) {
+				finish(null);
+				return;
+			}
+			try {
+				position = fetch(position);
+				finish(null);
+			} catch (Throwable tr) {
+				if (isStopped()) {
+					// the connection has been aborted
+					finish(null);
+					return;
+				}
+				long delay = RetryPolicy.NO_RETRY;
+				if (tr instanceof IOException) {
+					delay = getRetryDelay(attempt, createListenerReply(webRequest, null, tr, Status.FAILED));
+				}
+				if (delay < 0) {
+					finish(tr);
+					return;
+				}
+				LOGGER.info("Segment " + start + "-" + end + " interrupted at " + position + ", retrying", tr);
+				attempt++;
+				schedule(delay);
+			}
+		}
+
+		private long fetch(long position) throws IOException {
+			WebRequest request = createSubRequest(Type.GET);
+			request.setGetStream(true);
+			request.getHeader().put("Range", "bytes=" + position + "-" + end);
+			if (validator != null) {
+				request.getHeader().put("If-Range", validator);
+			}
+
+			WebClient client = WebClientFactory.getInstance().getSingleConnectionClient(request, context);
+			client.setWebRequest(request);
+			// the reply is streamed, the client stays tracked until the
+			// stream has been read
+			track(client);
+			try {
+				return readSegment(client.call(), position);
+			} finally {
+				untrack(client);
+			}
+		}
+
+		private long readSegment(ReplyAdapter replyAdapter, long position) throws IOException {
+			if (replyAdapter.getStatus() != Status.OK) {
+				Throwable tr = replyAdapter.getThrowable();
+				throw new IOException("Segment request failed: " + (tr == null ? "unknown" : tr.getMessage()));
+			}
+
+			WebReply reply = (WebReply) replyAdapter.getReply();
+			InputStream in = reply.getInputStream();
+			try {
+				if (reply.getHttpStatusCode() != HTTPStatus.HTTP_PARTIAL) {
+					// the file has changed or the server ignored the range,
+					// retrying won't help
+					throw new WebClientException("Unexpected reply to range request: " + reply.getHttpStatusCode());
+				}
+				String contentRange = getHeaderValue(reply.getReplyHeader(), "Content-Range");
+				if (contentRange == null || !contentRange.replace("bytes", "").trim().startsWith(position + "-")) {
+					throw new WebClientException("Unexpected Content-Range: " + contentRange + ", expected start: " + position);
+				}
+				if (in == null) {
+					throw new EOFException("Empty reply to range request");
+				}
+
+				byte[] buffer = ByteArrayPool.getInstance().acquire();
+				try {
+					int bytesRead;
+					while (position <= end && (bytesRead = in.read(buffer)) != -1) {
+						if (isStopped()) {
+							return position;
+						}
+						checkTransferDeadline();
+						int length = (int) Math.min(bytesRead, end - position + 1);
+						ByteBuffer data = ByteBuffer.wrap(buffer, 0, length);
+						long offset = position;
+						while (data.hasRemaining()) {
+							offset += channel.write(data, offset);
+						}
+						position += length;
+						publishSegmentProgress(length);
+					}
+				} finally {
+					ByteArrayPool.getInstance().release(buffer);
+				}
+			} finally {
+				if (in != null) {
+					try {
+						in.close();
+					} catch (IOException e) {
+						LOGGER.debug("Could not close stream", e);
+					}
+				}
+			}
+			if (position <= end) {
+				throw new EOFException("Segment ended prematurely at " + position);
+			}
+			return position;
+		}
+	}
+}
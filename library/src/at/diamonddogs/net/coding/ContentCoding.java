@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2012, 2013 the diamond:dogs|group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.diamonddogs.net.coding;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes a content coding, e.g. gzip. Register implementations with the
+ * {@link ContentCodingRegistry}, so that they are advertised in the
+ * Accept-Encoding header and applied to replies.
+ */
+public interface ContentCoding {
+
+	/**
+	 * Returns the name of the coding as used in the Accept-Encoding and
+	 * Content-Encoding header fields
+	 * 
+	 * @return the lower case name of the coding
+	 */
+	public String getName();
+
+	/**
+	 * Wraps an encoded stream
+	 * 
+	 * @param in
+	 *            the encoded stream
+	 * @return a stream that yields the decoded content
+	 * @throws IOException
+	 *             if the stream cannot be decoded
+	 */
+	public InputStream decode(InputStream in) throws IOException;
+}
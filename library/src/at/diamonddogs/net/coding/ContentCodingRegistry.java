@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2012, 2013 the diamond:dogs|group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.diamonddogs.net.coding;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holds the {@link ContentCoding}s the library is able to decode. gzip and
+ * deflate are always available. Brotli (br) is registered automatically if
+ * the Brotli decoder (org.brotli.dec.BrotliInputStream) is part of the app,
+ * other decoders can be added using
+ * {@link ContentCodingRegistry#register(ContentCoding)}.
+ */
+public class ContentCodingRegistry {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(ContentCodingRegistry.class.getSimpleName());
+
+	private static final String BROTLI_DECODER = "org.brotli.dec.BrotliInputStream";
+
+	private static ContentCodingRegistry INSTANCE;
+
+	/**
+	 * The registered codings in order of preference
+	 */
+	private final Map<String, ContentCoding> codings = new LinkedHashMap<String, ContentCoding>();
+
+	private String acceptEncoding;
+
+	private ContentCodingRegistry() {
+		registerBrotli();
+		register(new GzipCoding("gzip"));
+		register(new DeflateCoding());
+		// legacy alias, never advertised
+		codings.put("x-gzip", new GzipCoding("x-gzip"));
+	}
+
+	/**
+	 * Obtains the {@link ContentCodingRegistry} singleton instance
+	 * 
+	 * @return an instance of {@link ContentCodingRegistry}
+	 */
+	public static synchronized ContentCodingRegistry getInstance() {
+		if (INSTANCE == null) {
+			INSTANCE = new ContentCodingRegistry();
+		}
+		return INSTANCE;
+	}
+
+	/**
+	 * Registers a {@link ContentCoding}, replaces any coding of the same name
+	 * 
+	 * @param coding
+	 *            the {@link ContentCoding}
+	 */
+	public synchronized void register(ContentCoding coding) {
+		codings.put(coding.getName().toLowerCase(), coding);
+		acceptEncoding = null;
+	}
+
+	/**
+	 * Returns the {@link ContentCoding} of a given name
+	 * 
+	 * @param name
+	 *            the name of the coding, case insensitive
+	 * @return the {@link ContentCoding} or <code>null</code> if the coding is
+	 *         not supported
+	 */
+	public synchronized ContentCoding get(String name) {
+		return codings.get(name.trim().toLowerCase());
+	}
+
+	/**
+	 * Returns the value of the Accept-Encoding header field, listing all
+	 * registered codings
+	 * 
+	 * @return the value of the Accept-Encoding header field
+	 */
+	public synchronized String getAcceptEncoding() {
+		if (acceptEncoding == null) {
+			StringBuilder sb = new StringBuilder();
+			for (String name : codings.keySet()) {
+				if (name.startsWith("x-")) {
+					continue;
+				}
+				if (sb.length() > 0) {
+					sb.append(", ");
+				}
+				sb.append(name);
+			}
+			acceptEncoding = sb.toString();
+		}
+		return acceptEncoding;
+	}
+
+	private void registerBrotli() {
+		try {
+			final Constructor<?> constructor = Class.forName(BROTLI_DECODER).getConstructor(InputStream.class);
+			register(new ContentCoding() {
+				@Override
+				public String getName() {
+					return "br";
+				}
+
+				@Override
+				public InputStream decode(InputStream in) throws IOException {
+					try {
+						return (InputStream) constructor.newInstance(in);
+					} catch (InvocationTargetException e) {
+						if (e.getCause() instanceof IOException) {
+							throw (IOException) e.getCause();
+						}
+						throw new IOException("Could not create Brotli decoder: " + e.getCause());
+					} catch (Exception e) {
+						throw new IOException("Could not create Brotli decoder: " + e);
+					}
+				}
+			});
+			LOGGER.debug("Brotli decoder available");
+		} catch (Throwable tr) {
+			LOGGER.debug("Brotli decoder not available");
+		}
+	}
+
+	private static final class GzipCoding implements ContentCoding {
+		private final String name;
+
+		private GzipCoding(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public String getName() {
+			return name;
+		}
+
+		@Override
+		public InputStream decode(InputStream in) throws IOException {
+			return new GZIPInputStream(in);
+		}
+	}
+
+	/**
+	 * Decodes deflate, which should be zlib wrapped, but is sent as raw
+	 * deflate by some servers
+	 */
+	private static final class DeflateCoding implements ContentCoding {
+		@Override
+		public String getName() {
+			return "deflate";
+		}
+
+		@Override
+		public InputStream decode(InputStream in) throws IOException {
+			PushbackInputStream pb = new PushbackInputStream(in, 2);
+			int b0 = pb.read();
+			if (b0 == -1) {
+				return pb;
+			}
+			int b1 = pb.read();
+			if (b1 != -1) {
+				pb.unread(b1);
+			}
+			pb.unread(b0);
+			boolean zlib = (b0 & 0x0F) == 8 && b1 != -1 && ((b0 << 8) | b1) % 31 == 0;
+			final Inflater inflater = new Inflater(!zlib);
+			return new InflaterInputStream(pb, inflater) {
+				@Override
+				public void close() throws IOException {
+					try {
+						super.close();
+					} finally {
+						// not done by InflaterInputStream for custom inflaters
+						inflater.end();
+					}
+				}
+			};
+		}
+	}
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2012, 2013 the diamond:dogs|group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.diamonddogs.net.coding;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.protocol.HTTP;
+
+/**
+ * Compresses an {@link HttpEntity} while it is being written, the entity is
+ * never buffered as a whole. The compressed length is unknown in advance, the
+ * entity has to be sent chunked. Only {@link GzipRequestEntity#getContent()}
+ * buffers the compressed entity.
+ */
+public class GzipRequestEntity extends HttpEntityWrapper {
+
+	private static final Header CONTENT_ENCODING = new BasicHeader(HTTP.CONTENT_ENCODING, "gzip");
+
+	/**
+	 * Creates a new {@link GzipRequestEntity}
+	 * 
+	 * @param wrapped
+	 *            the {@link HttpEntity} to compress
+	 */
+	public GzipRequestEntity(HttpEntity wrapped) {
+		super(wrapped);
+	}
+
+	@Override
+	public Header getContentEncoding() {
+		return CONTENT_ENCODING;
+	}
+
+	@Override
+	public long getContentLength() {
+		return -1;
+	}
+
+	@Override
+	public boolean isChunked() {
+		return true;
+	}
+
+	/**
+	 * Compresses the wrapped {@link HttpEntity} into a buffer, prefer
+	 * {@link GzipRequestEntity#writeTo(OutputStream)}
+	 */
+	@Override
+	public InputStream getContent() throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		writeTo(baos);
+		return new ByteArrayInputStream(baos.toByteArray());
+	}
+
+	@Override
+	public void writeTo(OutputStream outstream) throws IOException {
+		// closing the gzip stream releases its deflater, the caller owns the
+		// underlying stream
+		GZIPOutputStream gzip = new GZIPOutputStream(new NonClosingOutputStream(outstream));
+		try {
+			wrappedEntity.writeTo(gzip);
+		} finally {
+			gzip.close();
+		}
+	}
+
+	/**
+	 * Passes everything but {@link OutputStream#close()} to the wrapped stream
+	 */
+	private static final class NonClosingOutputStream extends FilterOutputStream {
+		private NonClosingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(byte[] buffer, int offset, int length) throws IOException {
+			out.write(buffer, offset, length);
+		}
+
+		@Override
+		public void close() throws IOException {
+			flush();
+		}
+	}
+}
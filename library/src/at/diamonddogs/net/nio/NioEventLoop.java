@@ -0,0 +1,636 @@
+/*
+ * Copyright (C) 2012, 2013 the diamond:dogs|group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.diamonddogs.net.nio;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import at.diamonddogs.net.ConnectionRacer;
+import at.diamonddogs.net.DnsCache;
+
+/**
+ * A single selector thread that multiplexes an arbitrary number of
+ * {@link NioHttpExchange}s. Idle keep-alive connections are kept per host and
+ * port and reused by subsequent exchanges. Name resolution and callbacks are
+ * run on separate small thread pools, so that neither may block the selector
+ * and slow name resolution does not delay completed exchanges. Hosts
+ * with several addresses are connected to by racing attempts, see
+ * {@link ConnectionRacer}.
+ */
+public class NioEventLoop implements Runnable {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(NioEventLoop.class.getSimpleName());
+
+	/**
+	 * The time in ms an idle connection is kept open
+	 */
+	public static final int IDLE_TIMEOUT = 30000;
+
+	/**
+	 * The maximum number of idle connections kept per host and port
+	 */
+	public static final int MAX_IDLE_CONNECTIONS_PER_ROUTE = 6;
+
+	private static final int WORKER_THREADS = 2;
+
+	private static final int RESOLVER_THREADS = 2;
+
+	private static final int READ_BUFFER_SIZE = 16384;
+
+	private static NioEventLoop INSTANCE;
+
+	private final Selector selector;
+
+	private final Thread thread;
+
+	/**
+	 * Tasks that need to be run on the event loop thread
+	 */
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+	/**
+	 * Executes callbacks
+	 */
+	private final ExecutorService workers;
+
+	/**
+	 * Executes blocking name resolution
+	 */
+	private final ExecutorService resolvers;
+
+	// the following fields are only accessed by the event loop thread
+	private final List<NioHttpExchange> activeExchanges = new LinkedList<NioHttpExchange>();
+	private final Map<String, LinkedList<IdleConnection>> idleConnections = new HashMap<String, LinkedList<IdleConnection>>();
+	private final List<Timer> timers = new LinkedList<Timer>();
+	private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+	private final AtomicInteger openedConnections = new AtomicInteger();
+	private final AtomicInteger reusedConnections = new AtomicInteger();
+
+	private NioEventLoop() throws IOException {
+		selector = Selector.open();
+		workers = createExecutor(WORKER_THREADS, "NioEventLoop-worker-");
+		resolvers = createExecutor(RESOLVER_THREADS, "NioEventLoop-resolver-");
+		thread = new Thread(this, "NioEventLoop");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private static ExecutorService createExecutor(int threads, final String name) {
+		return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Gets the singleton instance of {@link NioEventLoop}, the event loop is
+	 * started on first access
+	 *
+	 * @return the singleton instance of {@link NioEventLoop}
+	 */
+	public static synchronized NioEventLoop getInstance() {
+		if (INSTANCE == null) {
+			try {
+				INSTANCE = new NioEventLoop();
+			} catch (IOException e) {
+				throw new IllegalStateException("Could not open selector", e);
+			}
+		}
+		return INSTANCE;
+	}
+
+	/**
+	 * Starts an exchange. The result is reported to the
+	 * {@link NioHttpExchange.Callback} of the exchange.
+	 *
+	 * @param exchange
+	 *            the exchange to run
+	 */
+	public void execute(final NioHttpExchange exchange) {
+		resolvers.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					exchange.addresses = ConnectionRacer.getInstance().sortAddresses(DnsCache.getInstance().lookup(exchange.host));
+				} catch (UnknownHostException e) {
+					dispatchFailure(exchange, e);
+					return;
+				}
+				runOnLoop(new Runnable() {
+					@Override
+					public void run() {
+						startExchange(exchange, false);
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Cancels an exchange, the callback will be informed using a
+	 * {@link CancellationException}
+	 *
+	 * @param exchange
+	 *            the exchange to cancel
+	 */
+	public void cancel(final NioHttpExchange exchange) {
+		exchange.cancelled = true;
+		runOnLoop(new Runnable() {
+			@Override
+			public void run() {
+				if (activeExchanges.contains(exchange)) {
+					fail(exchange, new CancellationException("Exchange has been cancelled"));
+				}
+			}
+		});
+	}
+
+	/**
+	 * Runs a task on the worker pool after the given delay. The task must not
+	 * block.
+	 *
+	 * @param task
+	 *            the task to run
+	 * @param delay
+	 *            the delay in ms
+	 */
+	public void schedule(final Runnable task, long delay) {
+		final long due = System.currentTimeMillis() + Math.max(0, delay);
+		runOnLoop(new Runnable() {
+			@Override
+			public void run() {
+				timers.add(new Timer(due, task));
+			}
+		});
+	}
+
+	/**
+	 * Returns the number of connections opened by this event loop
+	 *
+	 * @return the number of opened connections
+	 */
+	public int getOpenedConnections() {
+		return openedConnections.get();
+	}
+
+	/**
+	 * Returns the number of exchanges that have been run on a reused
+	 * connection
+	 *
+	 * @return the number of reused connections
+	 */
+	public int getReusedConnections() {
+		return reusedConnections.get();
+	}
+
+	private void runOnLoop(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			try {
+				selector.select(getSelectTimeout());
+				runTasks();
+				Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+				while (iterator.hasNext()) {
+					SelectionKey key = iterator.next();
+					iterator.remove();
+					handleKey(key);
+				}
+				long now = System.currentTimeMillis();
+				startDelayedAttempts(now);
+				checkTimeouts(now);
+				runTimers(now);
+				evictIdleConnections(now);
+			} catch (Throwable tr) {
+				LOGGER.error("Error in event loop", tr);
+			}
+		}
+	}
+
+	private long getSelectTimeout() {
+		long next = Long.MAX_VALUE;
+		for (NioHttpExchange exchange : activeExchanges) {
+			next = Math.min(next, exchange.deadline);
+			if (exchange.isConnecting()) {
+				next = Math.min(next, exchange.nextAttempt);
+			}
+		}
+		for (Timer timer : timers) {
+			next = Math.min(next, timer.due);
+		}
+		if (!idleConnections.isEmpty()) {
+			next = Math.min(next, System.currentTimeMillis() + IDLE_TIMEOUT);
+		}
+		if (next == Long.MAX_VALUE) {
+			return 0;
+		}
+		return Math.max(1, next - System.currentTimeMillis());
+	}
+
+	private void runTasks() {
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			task.run();
+		}
+	}
+
+	private void handleKey(SelectionKey key) {
+		if (!key.isValid()) {
+			// a connection attempt that lost the race earlier in this batch
+			return;
+		}
+		Object attachment = key.attachment();
+		if (attachment instanceof IdleConnection) {
+			// an idle connection became readable, the server either closed it
+			// or sent garbage, either way it cannot be reused
+			removeIdleConnection((IdleConnection) attachment);
+			close(((IdleConnection) attachment).channel);
+			return;
+		}
+		NioHttpExchange exchange = (NioHttpExchange) attachment;
+		try {
+			if (key.isConnectable()) {
+				onConnectable(exchange, key);
+			} else if (key.isWritable()) {
+				onWritable(exchange);
+			} else if (key.isReadable()) {
+				onReadable(exchange);
+			}
+		} catch (IOException e) {
+			fail(exchange, e);
+		} catch (CancelledKeyException e) {
+			fail(exchange, new EOFException("Connection closed"));
+		} catch (RuntimeException e) {
+			LOGGER.warn("Error handling exchange with " + exchange.host, e);
+			fail(exchange, e);
+		}
+	}
+
+	private void startExchange(NioHttpExchange exchange, boolean forceNewConnection) {
+		if (exchange.cancelled) {
+			dispatchFailure(exchange, new CancellationException("Exchange has been cancelled"));
+			return;
+		}
+		exchange.reset();
+		try {
+			IdleConnection idle = forceNewConnection ? null : takeIdleConnection(exchange.getRoute());
+			if (idle != null) {
+				reusedConnections.incrementAndGet();
+				exchange.reusedConnection = true;
+				exchange.channel = idle.channel;
+				exchange.key = idle.channel.keyFor(selector);
+				exchange.key.attach(exchange);
+				exchange.key.interestOps(SelectionKey.OP_WRITE);
+				exchange.deadline = getDeadline(exchange.readTimeout);
+			} else {
+				openedConnections.incrementAndGet();
+				exchange.deadline = getDeadline(exchange.connectTimeout);
+				startAttempt(exchange);
+			}
+			activeExchanges.add(exchange);
+		} catch (IOException e) {
+			close(exchange.channel);
+			closeAttempts(exchange);
+			dispatchFailure(exchange, e);
+		}
+	}
+
+	/**
+	 * Starts a connection attempt to the next address of the exchange.
+	 * Addresses that cannot be connected to immediately are skipped.
+	 *
+	 * @throws IOException
+	 *             if no attempt could be started and no other attempt is
+	 *             pending
+	 */
+	private void startAttempt(NioHttpExchange exchange) throws IOException {
+		while (exchange.nextAddress < exchange.addresses.length) {
+			InetAddress address = exchange.addresses[exchange.nextAddress++];
+			SocketChannel channel = SocketChannel.open();
+			try {
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(true);
+				if (channel.connect(new InetSocketAddress(address, exchange.port))) {
+					onConnected(exchange, channel.register(selector, 0, exchange));
+				} else {
+					exchange.attempts.add(channel.register(selector, SelectionKey.OP_CONNECT, exchange));
+					exchange.nextAttempt = System.currentTimeMillis() + ConnectionRacer.getInstance().getAttemptDelay();
+				}
+				return;
+			} catch (IOException e) {
+				close(channel);
+				LOGGER.debug("Could not connect to " + address + ": " + e);
+				if (exchange.nextAddress == exchange.addresses.length && !exchange.isConnecting()) {
+					throw e;
+				}
+			}
+		}
+		exchange.nextAttempt = Long.MAX_VALUE;
+	}
+
+	private void startDelayedAttempts(long now) {
+		List<NioHttpExchange> due = null;
+		for (NioHttpExchange exchange : activeExchanges) {
+			if (exchange.isConnecting() && now >= exchange.nextAttempt) {
+				if (due == null) {
+					due = new ArrayList<NioHttpExchange>();
+				}
+				due.add(exchange);
+			}
+		}
+		if (due != null) {
+			for (NioHttpExchange exchange : due) {
+				try {
+					startAttempt(exchange);
+				} catch (IOException e) {
+					fail(exchange, e);
+				}
+			}
+		}
+	}
+
+	private void onConnectable(NioHttpExchange exchange, SelectionKey key) throws IOException {
+		SocketChannel channel = (SocketChannel) key.channel();
+		try {
+			if (!channel.finishConnect()) {
+				return;
+			}
+		} catch (IOException e) {
+			// this attempt lost, the others keep racing
+			exchange.attempts.remove(key);
+			close(channel);
+			LOGGER.debug("Could not connect to " + exchange.host + ": " + e);
+			startAttempt(exchange);
+			if (!exchange.isConnecting() && exchange.channel == null) {
+				throw e;
+			}
+			return;
+		}
+		onConnected(exchange, key);
+	}
+
+	/**
+	 * Uses the connection that won the race and cancels all other attempts
+	 */
+	private void onConnected(NioHttpExchange exchange, SelectionKey key) {
+		exchange.attempts.remove(key);
+		closeAttempts(exchange);
+		exchange.channel = (SocketChannel) key.channel();
+		exchange.key = key;
+		exchange.key.interestOps(SelectionKey.OP_WRITE);
+		exchange.deadline = getDeadline(exchange.readTimeout);
+		if (ConnectionRacer.isMixed(exchange.addresses, exchange.nextAddress)) {
+			ConnectionRacer.getInstance().onConnected(exchange.channel.socket().getInetAddress());
+		}
+	}
+
+	private void closeAttempts(NioHttpExchange exchange) {
+		for (SelectionKey attempt : exchange.attempts) {
+			close((SocketChannel) attempt.channel());
+		}
+		exchange.attempts.clear();
+		exchange.nextAttempt = Long.MAX_VALUE;
+	}
+
+	private void onWritable(NioHttpExchange exchange) throws IOException {
+		exchange.channel.write(exchange.requestBuffer);
+		if (!exchange.requestBuffer.hasRemaining()) {
+			exchange.key.interestOps(SelectionKey.OP_READ);
+		}
+		exchange.deadline = getDeadline(exchange.readTimeout);
+	}
+
+	private void onReadable(NioHttpExchange exchange) throws IOException {
+		readBuffer.clear();
+		int read = exchange.channel.read(readBuffer);
+		boolean complete;
+		if (read == -1) {
+			complete = exchange.parser.onEndOfStream();
+		} else {
+			readBuffer.flip();
+			complete = exchange.parser.feed(readBuffer);
+		}
+		if (complete) {
+			complete(exchange);
+		} else {
+			exchange.deadline = getDeadline(exchange.readTimeout);
+		}
+	}
+
+	private void complete(NioHttpExchange exchange) {
+		activeExchanges.remove(exchange);
+		final NioHttpExchange finished = exchange;
+		final NioHttpResponseParser parser = exchange.parser;
+		if (parser.isKeepAlive() && !exchange.cancelled) {
+			parkConnection(exchange);
+		} else {
+			close(exchange.channel);
+		}
+		workers.execute(new Runnable() {
+			@Override
+			public void run() {
+				finished.callback.onResponse(finished, parser.getStatusCode(), parser.getHeaders(), parser.getBody());
+			}
+		});
+	}
+
+	private void fail(NioHttpExchange exchange, Throwable throwable) {
+		activeExchanges.remove(exchange);
+		close(exchange.channel);
+		closeAttempts(exchange);
+		if (exchange.reusedConnection && !exchange.cancelled && !exchange.parser.hasReceivedBytes()
+				&& !(throwable instanceof SocketTimeoutException)) {
+			// the server closed the pooled connection before we noticed, the
+			// request has not been processed, so it is safe to send it again
+			LOGGER.debug("Stale connection, retrying on a fresh connection: " + exchange);
+			startExchange(exchange, true);
+			return;
+		}
+		dispatchFailure(exchange, throwable);
+	}
+
+	private void dispatchFailure(final NioHttpExchange exchange, final Throwable throwable) {
+		workers.execute(new Runnable() {
+			@Override
+			public void run() {
+				exchange.callback.onFailure(exchange, throwable);
+			}
+		});
+	}
+
+	private void checkTimeouts(long now) {
+		List<NioHttpExchange> expired = null;
+		for (NioHttpExchange exchange : activeExchanges) {
+			if (now >= exchange.deadline) {
+				if (expired == null) {
+					expired = new ArrayList<NioHttpExchange>();
+				}
+				expired.add(exchange);
+			}
+		}
+		if (expired != null) {
+			for (NioHttpExchange exchange : expired) {
+				fail(exchange, new SocketTimeoutException(exchange.isConnecting() ? "connect timed out" : "read timed out"));
+			}
+		}
+	}
+
+	private void runTimers(long now) {
+		Iterator<Timer> iterator = timers.iterator();
+		while (iterator.hasNext()) {
+			Timer timer = iterator.next();
+			if (now >= timer.due) {
+				iterator.remove();
+				workers.execute(timer.task);
+			}
+		}
+	}
+
+	private void parkConnection(NioHttpExchange exchange) {
+		String route = exchange.getRoute();
+		LinkedList<IdleConnection> connections = idleConnections.get(route);
+		if (connections == null) {
+			connections = new LinkedList<IdleConnection>();
+			idleConnections.put(route, connections);
+		}
+		if (connections.size() >= MAX_IDLE_CONNECTIONS_PER_ROUTE) {
+			close(exchange.channel);
+			return;
+		}
+		IdleConnection idle = new IdleConnection(route, exchange.channel, System.currentTimeMillis());
+		exchange.key.attach(idle);
+		exchange.key.interestOps(SelectionKey.OP_READ);
+		connections.addFirst(idle);
+	}
+
+	private IdleConnection takeIdleConnection(String route) {
+		LinkedList<IdleConnection> connections = idleConnections.get(route);
+		while (connections != null && !connections.isEmpty()) {
+			IdleConnection idle = connections.removeFirst();
+			if (idle.channel.isOpen() && idle.channel.isConnected()) {
+				if (connections.isEmpty()) {
+					idleConnections.remove(route);
+				}
+				return idle;
+			}
+			close(idle.channel);
+		}
+		idleConnections.remove(route);
+		return null;
+	}
+
+	private void removeIdleConnection(IdleConnection idle) {
+		LinkedList<IdleConnection> connections = idleConnections.get(idle.route);
+		if (connections != null) {
+			connections.remove(idle);
+			if (connections.isEmpty()) {
+				idleConnections.remove(idle.route);
+			}
+		}
+	}
+
+	private void evictIdleConnections(long now) {
+		Iterator<LinkedList<IdleConnection>> routes = idleConnections.values().iterator();
+		while (routes.hasNext()) {
+			LinkedList<IdleConnection> connections = routes.next();
+			Iterator<IdleConnection> iterator = connections.iterator();
+			while (iterator.hasNext()) {
+				IdleConnection idle = iterator.next();
+				if (now - idle.since >= IDLE_TIMEOUT) {
+					iterator.remove();
+					close(idle.channel);
+				}
+			}
+			if (connections.isEmpty()) {
+				routes.remove();
+			}
+		}
+	}
+
+	private long getDeadline(int timeout) {
+		return timeout <= 0 ? Long.MAX_VALUE : System.currentTimeMillis() + timeout;
+	}
+
+	private void close(SocketChannel channel) {
+		if (channel == null) {
+			return;
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			LOGGER.debug("Could not close channel", e);
+		}
+	}
+
+	private static final class IdleConnection {
+		private final String route;
+		private final SocketChannel channel;
+		private final long since;
+
+		private IdleConnection(String route, SocketChannel channel, long since) {
+			this.route = route;
+			this.channel = channel;
+			this.since = since;
+		}
+	}
+
+	private static final class Timer {
+		private final long due;
+		private final Runnable task;
+
+		private Timer(long due, Runnable task) {
+			this.due = due;
+			this.task = task;
+		}
+	}
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2012, 2013 the diamond:dogs|group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.diamonddogs.net.nio;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A single HTTP request / response exchange executed by {@link NioEventLoop}.
+ * All fields that are not final are owned by the event loop thread.
+ */
+public class NioHttpExchange {
+
+	/**
+	 * Receives the result of an exchange. Callbacks are never invoked on the
+	 * event loop thread.
+	 */
+	public interface Callback {
+		/**
+		 * Called once a complete response has been received
+		 *
+		 * @param exchange
+		 *            the exchange
+		 * @param statusCode
+		 *            the http status code
+		 * @param header
+		 *            the response header
+		 * @param body
+		 *            the (raw, not decoded) response body
+		 */
+		public void onResponse(NioHttpExchange exchange, int statusCode, Map<String, List<String>> header, byte[] body);
+
+		/**
+		 * Called if the exchange failed
+		 *
+		 * @param exchange
+		 *            the exchange
+		 * @param throwable
+		 *            the cause of the failure
+		 */
+		public void onFailure(NioHttpExchange exchange, Throwable throwable);
+	}
+
+	final String host;
+
+	final int port;
+
+	final byte[] request;
+
+	final boolean headRequest;
+
+	final int connectTimeout;
+
+	final int readTimeout;
+
+	final Callback callback;
+
+	volatile boolean cancelled;
+
+	/**
+	 * The addresses of the host, in the order they are tried
+	 */
+	InetAddress[] addresses;
+
+	/**
+	 * The index of the next address to try
+	 */
+	int nextAddress;
+
+	/**
+	 * The time the next connection attempt is started at
+	 */
+	long nextAttempt;
+
+	/**
+	 * Connection attempts that are still racing, empty once a connection has
+	 * been established
+	 */
+	final List<SelectionKey> attempts = new ArrayList<SelectionKey>(2);
+
+	SocketChannel channel;
+
+	SelectionKey key;
+
+	ByteBuffer requestBuffer;
+
+	NioHttpResponseParser parser;
+
+	boolean reusedConnection;
+
+	long deadline;
+
+	/**
+	 * Creates a new exchange
+	 *
+	 * @param host
+	 *            the target host
+	 * @param port
+	 *            the target port
+	 * @param request
+	 *            the serialized request (request line, header and body)
+	 * @param headRequest
+	 *            <code>true</code> if this is a HEAD request
+	 * @param connectTimeout
+	 *            the connect timeout in ms, 0 means no timeout
+	 * @param readTimeout
+	 *            the read timeout in ms, 0 means no timeout
+	 * @param callback
+	 *            the {@link Callback} that will be informed about the result
+	 */
+	public NioHttpExchange(String host, int port, byte[] request, boolean headRequest, int connectTimeout, int readTimeout,
+			Callback callback) {
+		this.host = host;
+		this.port = port;
+		this.request = request;
+		this.headRequest = headRequest;
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+		this.callback = callback;
+	}
+
+	/**
+	 * Returns the route key of this exchange, used for connection reuse
+	 *
+	 * @return the route key
+	 */
+	String getRoute() {
+		return host + ":" + port;
+	}
+
+	/**
+	 * Checks if connection attempts are still racing
+	 *
+	 * @return <code>true</code> if the exchange is connecting
+	 */
+	boolean isConnecting() {
+		return !attempts.isEmpty();
+	}
+
+	/**
+	 * Prepares the exchange for a (new) attempt
+	 */
+	void reset() {
+		requestBuffer = ByteBuffer.wrap(request);
+		parser = new NioHttpResponseParser(headRequest);
+		channel = null;
+		key = null;
+		nextAddress = 0;
+		nextAttempt = Long.MAX_VALUE;
+		attempts.clear();
+		reusedConnection = false;
+	}
+
+	/**
+	 * Checks if the exchange has been cancelled
+	 *
+	 * @return <code>true</code> if the exchange has been cancelled
+	 */
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	@Override
+	public String toString() {
+		return "NioHttpExchange [host=" + host + ", port=" + port + ", reusedConnection=" + reusedConnection + "]";
+	}
+}
@@ -0,0 +1,349 @@
+/*
+ * Copyright (C) 2012, 2013 the diamond:dogs|group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.diamonddogs.net.nio;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import at.diamonddogs.util.PresizedByteArrayOutputStream;
+
+/**
+ * Incremental HTTP/1.1 response parser used by {@link NioEventLoop}. Bytes are
+ * fed as they arrive, supports fixed length, chunked and read-until-close
+ * bodies.
+ */
+public class NioHttpResponseParser {
+
+	/**
+	 * Protects against malicious servers sending endless header lines
+	 */
+	private static final int MAX_LINE_LENGTH = 65536;
+
+	private enum State {
+		STATUS_LINE,
+		HEADERS,
+		BODY_FIXED,
+		BODY_CHUNK_SIZE,
+		BODY_CHUNK_DATA,
+		BODY_CHUNK_CRLF,
+		BODY_TRAILER,
+		BODY_UNTIL_CLOSE,
+		DONE
+	}
+
+	private final boolean headRequest;
+
+	private State state = State.STATUS_LINE;
+
+	private final StringBuilder line = new StringBuilder();
+
+	private String httpVersion;
+
+	private int statusCode = -1;
+
+	private Map<String, List<String>> headers = new LinkedHashMap<String, List<String>>();
+
+	private long remaining;
+
+	private PresizedByteArrayOutputStream body;
+
+	private boolean keepAlive;
+
+	private boolean bytesReceived;
+
+	/**
+	 * Creates a new parser
+	 *
+	 * @param headRequest
+	 *            <code>true</code> if the response belongs to a HEAD request
+	 *            (has no body)
+	 */
+	public NioHttpResponseParser(boolean headRequest) {
+		this.headRequest = headRequest;
+	}
+
+	/**
+	 * Feeds the parser with newly received bytes, all bytes of the buffer are
+	 * consumed
+	 *
+	 * @param buffer
+	 *            a buffer that is ready to be read from
+	 * @return <code>true</code> if the response is complete
+	 * @throws IOException
+	 *             if the response is malformed
+	 */
+	public boolean feed(ByteBuffer buffer) throws IOException {
+		if (buffer.hasRemaining()) {
+			bytesReceived = true;
+		}
+		while (buffer.hasRemaining()) {
+			switch (state) {
+			case STATUS_LINE:
+				if (readLine(buffer)) {
+					parseStatusLine(takeLine());
+				}
+				break;
+			case HEADERS:
+				if (readLine(buffer)) {
+					String header = takeLine();
+					if (header.length() == 0) {
+						onHeadersComplete();
+					} else {
+						parseHeader(header);
+					}
+				}
+				break;
+			case BODY_FIXED:
+				remaining -= readBody(buffer, remaining);
+				if (remaining == 0) {
+					state = State.DONE;
+				}
+				break;
+			case BODY_CHUNK_SIZE:
+				if (readLine(buffer)) {
+					long size = parseChunkSize(takeLine());
+					if (size == 0) {
+						state = State.BODY_TRAILER;
+					} else {
+						remaining = size;
+						state = State.BODY_CHUNK_DATA;
+					}
+				}
+				break;
+			case BODY_CHUNK_DATA:
+				remaining -= readBody(buffer, remaining);
+				if (remaining == 0) {
+					state = State.BODY_CHUNK_CRLF;
+				}
+				break;
+			case BODY_CHUNK_CRLF:
+				if (readLine(buffer)) {
+					takeLine();
+					state = State.BODY_CHUNK_SIZE;
+				}
+				break;
+			case BODY_TRAILER:
+				if (readLine(buffer) && takeLine().length() == 0) {
+					state = State.DONE;
+				}
+				break;
+			case BODY_UNTIL_CLOSE:
+				readBody(buffer, buffer.remaining());
+				break;
+			case DONE:
+				// we never pipeline requests, additional data renders the
+				// connection unusable
+				keepAlive = false;
+				buffer.position(buffer.limit());
+				break;
+			}
+		}
+		return state == State.DONE;
+	}
+
+	/**
+	 * Must be called if the server closed the connection
+	 *
+	 * @return <code>true</code> if the response is complete
+	 * @throws IOException
+	 *             if the connection has been closed prematurely
+	 */
+	public boolean onEndOfStream() throws IOException {
+		keepAlive = false;
+		if (state == State.BODY_UNTIL_CLOSE) {
+			state = State.DONE;
+		}
+		if (state != State.DONE) {
+			throw new EOFException("Connection closed by server, state: " + state);
+		}
+		return true;
+	}
+
+	private boolean readLine(ByteBuffer buffer) throws ProtocolException {
+		while (buffer.hasRemaining()) {
+			char c = (char) (buffer.get() & 0xff);
+			if (c == '\n') {
+				int length = line.length();
+				if (length > 0 && line.charAt(length - 1) == '\r') {
+					line.setLength(length - 1);
+				}
+				return true;
+			}
+			line.append(c);
+			if (line.length() > MAX_LINE_LENGTH) {
+				throw new ProtocolException("Header line too long");
+			}
+		}
+		return false;
+	}
+
+	private String takeLine() {
+		String ret = line.toString();
+		line.setLength(0);
+		return ret;
+	}
+
+	private long readBody(ByteBuffer buffer, long max) throws IOException {
+		int count = (int) Math.min(max, buffer.remaining());
+		body.write(buffer.array(), buffer.arrayOffset() + buffer.position(), count);
+		buffer.position(buffer.position() + count);
+		return count;
+	}
+
+	private void parseStatusLine(String statusLine) throws ProtocolException {
+		String[] parts = statusLine.split(" ", 3);
+		if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+			throw new ProtocolException("Invalid status line: " + statusLine);
+		}
+		httpVersion = parts[0];
+		try {
+			statusCode = Integer.parseInt(parts[1]);
+		} catch (NumberFormatException e) {
+			throw new ProtocolException("Invalid status code: " + statusLine);
+		}
+		state = State.HEADERS;
+	}
+
+	private void parseHeader(String header) {
+		int index = header.indexOf(':');
+		if (index <= 0) {
+			return;
+		}
+		String name = header.substring(0, index).trim();
+		String value = header.substring(index + 1).trim();
+		List<String> values = getHeaderValues(name);
+		if (values == null) {
+			values = new ArrayList<String>(2);
+			headers.put(name, values);
+		}
+		values.add(value);
+	}
+
+	private long parseChunkSize(String chunkLine) throws ProtocolException {
+		int index = chunkLine.indexOf(';');
+		String size = (index == -1 ? chunkLine : chunkLine.substring(0, index)).trim();
+		long chunkSize;
+		try {
+			chunkSize = Long.parseLong(size, 16);
+		} catch (NumberFormatException e) {
+			throw new ProtocolException("Invalid chunk size: " + chunkLine);
+		}
+		if (chunkSize < 0) {
+			throw new ProtocolException("Invalid chunk size: " + chunkLine);
+		}
+		return chunkSize;
+	}
+
+	private void onHeadersComplete() throws ProtocolException {
+		if (statusCode >= 100 && statusCode < 200 && statusCode != 101) {
+			// interim response, the actual response follows
+			headers = new LinkedHashMap<String, List<String>>();
+			state = State.STATUS_LINE;
+			return;
+		}
+
+		String connection = getHeaderValue("Connection");
+		if ("HTTP/1.0".equals(httpVersion)) {
+			keepAlive = connection != null && connection.equalsIgnoreCase("keep-alive");
+		} else {
+			keepAlive = connection == null || !connection.equalsIgnoreCase("close");
+		}
+
+		String transferEncoding = getHeaderValue("Transfer-Encoding");
+		String contentLength = getHeaderValue("Content-Length");
+		if (headRequest || statusCode == 204 || statusCode == 304) {
+			body = new PresizedByteArrayOutputStream(0);
+			state = State.DONE;
+		} else if (transferEncoding != null && transferEncoding.toLowerCase().contains("chunked")) {
+			body = new PresizedByteArrayOutputStream(-1);
+			state = State.BODY_CHUNK_SIZE;
+		} else if (contentLength != null) {
+			try {
+				remaining = Long.parseLong(contentLength.trim());
+			} catch (NumberFormatException e) {
+				throw new ProtocolException("Invalid content length: " + contentLength);
+			}
+			if (remaining < 0) {
+				throw new ProtocolException("Invalid content length: " + contentLength);
+			}
+			body = new PresizedByteArrayOutputStream(remaining);
+			state = remaining == 0 ? State.DONE : State.BODY_FIXED;
+		} else {
+			body = new PresizedByteArrayOutputStream(-1);
+			keepAlive = false;
+			state = State.BODY_UNTIL_CLOSE;
+		}
+	}
+
+	private List<String> getHeaderValues(String name) {
+		for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
+			if (entry.getKey().equalsIgnoreCase(name)) {
+				return entry.getValue();
+			}
+		}
+		return null;
+	}
+
+	private String getHeaderValue(String name) {
+		List<String> values = getHeaderValues(name);
+		return values == null || values.isEmpty() ? null : values.get(0);
+	}
+
+	/**
+	 * Checks if the connection can be reused once the response is complete
+	 *
+	 * @return <code>true</code> if the connection can be reused
+	 */
+	public boolean isKeepAlive() {
+		return keepAlive && state == State.DONE;
+	}
+
+	/**
+	 * Checks if any bytes have been received
+	 *
+	 * @return <code>true</code> if at least one byte of the response has been
+	 *         received
+	 */
+	public boolean hasReceivedBytes() {
+		return bytesReceived;
+	}
+
+	@SuppressWarnings("javadoc")
+	public int getStatusCode() {
+		return statusCode;
+	}
+
+	@SuppressWarnings("javadoc")
+	public Map<String, List<String>> getHeaders() {
+		return headers;
+	}
+
+	/**
+	 * Returns the body of the response, must only be called once the response
+	 * is complete
+	 *
+	 * @return the body
+	 */
+	public byte[] getBody() {
+		return body == null ? new byte[0] : body.getBytes();
+	}
+}
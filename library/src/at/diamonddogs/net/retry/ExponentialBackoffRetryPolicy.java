@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2012, 2013 the diamond:dogs|group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.diamonddogs.net.retry;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.MalformedURLException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import javax.net.ssl.SSLException;
+
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import at.diamonddogs.data.dataobjects.WebReply;
+import at.diamonddogs.data.dataobjects.WebRequest;
+import at.diamonddogs.data.dataobjects.WebRequest.Type;
+import at.diamonddogs.net.WebClient;
+import at.diamonddogs.net.WebClient.HTTPStatus;
+
+/**
+ * A {@link RetryPolicy} that retries transient failures with exponentially
+ * growing delays. The delay of a retry is chosen randomly between 0 and
+ * min(maxDelay, baseDelay * 2^(attempt - 1)) (full jitter), so that clients
+ * that failed at the same time do not retry at the same time. A Retry-After
+ * header sent by the server is honored. All retries are subject to a
+ * {@link RetryBudget}.
+ *
+ * Requests that are not idempotent (POST) are only retried if the server has
+ * not seen them, i.e. if the connection could not be established or the
+ * server replied with {@link HTTPStatus#HTTP_UNAVAILABLE} or 429.
+ */
+public class ExponentialBackoffRetryPolicy implements RetryPolicy {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(ExponentialBackoffRetryPolicy.class.getSimpleName());
+
+	/**
+	 * Too many requests, not part of {@link HTTPStatus}
+	 */
+	private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+	private static final int DEFAULT_MAX_RETRIES = 3;
+
+	private static final long DEFAULT_BASE_DELAY = 500;
+
+	private static final long DEFAULT_MAX_DELAY = 30000;
+
+	private static final long DEFAULT_MAX_RETRY_AFTER = 120000;
+
+	private final Random random = new Random();
+
+	private int maxRetries;
+
+	private long baseDelay;
+
+	private long maxDelay;
+
+	/**
+	 * Retry-After values exceeding this value (in ms) cause the
+	 * {@link WebRequest} to fail immediately
+	 */
+	private long maxRetryAfter = DEFAULT_MAX_RETRY_AFTER;
+
+	private boolean honorRetryAfter = true;
+
+	private Set<Integer> retryStatusCodes;
+
+	/**
+	 * The {@link RetryBudget} used by this policy, <code>null</code> disables
+	 * the budget
+	 */
+	private RetryBudget retryBudget = RetryBudget.getInstance();
+
+	/**
+	 * Creates an {@link ExponentialBackoffRetryPolicy} with 3 retries, a base
+	 * delay of 500 ms and a maximum delay of 30 s that retries
+	 * {@link HTTPStatus#HTTP_BAD_GATEWAY},
+	 * {@link HTTPStatus#HTTP_UNAVAILABLE} and
+	 * {@link HTTPStatus#HTTP_GATEWAY_TIMEOUT}
+	 */
+	public ExponentialBackoffRetryPolicy() {
+		this(DEFAULT_MAX_RETRIES, DEFAULT_BASE_DELAY, DEFAULT_MAX_DELAY);
+	}
+
+	/**
+	 * Creates an {@link ExponentialBackoffRetryPolicy} that retries
+	 * {@link HTTPStatus#HTTP_BAD_GATEWAY},
+	 * {@link HTTPStatus#HTTP_UNAVAILABLE} and
+	 * {@link HTTPStatus#HTTP_GATEWAY_TIMEOUT}
+	 *
+	 * @param maxRetries
+	 *            the maximum number of retries
+	 * @param baseDelay
+	 *            the delay cap of the first retry in ms
+	 * @param maxDelay
+	 *            the maximum delay in ms
+	 */
+	public ExponentialBackoffRetryPolicy(int maxRetries, long baseDelay, long maxDelay) {
+		this.maxRetries = maxRetries;
+		this.baseDelay = baseDelay;
+		this.maxDelay = maxDelay;
+		Set<Integer> statusCodes = new HashSet<Integer>();
+		statusCodes.add(HTTPStatus.HTTP_BAD_GATEWAY);
+		statusCodes.add(HTTPStatus.HTTP_UNAVAILABLE);
+		statusCodes.add(HTTPStatus.HTTP_GATEWAY_TIMEOUT);
+		this.retryStatusCodes = Collections.unmodifiableSet(statusCodes);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void onRequest(WebRequest webRequest) {
+		if (retryBudget != null) {
+			retryBudget.onRequest();
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long getRetryDelay(WebRequest webRequest, int attempt, WebReply reply, Throwable throwable) {
+		if (attempt > maxRetries) {
+			return NO_RETRY;
+		}
+		long retryAfter = -1;
+		if (throwable != null) {
+			if (!isRetryable(webRequest, throwable)) {
+				return NO_RETRY;
+			}
+		} else if (reply != null && retryStatusCodes.contains(reply.getHttpStatusCode())) {
+			int statusCode = reply.getHttpStatusCode();
+			if (!isIdempotent(webRequest) && statusCode != HTTPStatus.HTTP_UNAVAILABLE && statusCode != HTTP_TOO_MANY_REQUESTS) {
+				return NO_RETRY;
+			}
+			if (honorRetryAfter) {
+				retryAfter = getRetryAfter(reply);
+				if (retryAfter > maxRetryAfter) {
+					LOGGER.info("Not retrying " + webRequest.getUrl() + ", Retry-After exceeds " + maxRetryAfter + "ms: " + retryAfter);
+					return NO_RETRY;
+				}
+			}
+		} else {
+			return NO_RETRY;
+		}
+		if (retryBudget != null && !retryBudget.tryAcquire()) {
+			return NO_RETRY;
+		}
+		long cap = Math.min(maxDelay, baseDelay << Math.min(attempt - 1, 30));
+		long delay = (long) (random.nextDouble() * cap);
+		return Math.max(delay, retryAfter);
+	}
+
+	private boolean isIdempotent(WebRequest webRequest) {
+		return webRequest.getRequestType() != Type.POST;
+	}
+
+	private boolean isRetryable(WebRequest webRequest, Throwable throwable) {
+		if (throwable instanceof ConnectException) {
+			// the request never reached the server
+			return true;
+		}
+		if (!isIdempotent(webRequest)) {
+			return false;
+		}
+		if (throwable instanceof SSLException || throwable instanceof MalformedURLException
+				|| throwable instanceof FileNotFoundException) {
+			return false;
+		}
+		return throwable instanceof IOException;
+	}
+
+	/**
+	 * Parses the Retry-After header, which is either a number of seconds or a
+	 * date
+	 *
+	 * @param reply
+	 *            the {@link WebReply}
+	 * @return the delay in ms or -1 if the header is missing or invalid
+	 */
+	private long getRetryAfter(WebReply reply) {
+		String retryAfter = WebClient.getHeaderValue(reply.getReplyHeader(), "Retry-After");
+		if (retryAfter == null) {
+			return -1;
+		}
+		retryAfter = retryAfter.trim();
+		try {
+			return Math.max(0, Long.parseLong(retryAfter) * 1000);
+		} catch (NumberFormatException e) {
+			try {
+				return Math.max(0, DateUtils.parseDate(retryAfter).getTime() - System.currentTimeMillis());
+			} catch (DateParseException dpe) {
+				LOGGER.debug("Invalid Retry-After: " + retryAfter);
+				return -1;
+			}
+		}
+	}
+
+	@SuppressWarnings("javadoc")
+	public int getMaxRetries() {
+		return maxRetries;
+	}
+
+	@SuppressWarnings("javadoc")
+	public void setMaxRetries(int maxRetries) {
+		this.maxRetries = maxRetries;
+	}
+
+	@SuppressWarnings("javadoc")
+	public long getBaseDelay() {
+		return baseDelay;
+	}
+
+	@SuppressWarnings("javadoc")
+	public void setBaseDelay(long baseDelay) {
+		this.baseDelay = baseDelay;
+	}
+
+	@SuppressWarnings("javadoc")
+	public long getMaxDelay() {
+		return maxDelay;
+	}
+
+	@SuppressWarnings("javadoc")
+	public void setMaxDelay(long maxDelay) {
+		this.maxDelay = maxDelay;
+	}
+
+	@SuppressWarnings("javadoc")
+	public long getMaxRetryAfter() {
+		return maxRetryAfter;
+	}
+
+	@SuppressWarnings("javadoc")
+	public void setMaxRetryAfter(long maxRetryAfter) {
+		this.maxRetryAfter = maxRetryAfter;
+	}
+
+	@SuppressWarnings("javadoc")
+	public boolean isHonorRetryAfter() {
+		return honorRetryAfter;
+	}
+
+	@SuppressWarnings("javadoc")
+	public void setHonorRetryAfter(boolean honorRetryAfter) {
+		this.honorRetryAfter = honorRetryAfter;
+	}
+
+	@SuppressWarnings("javadoc")
+	public Set<Integer> getRetryStatusCodes() {
+		return retryStatusCodes;
+	}
+
+	/**
+	 * Sets the HTTP status codes that are retried, e.g. 502, 503 and 504
+	 *
+	 * @param retryStatusCodes
+	 *            the status codes
+	 */
+	public void setRetryStatusCodes(Set<Integer> retryStatusCodes) {
+		this.retryStatusCodes = Collections.unmodifiableSet(new HashSet<Integer>(retryStatusCodes));
+	}
+
+	@SuppressWarnings("javadoc")
+	public RetryBudget getRetryBudget() {
+		return retryBudget;
+	}
+
+	@SuppressWarnings("javadoc")
+	public void setRetryBudget(RetryBudget retryBudget) {
+		this.retryBudget = retryBudget;
+	}
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2012, 2013 the diamond:dogs|group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.diamonddogs.net.retry;
+
+import java.io.IOException;
+
+import at.diamonddogs.data.dataobjects.WebReply;
+import at.diamonddogs.data.dataobjects.WebRequest;
+
+/**
+ * The default {@link RetryPolicy}, used for all {@link WebRequest}s without a
+ * {@link RetryPolicy}. Retries I/O failures
+ * {@link WebRequest#getNumberOfRetries()} times, waiting
+ * {@link WebRequest#getRetryInterval()} ms between attempts.
+ */
+public class FixedIntervalRetryPolicy implements RetryPolicy {
+
+	private static FixedIntervalRetryPolicy INSTANCE;
+
+	/**
+	 * Returns the shared instance
+	 *
+	 * @return the {@link FixedIntervalRetryPolicy}
+	 */
+	public static synchronized FixedIntervalRetryPolicy getInstance() {
+		if (INSTANCE == null) {
+			INSTANCE = new FixedIntervalRetryPolicy();
+		}
+		return INSTANCE;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void onRequest(WebRequest webRequest) {
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long getRetryDelay(WebRequest webRequest, int attempt, WebReply reply, Throwable throwable) {
+		if (attempt > webRequest.getNumberOfRetries()) {
+			return NO_RETRY;
+		}
+		// a status code of -1 indicates an invalid response
+		if (throwable instanceof IOException || (throwable == null && reply != null && reply.getHttpStatusCode() == -1)) {
+			return webRequest.getRetryInterval();
+		}
+		return NO_RETRY;
+	}
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2012, 2013 the diamond:dogs|group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.diamonddogs.net.retry;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Limits retries to a fraction of the requests that have been made, so that
+ * retries cannot multiply the load on a failing backend. Every request
+ * deposits retryRatio tokens, every retry withdraws a whole token. A small
+ * number of retries per second is always granted, so that retries keep working
+ * if there is little traffic.
+ */
+public class RetryBudget {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(RetryBudget.class.getSimpleName());
+
+	/**
+	 * Default fraction of requests that may be retried
+	 */
+	public static final double DEFAULT_RETRY_RATIO = 0.2;
+
+	/**
+	 * Default number of retries per second that are granted regardless of the
+	 * number of requests
+	 */
+	public static final double DEFAULT_MIN_RETRIES_PER_SECOND = 1;
+
+	/**
+	 * Default maximum number of tokens
+	 */
+	public static final int DEFAULT_MAX_BALANCE = 20;
+
+	private static RetryBudget INSTANCE;
+
+	private final double retryRatio;
+
+	private final double minRetriesPerSecond;
+
+	private final double maxBalance;
+
+	private double balance;
+
+	private long lastRefill;
+
+	private long retriesGranted;
+
+	private long retriesDenied;
+
+	/**
+	 * Creates a new {@link RetryBudget}
+	 *
+	 * @param retryRatio
+	 *            the fraction of requests that may be retried
+	 * @param minRetriesPerSecond
+	 *            the number of retries per second that are granted regardless
+	 *            of the number of requests
+	 * @param maxBalance
+	 *            the maximum number of tokens, limits the number of retries in
+	 *            a burst
+	 */
+	public RetryBudget(double retryRatio, double minRetriesPerSecond, int maxBalance) {
+		this.retryRatio = retryRatio;
+		this.minRetriesPerSecond = minRetriesPerSecond;
+		this.maxBalance = maxBalance;
+		this.balance = maxBalance;
+		this.lastRefill = System.currentTimeMillis();
+	}
+
+	/**
+	 * Returns the global {@link RetryBudget}, shared by all
+	 * {@link RetryPolicy}s that do not use their own budget
+	 *
+	 * @return the global {@link RetryBudget}
+	 */
+	public static synchronized RetryBudget getInstance() {
+		if (INSTANCE == null) {
+			INSTANCE = new RetryBudget(DEFAULT_RETRY_RATIO, DEFAULT_MIN_RETRIES_PER_SECOND, DEFAULT_MAX_BALANCE);
+		}
+		return INSTANCE;
+	}
+
+	/**
+	 * Must be called once for every request
+	 */
+	public synchronized void onRequest() {
+		refill();
+		balance = Math.min(maxBalance, balance + retryRatio);
+	}
+
+	/**
+	 * Withdraws a token for a retry
+	 *
+	 * @return <code>true</code> if the retry may be made, <code>false</code> if
+	 *         the budget is exhausted
+	 */
+	public synchronized boolean tryAcquire() {
+		refill();
+		if (balance >= 1) {
+			balance--;
+			retriesGranted++;
+			return true;
+		}
+		retriesDenied++;
+		LOGGER.info("Retry budget exhausted, denied retries: " + retriesDenied);
+		return false;
+	}
+
+	private void refill() {
+		long now = System.currentTimeMillis();
+		balance = Math.min(maxBalance, balance + (now - lastRefill) * minRetriesPerSecond / 1000);
+		lastRefill = now;
+	}
+
+	@SuppressWarnings("javadoc")
+	public synchronized long getRetriesGranted() {
+		return retriesGranted;
+	}
+
+	@SuppressWarnings("javadoc")
+	public synchronized long getRetriesDenied() {
+		return retriesDenied;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "RetryBudget [retryRatio=" + retryRatio + ", minRetriesPerSecond=" + minRetriesPerSecond + ", maxBalance=" + maxBalance
+				+ ", balance=" + balance + ", retriesGranted=" + retriesGranted + ", retriesDenied=" + retriesDenied + "]";
+	}
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2012, 2013 the diamond:dogs|group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.diamonddogs.net.retry;
+
+import at.diamonddogs.data.dataobjects.WebReply;
+import at.diamonddogs.data.dataobjects.WebRequest;
+import at.diamonddogs.net.WebClient;
+
+/**
+ * Decides if and when a failed attempt of a {@link WebRequest} is retried.
+ * {@link RetryPolicy}s are shared between {@link WebRequest}s and must
+ * therefore be thread safe.
+ */
+public interface RetryPolicy {
+
+	/**
+	 * Returned by
+	 * {@link RetryPolicy#getRetryDelay(WebRequest, int, WebReply, Throwable)}
+	 * if the {@link WebRequest} must not be retried
+	 */
+	public static final long NO_RETRY = -1;
+
+	/**
+	 * Called once before the first attempt of a {@link WebRequest}
+	 *
+	 * @param webRequest
+	 *            the {@link WebRequest}
+	 */
+	public void onRequest(WebRequest webRequest);
+
+	/**
+	 * Called after every attempt of a {@link WebRequest}
+	 *
+	 * @param webRequest
+	 *            the {@link WebRequest}
+	 * @param attempt
+	 *            the number of attempts that have been made so far, starting
+	 *            at 1
+	 * @param reply
+	 *            the {@link WebReply} of the attempt or <code>null</code> if no
+	 *            reply has been received
+	 * @param throwable
+	 *            the {@link Throwable} that caused the attempt to fail or
+	 *            <code>null</code> if a {@link WebReply} has been received
+	 * @return the delay in ms after which the {@link WebRequest} is retried,
+	 *         or {@link RetryPolicy#NO_RETRY}. The {@link WebClient} never
+	 *         blocks a worker thread while waiting for a retry, unless it is
+	 *         called directly.
+	 */
+	public long getRetryDelay(WebRequest webRequest, int attempt, WebReply reply, Throwable throwable);
+}
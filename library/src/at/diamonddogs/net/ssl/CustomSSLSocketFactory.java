@@ -35,12 +35,31 @@ import org.apache.http.params.HttpParams;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import at.diamonddogs.net.DnsCache;
+
 public class CustomSSLSocketFactory implements SocketFactory, LayeredSocketFactory {
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(CustomSSLSocketFactory.class.getSimpleName());
 
 	private SSLContext sslcontext = null;
 
+	/**
+	 * Socket factory of {@link #sslcontext}, created on demand
+	 */
+	private javax.net.ssl.SSLSocketFactory socketFactory;
+
+	/**
+	 * Creates a factory that uses an existing {@link SSLContext}, so that
+	 * sessions cached by the context can be resumed
+	 * 
+	 * @param context
+	 *            the {@link SSLContext} to use
+	 */
+	public CustomSSLSocketFactory(SSLContext context) {
+		super();
+		sslcontext = context;
+	}
+
 	public CustomSSLSocketFactory(KeyStore store) {
 		super();
 		sslcontext = createCustomSSLContext(store);
@@ -76,6 +95,13 @@ public class CustomSSLSocketFactory implements SocketFactory, LayeredSocketFacto
 		}
 	}
 
+	private synchronized javax.net.ssl.SSLSocketFactory getSocketFactory() {
+		if (socketFactory == null) {
+			socketFactory = new SessionReusingSSLSocketFactory(sslcontext.getSocketFactory());
+		}
+		return socketFactory;
+	}
+
 	/**
 	 * @see org.apache.http.conn.scheme.SocketFactory#connectSocket(java.net.Socket,
 	 *      java.lang.String, int, java.net.InetAddress, int,
@@ -86,7 +112,7 @@ public class CustomSSLSocketFactory implements SocketFactory, LayeredSocketFacto
 			throws IOException, UnknownHostException, ConnectTimeoutException {
 		int connTimeout = HttpConnectionParams.getConnectionTimeout(params);
 		int soTimeout = HttpConnectionParams.getSoTimeout(params);
-		InetSocketAddress remoteAddress = new InetSocketAddress(host, port);
+		InetSocketAddress remoteAddress = new InetSocketAddress(DnsCache.getInstance().lookup(host)[0], port);
 		SSLSocket sslsock = (SSLSocket) ((sock != null) ? sock : createSocket());
 
 		if ((localAddress != null) || (localPort > 0)) {
@@ -109,7 +135,7 @@ public class CustomSSLSocketFactory implements SocketFactory, LayeredSocketFacto
 	@Override
 	public Socket createSocket() throws IOException {
 		if (sslcontext != null) {
-			return sslcontext.getSocketFactory().createSocket();
+			return getSocketFactory().createSocket();
 		} else {
 			try {
 				return SSLContext.getDefault().getSocketFactory().createSocket();
@@ -135,7 +161,7 @@ public class CustomSSLSocketFactory implements SocketFactory, LayeredSocketFacto
 	@Override
 	public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException, UnknownHostException {
 		if (sslcontext != null) {
-			return sslcontext.getSocketFactory().createSocket(socket, host, port, autoClose);
+			return getSocketFactory().createSocket(socket, host, port, autoClose);
 		} else {
 			try {
 				return SSLContext.getDefault().getSocketFactory().createSocket(socket, host, port, autoClose);
@@ -17,16 +17,16 @@ package at.diamonddogs.net.ssl;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.Socket;
-import java.net.UnknownHostException;
 import java.security.KeyManagementException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
-import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
+import java.util.Enumeration;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.TrustManagerFactory;
 import javax.net.ssl.X509TrustManager;
@@ -40,7 +40,9 @@ import at.diamonddogs.net.WebClientDefaultHttpClient;
 import at.diamonddogs.net.WebClientHttpURLConnection;
 
 /**
- * Enables SSL sockets on all included {@link WebClient}
+ * Enables SSL sockets on all included {@link WebClient}. All factories share
+ * a single {@link SSLContext}, whose client session cache allows resuming TLS
+ * sessions across connections and {@link WebClient} implementations.
  * 
  * TODO: save 2 SSL states, one for each {@link WebClient}
  */
@@ -50,6 +52,40 @@ public class SSLHelper {
 	private static SSLHelper INSTANCE;
 	private SSLState sslState;
 
+	/**
+	 * The default maximum number of cached TLS sessions
+	 */
+	public static final int DEFAULT_SESSION_CACHE_SIZE = 64;
+
+	/**
+	 * The default time in seconds a cached TLS session may be resumed
+	 */
+	public static final int DEFAULT_SESSION_TIMEOUT = 24 * 60 * 60;
+
+	/**
+	 * Identifies the all trusting configuration of the shared
+	 * {@link SSLContext}
+	 */
+	private static final Object ALL_TRUSTING = new Object();
+
+	/**
+	 * The {@link SSLContext} shared by all factories
+	 */
+	private SSLContext sslContext;
+
+	/**
+	 * Identifies the trust configuration of the shared {@link SSLContext}
+	 */
+	private Object sslContextSource;
+
+	private int sessionCacheSize = DEFAULT_SESSION_CACHE_SIZE;
+
+	private int sessionTimeout = DEFAULT_SESSION_TIMEOUT;
+
+	private final AtomicLong fullHandshakes = new AtomicLong();
+
+	private final AtomicLong resumedHandshakes = new AtomicLong();
+
 	/**
 	 * Stores the SSL factory for the apache {@link WebClient} ->
 	 * {@link WebClientDefaultHttpClient}
@@ -109,9 +145,8 @@ public class SSLHelper {
 				makeAllTrustManagerForJava();
 				return true;
 			} else {
-				SSLContext sslCtx = SSLContext.getInstance("TLS");
-				sslCtx.init(null, new TrustManager[] { tm }, null);
-				SSL_FACTORY_JAVA = sslCtx.getSocketFactory();
+				SSLContext sslCtx = getSSLContext(tm, new TrustManager[] { tm });
+				SSL_FACTORY_JAVA = new SessionReusingSSLSocketFactory(sslCtx.getSocketFactory());
 				sslState.trustAll = false;
 				return true;
 			}
@@ -137,7 +172,7 @@ public class SSLHelper {
 				makeAllTrustManagerForApache();
 				return true;
 			} else {
-				SSL_FACTORY_APACHE = new CustomSSLSocketFactory(tm);
+				SSL_FACTORY_APACHE = new CustomSSLSocketFactory(getSSLContext(tm, new TrustManager[] { tm }));
 				sslState.trustAll = false;
 				return true;
 			}
@@ -174,9 +209,7 @@ public class SSLHelper {
 				makeAllTrustManagerForApache();
 				return true;
 			} else {
-				KeyStore store = getKeyStore(c, resourceId, password);
-
-				SSL_FACTORY_APACHE = new CustomSSLSocketFactory(store);
+				SSL_FACTORY_APACHE = new CustomSSLSocketFactory(getSSLContext(resourceId, getTrustManagers(c, resourceId, password)));
 				sslState.trustAll = false;
 				return true;
 			}
@@ -195,12 +228,8 @@ public class SSLHelper {
 		}
 	}
 
-	private void makeAllTrustManagerForApache() throws KeyStoreException, NoSuchAlgorithmException, CertificateException, IOException,
-			KeyManagementException, UnrecoverableKeyException {
-		KeyStore store;
-		store = KeyStore.getInstance(KeyStore.getDefaultType());
-		store.load(null, null);
-		SSL_FACTORY_APACHE = new AllTrustingApacheSSLFactory(null);
+	private void makeAllTrustManagerForApache() throws NoSuchAlgorithmException, KeyManagementException {
+		SSL_FACTORY_APACHE = new AllTrustingApacheSSLFactory(getSSLContext(ALL_TRUSTING, getAllTrustingManager()));
 	}
 
 	/**
@@ -221,12 +250,8 @@ public class SSLHelper {
 				makeAllTrustManagerForJava();
 				return true;
 			} else {
-				KeyStore store = getKeyStore(c, resourceId, password);
-				TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
-				tmf.init(store);
-				SSLContext sslCtx = SSLContext.getInstance("TLS");
-				sslCtx.init(null, CustomX509TrustManager.getWrappedTrustmanager(tmf.getTrustManagers()), null);
-				SSL_FACTORY_JAVA = sslCtx.getSocketFactory();
+				SSLContext sslCtx = getSSLContext(resourceId, getTrustManagers(c, resourceId, password));
+				SSL_FACTORY_JAVA = new SessionReusingSSLSocketFactory(sslCtx.getSocketFactory());
 				sslState.trustAll = false;
 				return true;
 			}
@@ -246,9 +271,101 @@ public class SSLHelper {
 	}
 
 	private void makeAllTrustManagerForJava() throws NoSuchAlgorithmException, KeyManagementException {
-		SSLContext sslCtx = SSLContext.getInstance("TLS");
-		sslCtx.init(null, getAllTrustingManager(), new java.security.SecureRandom());
-		SSL_FACTORY_JAVA = sslCtx.getSocketFactory();
+		SSLContext sslCtx = getSSLContext(ALL_TRUSTING, getAllTrustingManager());
+		SSL_FACTORY_JAVA = new SessionReusingSSLSocketFactory(sslCtx.getSocketFactory());
+	}
+
+	/**
+	 * Returns the shared {@link SSLContext}. The context is only recreated if
+	 * the trust configuration changes, so that the apache and the java
+	 * {@link WebClient} share a single TLS session cache.
+	 * 
+	 * @param source
+	 *            identifies the trust configuration
+	 * @param trustManagers
+	 *            the {@link TrustManager}s of the trust configuration
+	 * @return the shared {@link SSLContext}
+	 */
+	private synchronized SSLContext getSSLContext(Object source, TrustManager[] trustManagers) throws NoSuchAlgorithmException,
+			KeyManagementException {
+		if (sslContext != null && source.equals(sslContextSource)) {
+			return sslContext;
+		}
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(null, trustManagers, null);
+		configureSessionCache(context);
+		sslContext = context;
+		sslContextSource = source;
+		return context;
+	}
+
+	private void configureSessionCache(SSLContext context) {
+		SSLSessionContext sessionContext = context.getClientSessionContext();
+		if (sessionContext != null) {
+			sessionContext.setSessionCacheSize(sessionCacheSize);
+			sessionContext.setSessionTimeout(sessionTimeout);
+		}
+	}
+
+	/**
+	 * Configures the client session cache of the shared {@link SSLContext}.
+	 * Cached sessions allow abbreviated handshakes, which save a round trip
+	 * and the key exchange on every new connection to a known host.
+	 * 
+	 * @param size
+	 *            the maximum number of cached sessions, 0 means unlimited
+	 * @param timeout
+	 *            the time in seconds a session may be resumed, 0 means
+	 *            unlimited
+	 */
+	public synchronized void setSessionCache(int size, int timeout) {
+		this.sessionCacheSize = size;
+		this.sessionTimeout = timeout;
+		if (sslContext != null) {
+			configureSessionCache(sslContext);
+		}
+	}
+
+	/**
+	 * Called by {@link SessionReusingSSLSocketFactory} once a handshake has
+	 * been completed
+	 * 
+	 * @param resumed
+	 *            <code>true</code> if a cached session has been resumed
+	 */
+	void onHandshakeCompleted(boolean resumed) {
+		if (resumed) {
+			resumedHandshakes.incrementAndGet();
+		} else {
+			fullHandshakes.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Returns a snapshot of the handshakes made with the shared
+	 * {@link SSLContext}
+	 * 
+	 * @return the current {@link HandshakeStatistics}
+	 */
+	public synchronized HandshakeStatistics getHandshakeStatistics() {
+		HandshakeStatistics statistics = new HandshakeStatistics();
+		statistics.fullHandshakes = fullHandshakes.get();
+		statistics.resumedHandshakes = resumedHandshakes.get();
+		SSLSessionContext sessionContext = sslContext == null ? null : sslContext.getClientSessionContext();
+		if (sessionContext != null) {
+			for (Enumeration<byte[]> ids = sessionContext.getIds(); ids.hasMoreElements(); ids.nextElement()) {
+				statistics.cachedSessions++;
+			}
+		}
+		return statistics;
+	}
+
+	private TrustManager[] getTrustManagers(Context c, int resourceId, String password) throws KeyStoreException, NoSuchAlgorithmException,
+			CertificateException, IOException {
+		KeyStore store = getKeyStore(c, resourceId, password);
+		TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		tmf.init(store);
+		return CustomX509TrustManager.getWrappedTrustmanager(tmf.getTrustManagers());
 	}
 
 	private TrustManager[] getAllTrustingManager() {
@@ -289,32 +406,33 @@ public class SSLHelper {
 	 * All trusting SSL factory for APACHE
 	 */
 	public final class AllTrustingApacheSSLFactory extends CustomSSLSocketFactory {
-		SSLContext sslContext = SSLContext.getInstance("TLS");
 
 		/**
 		 * Constructor
 		 * 
-		 * @param truststore
-		 *            the truststore
-		 * @throws NoSuchAlgorithmException
-		 * @throws KeyManagementException
-		 * @throws KeyStoreException
-		 * @throws UnrecoverableKeyException
+		 * @param sslContext
+		 *            an all trusting {@link SSLContext}
 		 */
-		public AllTrustingApacheSSLFactory(KeyStore truststore) throws NoSuchAlgorithmException, KeyManagementException, KeyStoreException,
-				UnrecoverableKeyException {
-			super(truststore);
-			sslContext.init(null, getAllTrustingManager(), null);
+		public AllTrustingApacheSSLFactory(SSLContext sslContext) {
+			super(sslContext);
 		}
+	}
 
-		@Override
-		public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException, UnknownHostException {
-			return sslContext.getSocketFactory().createSocket(socket, host, port, autoClose);
-		}
+	/**
+	 * Snapshot of handshake statistics
+	 */
+	public static final class HandshakeStatistics {
+		/** number of handshakes that negotiated a new session */
+		public long fullHandshakes;
+		/** number of handshakes that resumed a cached session */
+		public long resumedHandshakes;
+		/** number of sessions currently cached */
+		public int cachedSessions;
 
 		@Override
-		public Socket createSocket() throws IOException {
-			return sslContext.getSocketFactory().createSocket();
+		public String toString() {
+			return "HandshakeStatistics [fullHandshakes=" + fullHandshakes + ", resumedHandshakes=" + resumedHandshakes + ", cachedSessions="
+					+ cachedSessions + "]";
 		}
 	}
 
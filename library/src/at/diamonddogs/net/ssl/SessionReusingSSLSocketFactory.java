@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2012, 2013 the diamond:dogs|group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.diamonddogs.net.ssl;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Delegating {@link SSLSocketFactory} that enables session tickets on the
+ * sockets it creates (if supported by the platform) and reports whether a
+ * handshake resumed a cached session to the {@link SSLHelper}
+ */
+public class SessionReusingSSLSocketFactory extends SSLSocketFactory {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(SessionReusingSSLSocketFactory.class.getSimpleName());
+
+	private final SSLSocketFactory delegate;
+
+	/**
+	 * Creates a new {@link SessionReusingSSLSocketFactory}
+	 * 
+	 * @param delegate
+	 *            the {@link SSLSocketFactory} of a shared
+	 *            {@link javax.net.ssl.SSLContext}
+	 */
+	public SessionReusingSSLSocketFactory(SSLSocketFactory delegate) {
+		this.delegate = delegate;
+	}
+
+	private Socket configure(Socket socket) {
+		if (!(socket instanceof SSLSocket)) {
+			return socket;
+		}
+		SSLSocket sslSocket = (SSLSocket) socket;
+		enableSessionTickets(sslSocket);
+		final long created = System.currentTimeMillis();
+		sslSocket.addHandshakeCompletedListener(new HandshakeCompletedListener() {
+			@Override
+			public void handshakeCompleted(HandshakeCompletedEvent event) {
+				// a resumed session has been created before this socket
+				SSLHelper.getInstance().onHandshakeCompleted(event.getSession().getCreationTime() < created);
+			}
+		});
+		return sslSocket;
+	}
+
+	/**
+	 * Session tickets allow resumption without server side session state,
+	 * they are supported but disabled by default on recent platform versions
+	 */
+	private void enableSessionTickets(SSLSocket socket) {
+		try {
+			Method method = socket.getClass().getMethod("setUseSessionTickets", boolean.class);
+			method.invoke(socket, true);
+		} catch (NoSuchMethodException e) {
+			// not supported
+		} catch (Exception e) {
+			LOGGER.debug("Could not enable session tickets", e);
+		}
+	}
+
+	@Override
+	public Socket createSocket() throws IOException {
+		return configure(delegate.createSocket());
+	}
+
+	@Override
+	public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
+		return configure(delegate.createSocket(s, host, port, autoClose));
+	}
+
+	@Override
+	public Socket createSocket(String host, int port) throws IOException, UnknownHostException {
+		return configure(delegate.createSocket(host, port));
+	}
+
+	@Override
+	public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException, UnknownHostException {
+		return configure(delegate.createSocket(host, port, localHost, localPort));
+	}
+
+	@Override
+	public Socket createSocket(InetAddress host, int port) throws IOException {
+		return configure(delegate.createSocket(host, port));
+	}
+
+	@Override
+	public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+		return configure(delegate.createSocket(address, port, localAddress, localPort));
+	}
+
+	@Override
+	public String[] getDefaultCipherSuites() {
+		return delegate.getDefaultCipherSuites();
+	}
+
+	@Override
+	public String[] getSupportedCipherSuites() {
+		return delegate.getSupportedCipherSuites();
+	}
+}
@@ -0,0 +1,374 @@
+/*
+ * Copyright (C) 2012, 2013 the diamond:dogs|group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.diamonddogs.service.net;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import at.diamonddogs.data.dataobjects.WebRequest;
+import at.diamonddogs.util.WorkerQueue;
+
+/**
+ * Admits {@link WebRequest}s to the {@link HttpService}. The cache lookup and
+ * dispatch of admitted {@link WebRequest}s runs on a small number of
+ * dedicated threads, {@link WebRequest}s that cannot be started immediately
+ * wait in a bounded queue. Once the queue is full, the {@link RejectionPolicy}
+ * decides what happens to new {@link WebRequest}s, rejected
+ * {@link WebRequest}s are passed to the {@link RejectionListener}.
+ */
+public class AdmissionQueue {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(AdmissionQueue.class.getSimpleName());
+
+	/**
+	 * The default number of threads that run admitted {@link WebRequest}s
+	 */
+	public static final int DEFAULT_THREADS = 2;
+
+	/**
+	 * The default number of {@link WebRequest}s that may wait for admission
+	 */
+	public static final int DEFAULT_CAPACITY = 64;
+
+	/**
+	 * Decides what happens to a {@link WebRequest} if the queue is full
+	 */
+	public enum RejectionPolicy {
+		/** the new {@link WebRequest} is rejected */
+		REJECT,
+		/**
+		 * the oldest {@link WebRequest} of the lowest queued priority is
+		 * rejected to make room for the new {@link WebRequest}, unless its
+		 * priority is higher than the priority of the new {@link WebRequest}
+		 */
+		DROP_OLDEST_LOW_PRIORITY,
+		/**
+		 * the new {@link WebRequest} bypasses the queue and is admitted by the
+		 * {@link WorkerQueue} that runs the {@link WebRequest}s, never by the
+		 * calling thread, which usually is the UI thread
+		 */
+		WORKER_RUNS
+	}
+
+	/**
+	 * Informed about {@link WebRequest}s that have not been admitted
+	 */
+	public interface RejectionListener {
+		/**
+		 * Called once a {@link WebRequest} has been rejected, not holding any
+		 * lock of the {@link AdmissionQueue}
+		 *
+		 * @param webRequest
+		 *            the rejected {@link WebRequest}
+		 * @param queued
+		 *            the number of {@link WebRequest}s waiting for admission
+		 */
+		public void onRejected(WebRequest webRequest, int queued);
+	}
+
+	private final BlockingQueue<Runnable> queue;
+
+	private final ThreadPoolExecutor executor;
+
+	private final RejectionListener listener;
+
+	/**
+	 * Admits {@link WebRequest}s that overflow the queue, see
+	 * {@link RejectionPolicy#WORKER_RUNS}
+	 */
+	private final WorkerQueue workerQueue;
+
+	private final int capacity;
+
+	private RejectionPolicy policy = RejectionPolicy.REJECT;
+
+	private long admitted;
+
+	private long rejected;
+
+	private long dropped;
+
+	private long workerRuns;
+
+	private long cancelled;
+
+	private int maxQueued;
+
+	/**
+	 * Creates an {@link AdmissionQueue}
+	 *
+	 * @param threads
+	 *            the number of threads that run admitted {@link WebRequest}s
+	 * @param capacity
+	 *            the number of {@link WebRequest}s that may wait for admission
+	 * @param workerQueue
+	 *            the {@link WorkerQueue} that admits {@link WebRequest}s that
+	 *            overflow the queue if the {@link RejectionPolicy} is
+	 *            {@link RejectionPolicy#WORKER_RUNS}
+	 * @param listener
+	 *            the {@link RejectionListener} informed about rejected
+	 *            {@link WebRequest}s
+	 */
+	public AdmissionQueue(int threads, int capacity, WorkerQueue workerQueue, RejectionListener listener) {
+		if (listener == null || workerQueue == null) {
+			throw new IllegalArgumentException("workerQueue and listener must not be null");
+		}
+		this.capacity = capacity;
+		this.workerQueue = workerQueue;
+		this.listener = listener;
+		this.queue = new ArrayBlockingQueue<Runnable>(capacity);
+		this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, queue, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "AdmissionQueue-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Sets the {@link RejectionPolicy} applied once the queue is full
+	 *
+	 * @param policy
+	 *            the {@link RejectionPolicy}
+	 */
+	public synchronized void setRejectionPolicy(RejectionPolicy policy) {
+		if (policy == null) {
+			throw new IllegalArgumentException("policy must not be null");
+		}
+		this.policy = policy;
+	}
+
+	@SuppressWarnings("javadoc")
+	public synchronized RejectionPolicy getRejectionPolicy() {
+		return policy;
+	}
+
+	/**
+	 * Admits a {@link WebRequest}
+	 *
+	 * @param webRequest
+	 *            the {@link WebRequest}
+	 * @param runnable
+	 *            performs the cache lookup and dispatch of the
+	 *            {@link WebRequest}
+	 * @return <code>true</code> if the {@link WebRequest} has been admitted,
+	 *         <code>false</code> if it has been rejected
+	 */
+	public boolean admit(WebRequest webRequest, Runnable runnable) {
+		Admission admission = new Admission(webRequest, runnable);
+		Admission victim = null;
+		boolean runOnWorker = false;
+		boolean accepted = true;
+		int queued;
+		synchronized (this) {
+			if (executor.isShutdown()) {
+				accepted = false;
+			} else if (!execute(admission)) {
+				if (policy == RejectionPolicy.WORKER_RUNS) {
+					runOnWorker = workerQueue.execute(new FutureTask<Void>(admission, null), webRequest);
+					accepted = runOnWorker;
+				} else if (policy == RejectionPolicy.DROP_OLDEST_LOW_PRIORITY) {
+					victim = findVictim(webRequest);
+					if (victim == null || !queue.remove(victim)) {
+						victim = null;
+						accepted = false;
+					} else if (!execute(admission)) {
+						// the queue has been shut down in the meantime
+						accepted = false;
+					}
+				} else {
+					accepted = false;
+				}
+			}
+			if (runOnWorker) {
+				workerRuns++;
+			} else if (accepted) {
+				admitted++;
+			} else {
+				rejected++;
+			}
+			if (victim != null) {
+				dropped++;
+			}
+			queued = queue.size();
+			maxQueued = Math.max(maxQueued, queued);
+		}
+		if (victim != null) {
+			LOGGER.info("Admission queue full, dropped " + victim.webRequest.getId() + " in favour of " + webRequest.getId());
+			listener.onRejected(victim.webRequest, queued);
+		}
+		if (!accepted) {
+			LOGGER.info("Admission queue full, rejected " + webRequest.getId());
+			listener.onRejected(webRequest, queued);
+		}
+		if (runOnWorker) {
+			LOGGER.debug("Admission queue full, " + webRequest.getId() + " is admitted by the WorkerQueue");
+		}
+		return accepted;
+	}
+
+	/**
+	 * Removes a {@link WebRequest} that is waiting for admission from the
+	 * queue. The {@link WebRequest} must have been cancelled already, so that
+	 * it is not started if a thread is about to admit it.
+	 *
+	 * @param webRequest
+	 *            the {@link WebRequest}
+	 * @return <code>true</code> if the {@link WebRequest} has been removed,
+	 *         <code>false</code> if it is not waiting for admission
+	 */
+	public synchronized boolean cancel(WebRequest webRequest) {
+		for (Runnable runnable : queue) {
+			Admission admission = (Admission) runnable;
+			if (admission.webRequest == webRequest && queue.remove(admission)) {
+				cancelled++;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean execute(Admission admission) {
+		try {
+			executor.execute(admission);
+			return true;
+		} catch (RejectedExecutionException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Finds the oldest queued {@link WebRequest} of the lowest priority that
+	 * may be dropped in favour of a new {@link WebRequest}
+	 *
+	 * @param webRequest
+	 *            the new {@link WebRequest}
+	 * @return the {@link Admission} to drop or <code>null</code> if all
+	 *         queued {@link WebRequest}s have a higher priority
+	 */
+	private Admission findVictim(WebRequest webRequest) {
+		Admission victim = null;
+		int lowest = webRequest.getPriority().ordinal();
+		// the queue iterates from oldest to newest
+		for (Runnable runnable : queue) {
+			Admission admission = (Admission) runnable;
+			int ordinal = admission.webRequest.getPriority().ordinal();
+			if (ordinal > lowest || (victim == null && ordinal == lowest)) {
+				victim = admission;
+				lowest = ordinal;
+			}
+		}
+		return victim;
+	}
+
+	/**
+	 * Stops admitting {@link WebRequest}s, {@link WebRequest}s that have
+	 * already been admitted are still processed
+	 */
+	public synchronized void shutDown() {
+		executor.shutdown();
+	}
+
+	@SuppressWarnings("javadoc")
+	public synchronized boolean isShutDown() {
+		return executor.isShutdown();
+	}
+
+	/**
+	 * Returns a snapshot of the queue's statistics
+	 *
+	 * @return the current {@link AdmissionStatistics}
+	 */
+	public synchronized AdmissionStatistics getStatistics() {
+		AdmissionStatistics statistics = new AdmissionStatistics();
+		statistics.queued = queue.size();
+		statistics.maxQueued = maxQueued;
+		statistics.capacity = capacity;
+		statistics.active = executor.getActiveCount();
+		statistics.admitted = admitted;
+		statistics.rejected = rejected;
+		statistics.dropped = dropped;
+		statistics.workerRuns = workerRuns;
+		statistics.cancelled = cancelled;
+		return statistics;
+	}
+
+	/**
+	 * Snapshot of admission statistics
+	 */
+	public static final class AdmissionStatistics {
+		/** {@link WebRequest}s currently waiting for admission */
+		public int queued;
+		/** the largest number of {@link WebRequest}s that waited at once */
+		public int maxQueued;
+		/** the number of {@link WebRequest}s that may wait for admission */
+		public int capacity;
+		/** {@link WebRequest}s currently being admitted */
+		public int active;
+		/** {@link WebRequest}s admitted by the queue's threads */
+		public long admitted;
+		/** new {@link WebRequest}s rejected because the queue was full */
+		public long rejected;
+		/** queued {@link WebRequest}s dropped in favour of new ones */
+		public long dropped;
+		/** {@link WebRequest}s that overflowed the queue and were admitted by the {@link WorkerQueue} */
+		public long workerRuns;
+		/** {@link WebRequest}s cancelled while waiting for admission */
+		public long cancelled;
+
+		@Override
+		public String toString() {
+			return "AdmissionStatistics [queued=" + queued + ", maxQueued=" + maxQueued + ", capacity=" + capacity + ", active=" + active
+					+ ", admitted=" + admitted + ", rejected=" + rejected + ", dropped=" + dropped + ", workerRuns=" + workerRuns
+					+ ", cancelled=" + cancelled + "]";
+		}
+	}
+
+	/**
+	 * A {@link WebRequest} waiting for admission
+	 */
+	private static final class Admission implements Runnable {
+		private final WebRequest webRequest;
+		private final Runnable runnable;
+
+		private Admission(WebRequest webRequest, Runnable runnable) {
+			this.webRequest = webRequest;
+			this.runnable = runnable;
+		}
+
+		@Override
+		public void run() {
+			if (webRequest.isCancelled()) {
+				LOGGER.debug("Not admitting cancelled WebRequest " + webRequest.getId());
+				return;
+			}
+			runnable.run();
+		}
+	}
+}
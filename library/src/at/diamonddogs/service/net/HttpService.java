@@ -38,27 +38,37 @@ import android.os.RecoverySystem.ProgressListener;
 import android.util.SparseArray;
 import at.diamonddogs.data.adapter.ReplyAdapter;
 import at.diamonddogs.data.adapter.ReplyAdapter.Status;
+import at.diamonddogs.data.dataobjects.NonTimeCriticalTask.PRIORITY;
 import at.diamonddogs.data.dataobjects.Request;
 import at.diamonddogs.data.dataobjects.WebReply;
 import at.diamonddogs.data.dataobjects.WebRequest;
 import at.diamonddogs.exception.ProcessorExeception;
+import at.diamonddogs.exception.RequestRejectedException;
 import at.diamonddogs.exception.ServiceException;
+import at.diamonddogs.net.AsyncWebClient;
+import at.diamonddogs.net.BandwidthLimiter.TrafficClass;
+import at.diamonddogs.net.HttpClientConnectionPool;
+import at.diamonddogs.net.RedirectStore;
 import at.diamonddogs.net.WebClient;
 import at.diamonddogs.net.WebClient.DownloadProgressListener;
 import at.diamonddogs.net.WebClient.WebClientReplyListener;
 import at.diamonddogs.net.WebClientFactory;
+import at.diamonddogs.net.WebClientSegmented;
+import at.diamonddogs.service.net.AdmissionQueue.AdmissionStatistics;
+import at.diamonddogs.service.net.AdmissionQueue.RejectionListener;
+import at.diamonddogs.service.net.AdmissionQueue.RejectionPolicy;
 import at.diamonddogs.service.processor.DataProcessor;
 import at.diamonddogs.service.processor.ServiceProcessor;
 import at.diamonddogs.service.processor.SynchronousProcessor;
 import at.diamonddogs.util.CacheManager;
 import at.diamonddogs.util.CacheManager.CachedObject;
-import at.diamonddogs.util.ConnectivityHelper;
+import at.diamonddogs.util.ConnectivityMonitor;
 import at.diamonddogs.util.WorkerQueue;
 
 /**
  * The central {@link Service} used to process {@link WebRequest}s
  */
-public class HttpService extends Service implements WebClientReplyListener {
+public class HttpService extends Service implements WebClientReplyListener, RejectionListener {
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(HttpService.class);
 
@@ -80,6 +90,18 @@ public class HttpService extends Service implements WebClientReplyListener {
 	 */
 	private static final int POOL_KEEPALIVE = 3000;
 
+	/**
+	 * The number of threads that perform the cache lookup and dispatch of
+	 * asynchronous {@link WebRequest}s
+	 */
+	private static final int ADMISSION_THREADS = AdmissionQueue.DEFAULT_THREADS;
+
+	/**
+	 * The number of asynchronous {@link WebRequest}s that may wait for
+	 * admission
+	 */
+	private static final int ADMISSION_CAPACITY = AdmissionQueue.DEFAULT_CAPACITY;
+
 	/**
 	 * Contains all registered processors
 	 */
@@ -95,6 +117,11 @@ public class HttpService extends Service implements WebClientReplyListener {
 	 */
 	private WorkerQueue workerQueue;
 
+	/**
+	 * {@link AdmissionQueue} that admits asynchronous {@link WebRequest}s
+	 */
+	private AdmissionQueue admissionQueue;
+
 	/**
 	 * {@link Binder} instance for {@link HttpService} the default
 	 * {@link Binder} will return the {@link HttpService}
@@ -109,16 +136,24 @@ public class HttpService extends Service implements WebClientReplyListener {
 	/**
 	 * Connectivity interface
 	 */
-	private ConnectivityHelper connectivityHelper;
+	private ConnectivityMonitor connectivityMonitor;
+
+	/**
+	 * Shares network fetches between identical in-flight {@link WebRequest}s
+	 */
+	private WebRequestCoalescer coalescer;
 
 	@Override
 	public void onCreate() {
 		super.onCreate();
 		workerQueue = new WorkerQueue(POOL_SIZE_CORE, POOL_SIZE_MAX, POOL_KEEPALIVE);
+		admissionQueue = new AdmissionQueue(ADMISSION_THREADS, ADMISSION_CAPACITY, workerQueue, this);
 		webRequestHandlerMap = Collections.synchronizedMap(new HashMap<Handler, List<WebRequest>>());
 		registeredProcessors = new SparseArray<ServiceProcessor<?>>();
 		webRequests = Collections.synchronizedMap(new HashMap<String, WebRequestFutureContainer>());
-		connectivityHelper = new ConnectivityHelper(this);
+		connectivityMonitor = ConnectivityMonitor.getInstance(this);
+		coalescer = new WebRequestCoalescer();
+		RedirectStore.getInstance().setContext(this);
 	}
 
 	@Override
@@ -130,6 +165,9 @@ public class HttpService extends Service implements WebClientReplyListener {
 	@Override
 	public void onDestroy() {
 		LOGGER.debug("onDestroy");
+		if (admissionQueue != null) {
+			admissionQueue.shutDown();
+		}
 		if (workerQueue != null) {
 			workerQueue.shutDown();
 		}
@@ -159,7 +197,11 @@ public class HttpService extends Service implements WebClientReplyListener {
 	}
 
 	/**
-	 * Runs a {@link WebRequest} asynchronously
+	 * Runs a {@link WebRequest} asynchronously. The {@link WebRequest} is
+	 * admitted by the {@link AdmissionQueue} of the service, if it cannot be
+	 * admitted, the {@link Handler} receives an error with
+	 * {@link Status#REJECTED}, see
+	 * {@link HttpService#setAdmissionPolicy(RejectionPolicy)}.
 	 * 
 	 * @param handler
 	 *            the handler that will be informed once the {@link WebRequest}
@@ -203,19 +245,73 @@ public class HttpService extends Service implements WebClientReplyListener {
 					webRequest.getOrigin());
 		}
 		addRequestToHandlerMap(handler, webRequest);
+		ret.successful = admit(webRequest, progressListener);
+		return ret;
+	}
+
+	/**
+	 * Passes a {@link WebRequest} to the {@link AdmissionQueue}
+	 * 
+	 * @param webRequest
+	 *            the {@link WebRequest} to admit
+	 * @param progressListener
+	 *            a {@link ProgressListener} that will be informed of download
+	 *            progress, may be <code>null</code>
+	 * @return <code>true</code> if the {@link WebRequest} has been admitted
+	 */
+	private boolean admit(final WebRequest webRequest, final DownloadProgressListener progressListener) {
+		// the WebRequest is known without a Future while it waits for
+		// admission, so that it can be cancelled
+		final WebRequestFutureContainer placeholder = new WebRequestFutureContainer(webRequest, null);
+		webRequests.put(webRequest.getId(), placeholder);
 		Runnable r = new Runnable() {
 			@Override
 			public void run() {
 				Future<?> future = getWebRequestTask(webRequest, progressListener, true);
-				if (future != null) {
-					webRequests.put(webRequest.getId(), new WebRequestFutureContainer(webRequest, future));
+				synchronized (webRequests) {
+					if (webRequests.get(webRequest.getId()) == placeholder) {
+						if (future == null) {
+							webRequests.remove(webRequest.getId());
+						} else {
+							webRequests.put(webRequest.getId(), new WebRequestFutureContainer(webRequest, future));
+						}
+						return;
+					}
+				}
+				if (webRequest.isCancelled()) {
+					onCancelledDuringAdmission(webRequest, future);
 				}
 			}
 		};
-		Thread t = new Thread(r);
-		t.start();
+		return admissionQueue.admit(webRequest, r);
+	}
 
-		return ret;
+	/**
+	 * Cleans up after a {@link WebRequest} that has been cancelled while it
+	 * was being admitted, i.e. before its {@link Future} was known to
+	 * {@link HttpService#cancelRequest(String)}
+	 * 
+	 * @param webRequest
+	 *            the cancelled {@link WebRequest}
+	 * @param future
+	 *            the {@link Future} of its network fetch or <code>null</code>
+	 *            if it has been served from the cache or attached to another
+	 *            {@link WebRequest}
+	 */
+	private void onCancelledDuringAdmission(WebRequest webRequest, Future<?> future) {
+		if (future == null) {
+			// a follower that attached after it has been cancelled still needs
+			// to be counted as cancelled by its group
+			cancelRequest(webRequest.getId());
+			return;
+		}
+		// a cancelled task never replies, so its group has to be completed
+		// here, followers that attached in the meantime are admitted again
+		future.cancel(true);
+		for (WebRequest follower : coalescer.complete(webRequest)) {
+			LOGGER.debug("Leader " + webRequest.getId() + " has been cancelled, admitting " + follower.getId() + " again");
+			admit(follower, null);
+		}
 	}
 
 	/**
@@ -318,7 +414,7 @@ public class HttpService extends Service implements WebClientReplyListener {
 		try {
 			CacheManager cm = CacheManager.getInstance();
 			CachedObject cachedObject = cm.getFromCache(HttpService.this, webRequest);
-			if (!connectivityHelper.checkConnectivityWebRequest(webRequest)) {
+			if (!connectivityMonitor.checkConnectivityWebRequest(webRequest)) {
 				if (cachedObject != null) {
 					ret.payload = synchronousProcessor.obtainDataObjectFromCachedObject(this, webRequest, cachedObject);
 				} else {
@@ -327,11 +423,18 @@ public class HttpService extends Service implements WebClientReplyListener {
 			} else {
 				if (cachedObject != null) {
 					ret.payload = synchronousProcessor.obtainDataObjectFromCachedObject(this, webRequest, cachedObject);
+					if (cachedObject.isStale()) {
+						revalidateInBackground(webRequest);
+					}
 				} else {
 					ReplyAdapter replyAdapter = runSynchronousWebRequestFuture(webRequest, progressListener).get();
-					ret.payload = synchronousProcessor.obtainDataObjectFromWebReply(this, replyAdapter);
-
 					WebReply reply = (WebReply) replyAdapter.getReply();
+					cachedObject = cm.finishRevalidation(this, webRequest, replyAdapter);
+					if (cachedObject != null) {
+						ret.payload = synchronousProcessor.obtainDataObjectFromCachedObject(this, webRequest, cachedObject);
+					} else {
+						ret.payload = synchronousProcessor.obtainDataObjectFromWebReply(this, replyAdapter);
+					}
 					ret.httpStatusCode = reply.getHttpStatusCode();
 					ret.replyHeader = reply.getReplyHeader();
 				}
@@ -526,6 +629,31 @@ public class HttpService extends Service implements WebClientReplyListener {
 		return null;
 	}
 
+	/**
+	 * Removes the {@link Handler} of a cancelled {@link WebRequest}, which
+	 * will never receive a reply
+	 * 
+	 * @param id
+	 *            the id of the {@link WebRequest}
+	 */
+	private void removeHandler(String id) {
+		synchronized (webRequestHandlerMap) {
+			Iterator<Handler> iterator = webRequestHandlerMap.keySet().iterator();
+			while (iterator.hasNext()) {
+				List<WebRequest> requestList = webRequestHandlerMap.get(iterator.next());
+				Iterator<WebRequest> requests = requestList.iterator();
+				while (requests.hasNext()) {
+					if (requests.next().getId().equals(id)) {
+						requests.remove();
+					}
+				}
+				if (requestList.isEmpty()) {
+					iterator.remove();
+				}
+			}
+		}
+	}
+
 	private WebClient getNewWebClient(WebRequest webRequest, DownloadProgressListener downloadProgressListener) {
 		WebClient client = null;
 
@@ -535,6 +663,9 @@ public class HttpService extends Service implements WebClientReplyListener {
 		if (downloadProgressListener != null) {
 			client.setDownloadProgressListener(downloadProgressListener);
 		}
+		if (client instanceof WebClientSegmented) {
+			((WebClientSegmented) client).setWorkerQueue(workerQueue);
+		}
 		client.setListener(this);
 		client.setWebRequest(webRequest);
 		return client;
@@ -599,8 +730,67 @@ public class HttpService extends Service implements WebClientReplyListener {
 	@Override
 	public void onWebReply(WebClient webClient, ReplyAdapter reply) {
 		logReply(reply);
-		webRequests.remove(webClient.getWebRequest().getId());
-		dispatchWebReplyProcessor(reply, getHandler(reply.getRequest()));
+		WebRequest webRequest = webClient.getWebRequest();
+		webRequests.remove(webRequest.getId());
+		boolean leaderCancelled = coalescer.isCancelled(webRequest);
+		List<WebRequest> followers = coalescer.complete(webRequest);
+		Handler handler = getHandler(reply.getRequest());
+		if (!leaderCancelled) {
+			dispatchReply(reply, handler);
+		} else {
+			CacheManager.getInstance().finishRevalidation(this, webRequest, null);
+		}
+		for (WebRequest follower : followers) {
+			dispatchReply(createFollowerReply(reply, follower), getHandler(follower));
+		}
+	}
+
+	/**
+	 * Informs the {@link Handler} of a {@link WebRequest} that has not been
+	 * admitted using a {@link ReplyAdapter} with {@link Status#REJECTED}
+	 */
+	@Override
+	public void onRejected(WebRequest webRequest, int queued) {
+		webRequests.remove(webRequest.getId());
+		ReplyAdapter reply = new ReplyAdapter();
+		reply.setRequest(webRequest);
+		reply.setStatus(Status.REJECTED);
+		reply.setThrowable(new RequestRejectedException(queued));
+		Handler handler = getHandler(webRequest);
+		if (handler != null) {
+			dispatchWebReplyProcessor(reply, handler);
+		} else {
+			LOGGER.debug("No handler for rejected WebRequest " + webRequest.getId());
+		}
+	}
+
+	/**
+	 * Dispatches a {@link ReplyAdapter} to its processor. If the
+	 * {@link WebRequest} revalidated an expired file of the cache, the cached
+	 * file is dispatched instead.
+	 * 
+	 * @param reply
+	 *            the {@link ReplyAdapter} to dispatch
+	 * @param handler
+	 *            the {@link Handler} of the {@link WebRequest}
+	 */
+	private void dispatchReply(ReplyAdapter reply, Handler handler) {
+		WebRequest webRequest = (WebRequest) reply.getRequest();
+		CachedObject cachedObject = CacheManager.getInstance().finishRevalidation(this, webRequest, reply);
+		if (cachedObject != null) {
+			dispatchCachedObjectToProcessor(cachedObject, webRequest, handler);
+		} else {
+			dispatchWebReplyProcessor(reply, handler);
+		}
+	}
+
+	private ReplyAdapter createFollowerReply(ReplyAdapter reply, WebRequest follower) {
+		ReplyAdapter followerReply = new ReplyAdapter();
+		followerReply.setRequest(follower);
+		followerReply.setReply(reply.getReply());
+		followerReply.setThrowable(reply.getThrowable());
+		followerReply.setStatus(reply.getStatus());
+		return followerReply;
 	}
 
 	private void logReply(ReplyAdapter reply) {
@@ -616,8 +806,12 @@ public class HttpService extends Service implements WebClientReplyListener {
 	}
 
 	private void dispatchCachedObjectToProcessor(CachedObject cachedObject, Request webRequest) {
+		dispatchCachedObjectToProcessor(cachedObject, webRequest, getHandler(webRequest));
+	}
+
+	private void dispatchCachedObjectToProcessor(CachedObject cachedObject, Request webRequest, Handler handler) {
 		if (!workerQueue.isShutDown()) {
-			getProcessor(webRequest).processCachedObject(cachedObject, getHandler(webRequest), webRequest);
+			getProcessor(webRequest).processCachedObject(cachedObject, handler, webRequest);
 		} else {
 			LOGGER.debug("service already shutdown, ignoring response from cache");
 		}
@@ -645,6 +839,21 @@ public class HttpService extends Service implements WebClientReplyListener {
 		return processor;
 	}
 
+	/**
+	 * Opens connections to a host that will be used soon, see
+	 * {@link HttpClientConnectionPool#preconnect(String, int)}. Requests that
+	 * do not use the {@link HttpClientConnectionPool} still benefit from the
+	 * cached DNS lookup and TLS session.
+	 * 
+	 * @param host
+	 *            the host name or a url consisting of scheme, host and port
+	 * @param count
+	 *            the number of connections to open
+	 */
+	public void preconnect(String host, int count) {
+		HttpClientConnectionPool.getInstance().preconnect(host, count);
+	}
+
 	/**
 	 * Convenience binding method
 	 * 
@@ -666,14 +875,73 @@ public class HttpService extends Service implements WebClientReplyListener {
 	 */
 	public void cancelRequest(String id) {
 		LOGGER.debug("cancelRequest " + id);
-		if (webRequests.containsKey(id)) {
+		// cancelled WebRequests receive no reply, neither do cancelled
+		// followers of a coalesced WebRequest
+		removeHandler(id);
+		String abortId = coalescer.cancel(id);
+		if (abortId == null) {
+			LOGGER.info("WebRequest with id " + id + " has been detached, the network fetch is still required by other requests");
+			return;
+		}
+		id = abortId;
+		WebRequestFutureContainer container = webRequests.remove(id);
+		if (container != null) {
 			LOGGER.debug("found cancelRequest " + id);
-			WebRequestFutureContainer container = webRequests.get(id);
-			boolean hasBeenCanceled = container.future.cancel(true);
-			LOGGER.info("WebRequest with id " + id + " has been canceled " + hasBeenCanceled);
+			// mark the WebRequest first, a WebRequest that is about to be
+			// admitted must not start anymore
 			container.webRequest.setCancelled(true);
-			webRequests.remove(id);
+			if (container.future == null) {
+				boolean dequeued = admissionQueue.cancel(container.webRequest);
+				LOGGER.info("WebRequest with id " + id + " has been canceled while waiting for admission " + dequeued);
+			} else {
+				boolean hasBeenCanceled = container.future.cancel(true);
+				LOGGER.info("WebRequest with id " + id + " has been canceled " + hasBeenCanceled);
+			}
+			CacheManager.getInstance().finishRevalidation(this, container.webRequest, null);
+		}
+	}
+
+	/**
+	 * Changes the {@link PRIORITY} of a {@link WebRequest} that has already
+	 * been submitted, e.g. because the image it loads scrolled back into view.
+	 * Attempts that are still queued are reordered, attempts that are
+	 * already running are not affected.
+	 * 
+	 * @param id
+	 *            the id of the {@link WebRequest}
+	 * @param priority
+	 *            the new {@link PRIORITY}
+	 * @return <code>true</code> if the {@link WebRequest} is still pending
+	 */
+	public boolean setPriority(String id, PRIORITY priority) {
+		WebRequestFutureContainer container = webRequests.get(id);
+		if (container == null) {
+			LOGGER.debug("Not reprioritizing " + id + ", the WebRequest is not pending");
+			return false;
 		}
+		container.webRequest.setPriority(priority);
+		workerQueue.reprioritize(container.webRequest);
+		return true;
+	}
+
+	/**
+	 * Sets the {@link RejectionPolicy} applied once the admission queue is
+	 * full, {@link RejectionPolicy#REJECT} by default
+	 * 
+	 * @param policy
+	 *            the {@link RejectionPolicy}
+	 */
+	public void setAdmissionPolicy(RejectionPolicy policy) {
+		admissionQueue.setRejectionPolicy(policy);
+	}
+
+	/**
+	 * Returns a snapshot of the admission queue's depth and rejection counts
+	 * 
+	 * @return the current {@link AdmissionStatistics}
+	 */
+	public AdmissionStatistics getAdmissionStatistics() {
+		return admissionQueue.getStatistics();
 	}
 
 	private Future<ReplyAdapter> getWebRequestTask(WebRequest webRequest, DownloadProgressListener downloadProgressListener, boolean async) {
@@ -684,16 +952,31 @@ public class HttpService extends Service implements WebClientReplyListener {
 			CachedObject cachedObject = cm.getFromCache(HttpService.this, webRequest);
 			if (cachedObject == null) {
 				LOGGER.debug("No cached objects available for: " + webRequest.getUrl());
+				if (webRequest.isCancelled()) {
+					// must neither lead nor follow a group of coalesced
+					// WebRequests
+					return null;
+				}
+				if (async && coalescer.join(webRequest)) {
+					return null;
+				}
 				client = getNewWebClient(webRequest, downloadProgressListener);
 				if (!async) {
 					client.setListener(null);
 				}
-				ret = workerQueue.<ReplyAdapter> runCancelableTask(client);
+				ret = runWebClient(client);
+				if (ret == null) {
+					// the service has been shut down, no reply will arrive
+					coalescer.complete(webRequest);
+				}
 			} else {
 				LOGGER.debug("File found in file cache: " + webRequest.getUrl());
 				if (!webRequest.isCancelled()) {
 					dispatchCachedObjectToProcessor(cachedObject, webRequest);
 				}
+				if (cachedObject.isStale()) {
+					revalidateInBackground(webRequest);
+				}
 			}
 		} catch (Throwable tr) {
 			LOGGER.debug("No cached objects available for: " + webRequest.getUrl());
@@ -701,11 +984,67 @@ public class HttpService extends Service implements WebClientReplyListener {
 			if (!async) {
 				client.setListener(null);
 			}
-			ret = workerQueue.<ReplyAdapter> runCancelableTask(client);
+			ret = runWebClient(client);
 		}
 		return ret;
 	}
 
+	/**
+	 * Revalidates a stale file of the cache without notifying the owner of the
+	 * {@link WebRequest}, which has already been served from the cache
+	 * 
+	 * @param webRequest
+	 *            the {@link WebRequest} that has been served a stale file
+	 */
+	private void revalidateInBackground(WebRequest webRequest) {
+		WebRequest revalidation = createRevalidationRequest(webRequest);
+		if (!CacheManager.getInstance().startBackgroundRevalidation(this, revalidation)) {
+			return;
+		}
+		LOGGER.debug("Revalidating in the background: " + revalidation.getUrl());
+		WebClient client = WebClientFactory.getInstance().getNetworkClient(revalidation, this);
+		client.setListener(new BackgroundRevalidationListener());
+		client.setWebRequest(revalidation);
+		if (runWebClient(client) == null) {
+			CacheManager.getInstance().finishRevalidation(this, revalidation, null);
+		}
+	}
+
+	private WebRequest createRevalidationRequest(WebRequest webRequest) {
+		WebRequest revalidation = new WebRequest();
+		revalidation.setUrl(webRequest.getUrl());
+		revalidation.setRequestType(webRequest.getRequestType());
+		revalidation.setProcessorId(webRequest.getProcessorId());
+		revalidation.setCacheTime(webRequest.getCacheTime());
+		revalidation.setUseOfflineCache(webRequest.isUseOfflineCache());
+		revalidation.setReadTimeout(webRequest.getReadTimeout());
+		revalidation.setConnectionTimeout(webRequest.getConnectionTimeout());
+		revalidation.setFollowRedirects(webRequest.isFollowRedirects());
+		revalidation.setCheckConnectivity(webRequest.isCheckConnectivity());
+		// nobody is waiting for a revalidation
+		revalidation.setTrafficClass(TrafficClass.BACKGROUND);
+		if (webRequest.getHeader() != null) {
+			revalidation.setHeader(new HashMap<String, String>(webRequest.getHeader()));
+		}
+		return revalidation;
+	}
+
+	/**
+	 * Runs a {@link WebClient}, {@link AsyncWebClient}s are started directly
+	 * since they do not need a worker thread. Other {@link WebClient}s occupy a
+	 * worker thread per attempt, retries are scheduled.
+	 * 
+	 * @param client
+	 *            the {@link WebClient} to run
+	 * @return the {@link Future} of the {@link WebClient}
+	 */
+	private Future<ReplyAdapter> runWebClient(WebClient client) {
+		if (client instanceof AsyncWebClient) {
+			return ((AsyncWebClient) client).submit();
+		}
+		return client.submit(workerQueue);
+	}
+
 	/**
 	 * Default {@link Binder} implementation
 	 */
@@ -720,6 +1059,27 @@ public class HttpService extends Service implements WebClientReplyListener {
 		}
 	}
 
+	/**
+	 * Stores the result of a background revalidation in the cache
+	 */
+	private final class BackgroundRevalidationListener implements WebClientReplyListener {
+		@Override
+		public void onWebReply(WebClient webClient, ReplyAdapter reply) {
+			WebRequest webRequest = webClient.getWebRequest();
+			CacheManager cm = CacheManager.getInstance();
+			if (cm.finishRevalidation(HttpService.this, webRequest, reply) != null) {
+				return;
+			}
+			WebReply webReply = (WebReply) reply.getReply();
+			if (reply.getStatus() == Status.OK && webReply != null && webReply.getHttpStatusCode() == WebClient.HTTPStatus.HTTP_OK) {
+				cm.addToFileCache(HttpService.this, webRequest, webReply.getData(), webReply.getReplyHeader(),
+						webRequest.isUseOfflineCache());
+			} else {
+				LOGGER.debug("Background revalidation failed: " + webRequest.getUrl());
+			}
+		}
+	}
+
 	private static final class WebRequestFutureContainer {
 		private WebRequest webRequest;
 		private Future<?> future;
@@ -36,6 +36,7 @@ import at.diamonddogs.data.dataobjects.NonTimeCriticalTask;
 import at.diamonddogs.data.dataobjects.NonTimeCriticalTaskQueueDefaultConfiguration;
 import at.diamonddogs.data.dataobjects.WebRequest;
 import at.diamonddogs.exception.ServiceException;
+import at.diamonddogs.net.HttpClientConnectionPool;
 import at.diamonddogs.net.WebClient.DownloadProgressListener;
 import at.diamonddogs.nontimecritical.NonTimeCriticalTaskManager;
 import at.diamonddogs.nontimecritical.NonTimeCriticalTaskQueue.NonTimeCriticalTaskProcessingListener;
@@ -210,6 +211,20 @@ public class HttpServiceAssister {
 		}
 	}
 
+	/**
+	 * Opens connections to a host that will be used soon, see
+	 * {@link HttpService#preconnect(String, int)}. The {@link HttpService}
+	 * does not need to be bound.
+	 * 
+	 * @param host
+	 *            the host name or a url consisting of scheme, host and port
+	 * @param count
+	 *            the number of connections to open
+	 */
+	public void preconnect(String host, int count) {
+		HttpClientConnectionPool.getInstance().preconnect(host, count);
+	}
+
 	/**
 	 * Unbinds the {@link HttpService}. Pending {@link WebRequest}s will be
 	 * executed before unbinding.
@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2012, 2013 the diamond:dogs|group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.diamonddogs.service.net;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import at.diamonddogs.data.dataobjects.WebRequest;
+import at.diamonddogs.data.dataobjects.WebRequest.Type;
+
+/**
+ * Keeps track of in-flight {@link WebRequest}s, so that identical GET and HEAD
+ * requests share a single network fetch. The first {@link WebRequest} of a
+ * group (the leader) is executed, all identical {@link WebRequest}s that are
+ * started while the leader is in flight (the followers) receive the reply of
+ * the leader.
+ */
+public class WebRequestCoalescer {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(WebRequestCoalescer.class.getSimpleName());
+
+	/**
+	 * In-flight groups by key
+	 */
+	private final Map<String, Group> groups = new HashMap<String, Group>();
+
+	/**
+	 * In-flight groups by id of their members
+	 */
+	private final Map<String, Group> members = new HashMap<String, Group>();
+
+	/**
+	 * Registers a {@link WebRequest} that is about to hit the network
+	 *
+	 * @param webRequest
+	 *            the {@link WebRequest}
+	 * @return <code>true</code> if the {@link WebRequest} has been attached to
+	 *         an identical in-flight {@link WebRequest} and must not be
+	 *         executed, <code>false</code> if the {@link WebRequest} needs to be
+	 *         executed
+	 */
+	public synchronized boolean join(WebRequest webRequest) {
+		String key = getKey(webRequest);
+		if (key == null) {
+			return false;
+		}
+		Group group = groups.get(key);
+		if (group == null) {
+			group = new Group(key, webRequest);
+			groups.put(key, group);
+			members.put(webRequest.getId(), group);
+			return false;
+		}
+		LOGGER.debug("Attaching " + webRequest.getUrl() + " to in-flight request " + group.leader.getId());
+		group.followers.add(webRequest);
+		members.put(webRequest.getId(), group);
+		return true;
+	}
+
+	/**
+	 * Must be called once the leader has been completed. Removes the group of
+	 * the leader.
+	 *
+	 * @param leader
+	 *            the leader
+	 * @return the followers that have not been cancelled
+	 */
+	public synchronized List<WebRequest> complete(WebRequest leader) {
+		Group group = members.get(leader.getId());
+		if (group == null || group.leader != leader) {
+			return Collections.emptyList();
+		}
+		groups.remove(group.key);
+		members.remove(leader.getId());
+		List<WebRequest> ret = new LinkedList<WebRequest>();
+		for (WebRequest follower : group.followers) {
+			members.remove(follower.getId());
+			if (!group.cancelled.contains(follower.getId())) {
+				ret.add(follower);
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Cancels a {@link WebRequest}. The network fetch of a group is only
+	 * aborted once all of its members have been cancelled.
+	 *
+	 * @param id
+	 *            the id of the {@link WebRequest} to cancel
+	 * @return the id of the {@link WebRequest} whose network fetch needs to be
+	 *         aborted or <code>null</code> if the fetch is still required by
+	 *         other members
+	 */
+	public synchronized String cancel(String id) {
+		Group group = members.get(id);
+		if (group == null) {
+			return id;
+		}
+		group.cancelled.add(id);
+		for (WebRequest follower : group.followers) {
+			if (follower.getId().equals(id)) {
+				follower.setCancelled(true);
+			}
+		}
+		if (group.cancelled.size() < group.followers.size() + 1) {
+			LOGGER.debug("Detached " + id + " from in-flight request " + group.leader.getId());
+			return null;
+		}
+		groups.remove(group.key);
+		members.remove(group.leader.getId());
+		for (WebRequest follower : group.followers) {
+			members.remove(follower.getId());
+		}
+		return group.leader.getId();
+	}
+
+	/**
+	 * Checks if the leader of the group of a {@link WebRequest} has been
+	 * cancelled by its owner (while followers still require the reply)
+	 *
+	 * @param leader
+	 *            the leader
+	 * @return <code>true</code> if the leader has been cancelled
+	 */
+	public synchronized boolean isCancelled(WebRequest leader) {
+		Group group = members.get(leader.getId());
+		return group != null && group.cancelled.contains(leader.getId());
+	}
+
+	/**
+	 * Creates the key of a {@link WebRequest}, identical {@link WebRequest}s
+	 * share the same key
+	 *
+	 * @param webRequest
+	 *            the {@link WebRequest}
+	 * @return the key or <code>null</code> if the {@link WebRequest} must not be
+	 *         coalesced
+	 */
+	private String getKey(WebRequest webRequest) {
+		if (webRequest.getRequestType() != Type.GET && webRequest.getRequestType() != Type.HEAD) {
+			return null;
+		}
+		if (webRequest.isGetStream() || (webRequest.getTmpFile() != null && webRequest.getTmpFile().first)) {
+			return null;
+		}
+		StringBuilder key = new StringBuilder();
+		key.append(webRequest.getRequestType().name()).append(' ').append(webRequest.getUrl().toString());
+		if (webRequest.getHeader() != null) {
+			Map<String, String> header = new TreeMap<String, String>();
+			for (Map.Entry<String, String> entry : webRequest.getHeader().entrySet()) {
+				header.put(entry.getKey().toLowerCase(), entry.getValue());
+			}
+			for (Map.Entry<String, String> entry : header.entrySet()) {
+				key.append('\n').append(entry.getKey()).append(": ").append(entry.getValue());
+			}
+		}
+		return key.toString();
+	}
+
+	private static final class Group {
+		private final String key;
+		private final WebRequest leader;
+		private final List<WebRequest> followers = new LinkedList<WebRequest>();
+		private final Set<String> cancelled = new HashSet<String>();
+
+		private Group(String key, WebRequest leader) {
+			this.key = key;
+			this.leader = leader;
+		}
+	}
+}
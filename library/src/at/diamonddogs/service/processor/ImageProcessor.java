@@ -18,6 +18,7 @@ package at.diamonddogs.service.processor;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.net.MalformedURLException;
 import java.net.URL;
 
 import org.slf4j.Logger;
@@ -37,6 +38,7 @@ import at.diamonddogs.data.adapter.ReplyAdapter;
 import at.diamonddogs.data.adapter.ReplyAdapter.Status;
 import at.diamonddogs.data.dataobjects.CacheInformation;
 import at.diamonddogs.data.dataobjects.Request;
+import at.diamonddogs.data.dataobjects.WebReply;
 import at.diamonddogs.data.dataobjects.WebRequest;
 import at.diamonddogs.exception.ProcessorExeception;
 import at.diamonddogs.util.CacheManager;
@@ -100,7 +102,7 @@ public class ImageProcessor extends DataProcessor<Bitmap, Bitmap> {
 			ProcessingData<Bitmap> processingData = processData(r);
 			Bitmap b = processingData.output;
 			saveBitmapToFile(c, r, handler, b);
-		} else if (r.getStatus() == Status.FAILED) {
+		} else {
 			handler.sendMessage(createErrorMessage(r.getThrowable(), r));
 		}
 	}
@@ -117,16 +119,16 @@ public class ImageProcessor extends DataProcessor<Bitmap, Bitmap> {
 
 	private void saveBitmapToFile(Context c, ReplyAdapter r, Bitmap b) throws FileNotFoundException {
 		WebRequest request = (WebRequest) r.getRequest();
-		String filename = Utils.getMD5Hash(request.getUrl().toString());
+		CacheManager cm = CacheManager.getInstance();
+		String filename = cm.getCacheFileName(request.getUrl());
 		if (filename != null && b != null) {
-			if (request.getCacheTime() != CacheInformation.CACHE_NO) {
-				File path = Utils.getCacheDir(c);
+			File path = Utils.getCacheDir(c);
+			CacheInformation ci = cm.createCacheInformation(request, ((WebReply) r.getReply()).getReplyHeader(), path.toString(),
+					filename, true);
+			if (ci != null) {
 				FileOutputStream fos = new FileOutputStream(new File(path, filename));
 				b.compress(CompressFormat.PNG, 0, fos);
 
-				CacheInformation ci = createImage(request, path.toString(), filename);
-
-				CacheManager cm = CacheManager.getInstance();
 				cm.addToCache(c, ci);
 				if (useMemCache) {
 					cm.addToMemoryCache(request.getUrl().toString(), ID, b);
@@ -206,16 +208,6 @@ public class ImageProcessor extends DataProcessor<Bitmap, Bitmap> {
 		}
 	}
 
-	private CacheInformation createImage(WebRequest request, String filePath, String fileName) {
-		CacheInformation c = new CacheInformation();
-		c.setCacheTime(request.getCacheTime());
-		c.setCreationTimeStamp(System.currentTimeMillis());
-		c.setFileName(fileName);
-		c.setFilePath(filePath);
-		c.setUseOfflineCache(true);
-		return c;
-	}
-
 	/**
 	 * Returns the absolute path of an image file as stored on the SDCard
 	 * 
@@ -227,7 +219,13 @@ public class ImageProcessor extends DataProcessor<Bitmap, Bitmap> {
 	 *         it does not exist
 	 */
 	public static String getImageFileUrl(String url, Context context) {
-		String filename = Utils.getMD5Hash(url);
+		String filename;
+		try {
+			filename = CacheManager.getInstance().getCacheFileName(new URL(url));
+		} catch (MalformedURLException e) {
+			LOGGER.warn("Invalid image url: " + url);
+			return null;
+		}
 		File dir = context.getExternalCacheDir();
 		File file = new File(dir, filename);
 		if (file.exists()) {
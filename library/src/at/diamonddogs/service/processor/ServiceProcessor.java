@@ -15,13 +15,11 @@
  */
 package at.diamonddogs.service.processor;
 
-import java.io.BufferedOutputStream;
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -40,7 +38,6 @@ import at.diamonddogs.data.dataobjects.WebReply;
 import at.diamonddogs.data.dataobjects.WebRequest;
 import at.diamonddogs.util.CacheManager;
 import at.diamonddogs.util.CacheManager.CachedObject;
-import at.diamonddogs.util.Utils;
 
 // @formatter:off
 /**
@@ -181,7 +178,7 @@ public abstract class ServiceProcessor<OUTPUT> {
 	 * @see CacheInformation#useOfflineCache
 	 */
 	protected void cacheObjectToFile(Context context, ReplyAdapter r) {
-		cacheObjectToFile(context, (WebRequest) r.getRequest(), ((WebReply) r.getReply()).getData(), false);
+		cacheObjectToFile(context, r, false);
 	}
 
 	/**
@@ -199,7 +196,8 @@ public abstract class ServiceProcessor<OUTPUT> {
 	 * @see CacheInformation#useOfflineCache
 	 */
 	protected void cacheObjectToFile(Context context, ReplyAdapter r, boolean useOfflineCache) {
-		cacheObjectToFile(context, (WebRequest) r.getRequest(), ((WebReply) r.getReply()).getData(), useOfflineCache);
+		WebReply reply = (WebReply) r.getReply();
+		cacheObjectToFile(context, (WebRequest) r.getRequest(), reply.getData(), reply.getReplyHeader(), useOfflineCache);
 	}
 
 	/**
@@ -219,42 +217,35 @@ public abstract class ServiceProcessor<OUTPUT> {
 	 * @see CacheInformation#useOfflineCache
 	 */
 	protected void cacheObjectToFile(Context context, WebRequest request, byte[] data, boolean useOfflineCache) {
-		String filename = Utils.getMD5Hash(request.getUrl().toString());
-		BufferedOutputStream bos = null;
-		try {
-			if (filename != null && data != null) {
-				if (request.getCacheTime() != CacheInformation.CACHE_NO) {
-					File path = Utils.getCacheDir(context);
-					FileOutputStream fos = new FileOutputStream(new File(path, filename));
-					bos = new BufferedOutputStream(fos);
-					bos.write(data);
-
-					CacheInformation ci = createCachingInformation(request.getCacheTime(), path.toString(), filename, useOfflineCache);
-
-					CacheManager cm = CacheManager.getInstance();
-					cm.addToCache(context, ci);
-				}
-			}
-		} catch (Throwable th) {
-		} finally {
-			if (bos != null) {
-				try {
-					bos.close();
-				} catch (IOException e) {
-					bos = null;
-				}
-			}
-		}
+		cacheObjectToFile(context, request, data, null, useOfflineCache);
 	}
 
-	private CacheInformation createCachingInformation(long chacheTime, String filePath, String fileName, boolean useOfflineCache) {
-		CacheInformation c = new CacheInformation();
-		c.setCacheTime(chacheTime);
-		c.setCreationTimeStamp(System.currentTimeMillis());
-		c.setFileName(fileName);
-		c.setFilePath(filePath);
-		c.setUseOfflineCache(useOfflineCache);
-		return c;
+	/**
+	 * Writes {@link WebRequest} specific data to the cache. Ignores
+	 * {@link WebRequest} whose {@link WebRequest#getCacheTime()} is
+	 * {@link CacheInformation#CACHE_NO}. The validators (ETag, Last-Modified)
+	 * of the reply header are stored alongside the data, so that the file can
+	 * be revalidated once it has expired. If the cache time of the
+	 * {@link WebRequest} is {@link CacheInformation#CACHE_HTTP}, the lifetime
+	 * of the file is derived from the reply header.
+	 * 
+	 * @param context
+	 *            a {@link Context}
+	 * @param request
+	 *            the {@link WebRequest} whose data will be saved to the cache
+	 * @param data
+	 *            the actual data
+	 * @param replyHeader
+	 *            the reply header of the {@link WebRequest}, may be
+	 *            <code>null</code>
+	 * @param useOfflineCache
+	 *            controls {@link CacheInformation}s useOfflineCache parameter
+	 * 
+	 * @see CacheInformation#useOfflineCache
+	 */
+	protected void cacheObjectToFile(Context context, WebRequest request, byte[] data, Map<String, List<String>> replyHeader,
+			boolean useOfflineCache) {
+		CacheManager.getInstance().addToFileCache(context, request, data, replyHeader, useOfflineCache);
 	}
 
 	/**
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2012, 2013 the diamond:dogs|group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.diamonddogs.util;
+
+import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of fixed size read buffers that is shared by all worker
+ * threads. Using this pool instead of allocating a new buffer for every reply
+ * reduces GC pressure on low end devices. The pool also keeps track of the
+ * allocations made while reading reply bodies.
+ */
+public class ByteArrayPool {
+
+	/**
+	 * The size of a single buffer
+	 */
+	public static final int BUFFER_SIZE = 4096;
+
+	/**
+	 * The maximum number of idle buffers kept in the pool
+	 */
+	private static final int MAX_POOLED_BUFFERS = 16;
+
+	private static ByteArrayPool INSTANCE;
+
+	/**
+	 * Idle buffers
+	 */
+	private final LinkedList<byte[]> buffers = new LinkedList<byte[]>();
+
+	private final AtomicLong bufferAllocations = new AtomicLong();
+	private final AtomicLong bufferReuses = new AtomicLong();
+	private final AtomicLong bodyAllocations = new AtomicLong();
+	private final AtomicLong bodyGrowths = new AtomicLong();
+	private final AtomicLong bodyCopies = new AtomicLong();
+	private final AtomicLong bodyCopiesAvoided = new AtomicLong();
+
+	private ByteArrayPool() {
+	}
+
+	/**
+	 * Gets the singleton instance of {@link ByteArrayPool}
+	 *
+	 * @return the singleton instance of {@link ByteArrayPool}
+	 */
+	public static synchronized ByteArrayPool getInstance() {
+		if (INSTANCE == null) {
+			INSTANCE = new ByteArrayPool();
+		}
+		return INSTANCE;
+	}
+
+	/**
+	 * Obtains a buffer of {@link ByteArrayPool#BUFFER_SIZE} bytes. Make sure to
+	 * return the buffer using {@link ByteArrayPool#release(byte[])} once it is
+	 * not needed anymore.
+	 *
+	 * @return a read buffer
+	 */
+	public byte[] acquire() {
+		synchronized (buffers) {
+			if (!buffers.isEmpty()) {
+				bufferReuses.incrementAndGet();
+				return buffers.removeFirst();
+			}
+		}
+		bufferAllocations.incrementAndGet();
+		return new byte[BUFFER_SIZE];
+	}
+
+	/**
+	 * Returns a buffer to the pool. Buffers that have not been obtained from
+	 * {@link ByteArrayPool#acquire()} are ignored.
+	 *
+	 * @param buffer
+	 *            the buffer to return
+	 */
+	public void release(byte[] buffer) {
+		if (buffer == null || buffer.length != BUFFER_SIZE) {
+			return;
+		}
+		synchronized (buffers) {
+			if (buffers.size() < MAX_POOLED_BUFFERS) {
+				buffers.addFirst(buffer);
+			}
+		}
+	}
+
+	void recordBodyAllocation() {
+		bodyAllocations.incrementAndGet();
+	}
+
+	void recordBodyGrowth() {
+		bodyGrowths.incrementAndGet();
+	}
+
+	void recordBodyCopy(boolean avoided) {
+		if (avoided) {
+			bodyCopiesAvoided.incrementAndGet();
+		} else {
+			bodyCopies.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Returns a snapshot of the allocation counters
+	 *
+	 * @return the current {@link Statistics}
+	 */
+	public Statistics getStatistics() {
+		Statistics statistics = new Statistics();
+		statistics.bufferAllocations = bufferAllocations.get();
+		statistics.bufferReuses = bufferReuses.get();
+		statistics.bodyAllocations = bodyAllocations.get();
+		statistics.bodyGrowths = bodyGrowths.get();
+		statistics.bodyCopies = bodyCopies.get();
+		statistics.bodyCopiesAvoided = bodyCopiesAvoided.get();
+		synchronized (buffers) {
+			statistics.pooledBuffers = buffers.size();
+		}
+		return statistics;
+	}
+
+	/**
+	 * Allocation counters
+	 */
+	public static final class Statistics {
+		/** number of read buffers that had to be allocated */
+		public long bufferAllocations;
+		/** number of read buffers taken from the pool */
+		public long bufferReuses;
+		/** number of reply body buffers that have been allocated */
+		public long bodyAllocations;
+		/** number of times a reply body buffer had to be enlarged */
+		public long bodyGrowths;
+		/** number of reply bodies that had to be copied */
+		public long bodyCopies;
+		/** number of reply bodies handed over without copying */
+		public long bodyCopiesAvoided;
+		/** number of buffers currently idle in the pool */
+		public int pooledBuffers;
+
+		@Override
+		public String toString() {
+			return "Statistics [bufferAllocations=" + bufferAllocations + ", bufferReuses=" + bufferReuses + ", bodyAllocations="
+					+ bodyAllocations + ", bodyGrowths=" + bodyGrowths + ", bodyCopies=" + bodyCopies + ", bodyCopiesAvoided="
+					+ bodyCopiesAvoided + ", pooledBuffers=" + pooledBuffers + "]";
+		}
+	}
+}
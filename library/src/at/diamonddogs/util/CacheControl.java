@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2012, 2013 the diamond:dogs|group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.diamonddogs.util;
+
+import java.util.List;
+import java.util.Map;
+
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import at.diamonddogs.data.dataobjects.CacheInformation;
+
+/**
+ * Evaluates the caching related header fields of a reply (Cache-Control,
+ * Expires, Date, Age and Last-Modified). The file cache is a private cache,
+ * s-maxage only applies to shared caches and is therefore ignored.
+ */
+public class CacheControl {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(CacheControl.class.getSimpleName());
+
+	/**
+	 * Upper bound of the heuristic freshness lifetime that is used if the
+	 * server does not provide an explicit lifetime
+	 */
+	private static final long HEURISTIC_LIFETIME_MAX = CacheInformation.CACHE_24H;
+
+	/**
+	 * Fraction of the time since the last modification that is used as
+	 * heuristic freshness lifetime
+	 */
+	private static final int HEURISTIC_LIFETIME_DIVISOR = 10;
+
+	private boolean noStore;
+
+	private boolean noCache;
+
+	private boolean mustRevalidate;
+
+	/**
+	 * max-age in ms, -1 if not present
+	 */
+	private long maxAge = -1;
+
+	/**
+	 * stale-while-revalidate in ms
+	 */
+	private long staleWhileRevalidate;
+
+	/**
+	 * stale-if-error in ms
+	 */
+	private long staleIfError;
+
+	/**
+	 * <code>true</code> if an Expires header was present
+	 */
+	private boolean hasExpires;
+
+	/**
+	 * Expires as timestamp, an Expires header that cannot be parsed means
+	 * "already expired"
+	 */
+	private long expires;
+
+	private long date = -1;
+
+	/**
+	 * Age in ms
+	 */
+	private long age;
+
+	private long lastModified = -1;
+
+	private CacheControl() {
+	}
+
+	/**
+	 * Parses the caching related fields of a reply header
+	 *
+	 * @param replyHeader
+	 *            the reply header, may be <code>null</code>
+	 * @return a {@link CacheControl} instance
+	 */
+	public static CacheControl parse(Map<String, List<String>> replyHeader) {
+		CacheControl cc = new CacheControl();
+		if (replyHeader == null) {
+			return cc;
+		}
+		for (Map.Entry<String, List<String>> entry : replyHeader.entrySet()) {
+			if (entry.getKey() == null || entry.getValue() == null) {
+				continue;
+			}
+			String field = entry.getKey();
+			for (String value : entry.getValue()) {
+				if (value == null) {
+					continue;
+				}
+				if ("Cache-Control".equalsIgnoreCase(field)) {
+					cc.parseDirectives(value);
+				} else if ("Expires".equalsIgnoreCase(field)) {
+					cc.hasExpires = true;
+					cc.expires = parseDate(value, 0);
+				} else if ("Date".equalsIgnoreCase(field)) {
+					cc.date = parseDate(value, -1);
+				} else if ("Age".equalsIgnoreCase(field)) {
+					cc.age = parseSeconds(value.trim());
+				} else if ("Last-Modified".equalsIgnoreCase(field)) {
+					cc.lastModified = parseDate(value, -1);
+				}
+			}
+		}
+		return cc;
+	}
+
+	private void parseDirectives(String value) {
+		for (String directive : value.split(",")) {
+			String name = directive.trim().toLowerCase();
+			String argument = null;
+			int index = name.indexOf('=');
+			if (index != -1) {
+				argument = name.substring(index + 1).trim();
+				name = name.substring(0, index).trim();
+				if (argument.length() >= 2 && argument.startsWith("\"") && argument.endsWith("\"")) {
+					argument = argument.substring(1, argument.length() - 1);
+				}
+			}
+			if ("no-store".equals(name)) {
+				noStore = true;
+			} else if ("no-cache".equals(name)) {
+				noCache = true;
+			} else if ("must-revalidate".equals(name) || "proxy-revalidate".equals(name)) {
+				mustRevalidate = true;
+			} else if ("max-age".equals(name)) {
+				maxAge = parseSeconds(argument);
+			} else if ("stale-while-revalidate".equals(name)) {
+				staleWhileRevalidate = parseSeconds(argument);
+			} else if ("stale-if-error".equals(name)) {
+				staleIfError = parseSeconds(argument);
+			}
+		}
+	}
+
+	private static long parseSeconds(String seconds) {
+		if (seconds == null) {
+			return 0;
+		}
+		try {
+			return Math.max(0, Long.parseLong(seconds)) * 1000;
+		} catch (NumberFormatException e) {
+			LOGGER.debug("Invalid delta seconds: " + seconds);
+			return 0;
+		}
+	}
+
+	private static long parseDate(String date, long fallback) {
+		try {
+			return DateUtils.parseDate(date.trim()).getTime();
+		} catch (DateParseException e) {
+			LOGGER.debug("Invalid date: " + date);
+			return fallback;
+		}
+	}
+
+	/**
+	 * Checks if the reply may be stored in the cache
+	 *
+	 * @return <code>false</code> if the reply contains no-store
+	 */
+	public boolean isStorable() {
+		return !noStore;
+	}
+
+	/**
+	 * Checks if the reply contains an explicit freshness lifetime (max-age,
+	 * Expires or no-cache)
+	 *
+	 * @return <code>true</code> if an explicit freshness lifetime is available
+	 */
+	public boolean hasExplicitLifetime() {
+		return noCache || maxAge != -1 || hasExpires;
+	}
+
+	/**
+	 * Calculates the time the reply stays fresh, taking the age it already had
+	 * when it was received into account
+	 *
+	 * @param now
+	 *            the time the reply was received
+	 * @return the remaining freshness lifetime in ms, never negative
+	 */
+	public long getRemainingLifetime(long now) {
+		long lifetime;
+		long baseTime = date == -1 ? now : date;
+		if (noCache) {
+			lifetime = 0;
+		} else if (maxAge != -1) {
+			lifetime = maxAge;
+		} else if (hasExpires) {
+			lifetime = expires - baseTime;
+		} else if (lastModified != -1) {
+			lifetime = Math.min(HEURISTIC_LIFETIME_MAX, (baseTime - lastModified) / HEURISTIC_LIFETIME_DIVISOR);
+		} else {
+			lifetime = 0;
+		}
+		long apparentAge = date == -1 ? 0 : Math.max(0, now - date);
+		return Math.max(0, lifetime - Math.max(apparentAge, age));
+	}
+
+	/**
+	 * Returns the time a stale reply may be used while it is revalidated in the
+	 * background
+	 *
+	 * @return stale-while-revalidate in ms, 0 if must-revalidate or no-cache
+	 *         is present
+	 */
+	public long getStaleWhileRevalidate() {
+		return mustRevalidate || noCache ? 0 : staleWhileRevalidate;
+	}
+
+	/**
+	 * Returns the time a stale reply may be used if the server cannot be
+	 * reached or fails
+	 *
+	 * @return stale-if-error in ms, 0 if must-revalidate or no-cache is
+	 *         present
+	 */
+	public long getStaleIfError() {
+		return mustRevalidate || noCache ? 0 : staleIfError;
+	}
+
+	@Override
+	public String toString() {
+		return "CacheControl [noStore=" + noStore + ", noCache=" + noCache + ", mustRevalidate=" + mustRevalidate + ", maxAge=" + maxAge
+				+ ", staleWhileRevalidate=" + staleWhileRevalidate + ", staleIfError=" + staleIfError + ", hasExpires=" + hasExpires
+				+ ", expires=" + expires + ", date=" + date + ", age=" + age + ", lastModified=" + lastModified + "]";
+	}
+}
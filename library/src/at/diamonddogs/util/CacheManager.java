@@ -15,11 +15,20 @@
  */
 package at.diamonddogs.util;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -36,11 +45,18 @@ import android.database.Cursor;
 import android.os.Build;
 import at.diamonddogs.android.support.v4.util.LruCache;
 import at.diamonddogs.contentprovider.CacheContentProvider;
+import at.diamonddogs.data.adapter.ReplyAdapter;
+import at.diamonddogs.data.adapter.ReplyAdapter.Status;
 import at.diamonddogs.data.adapter.database.DataBaseAdapterCacheInformation;
 import at.diamonddogs.data.dataobjects.CacheInformation;
 import at.diamonddogs.data.dataobjects.Request;
+import at.diamonddogs.data.dataobjects.WebReply;
 import at.diamonddogs.data.dataobjects.WebRequest;
+import at.diamonddogs.data.dataobjects.WebRequest.Type;
 import at.diamonddogs.exception.CacheManagerException;
+import at.diamonddogs.net.RedirectStore;
+import at.diamonddogs.net.WebClient;
+import at.diamonddogs.net.WebClient.HTTPStatus;
 import at.diamonddogs.service.CacheService;
 
 /**
@@ -66,11 +82,27 @@ public class CacheManager {
 	 */
 	private static final int CACHE_SIZE_MAX_ENTRIES = 20;
 
+	private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+
+	private static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+
 	/**
 	 * The {@link LruCache} that will be used as an in memory cache
 	 */
 	private LruCache<String, CacheItem> cache;
 
+	/**
+	 * Ids of the {@link WebRequest}s that have been turned into conditional
+	 * requests in order to revalidate an expired file
+	 */
+	private final Set<String> revalidating = Collections.synchronizedSet(new HashSet<String>());
+
+	/**
+	 * File names of the stale files that are being revalidated in the
+	 * background
+	 */
+	private final Set<String> backgroundRevalidations = Collections.synchronizedSet(new HashSet<String>());
+
 	private CacheManager() {
 		cache = new LruCache<String, CacheManager.CacheItem>(CACHE_SIZE_MAX_ENTRIES);
 	}
@@ -172,9 +204,26 @@ public class CacheManager {
 		LOGGER.debug("Manually cleaned cache for tag '" + tag + "' total of " + count + " items removed.");
 	}
 
+	/**
+	 * Returns the name of the cached file of a {@link URL}. Files are named
+	 * after the canonical URL, so that a URL and the URL it has been moved to
+	 * permanently share the same file, see {@link RedirectStore}. Processors
+	 * that store files themselves must use this name as well.
+	 * 
+	 * @param url
+	 *            the {@link URL} of a {@link Request}
+	 * @return the file name
+	 */
+	public String getCacheFileName(URL url) {
+		return Utils.getMD5Hash(RedirectStore.getInstance().resolve(url).toString());
+	}
+
+	private String getCacheFileName(Request request) {
+		return getCacheFileName(request.getUrl());
+	}
+
 	private CachedObject getFromFileCache(Context c, Request request) {
-		ConnectivityHelper connectivityHelper = new ConnectivityHelper(c);
-		String fileName = Utils.getMD5Hash(request.getUrl().toString());
+		String fileName = getCacheFileName(request);
 		DataBaseAdapterCacheInformation daci = new DataBaseAdapterCacheInformation();
 		CacheInformation ci;
 
@@ -195,13 +244,25 @@ public class CacheManager {
 
 		File f = new File(filePath, fileName);
 
-		boolean connected = connectivityHelper.checkConnectivityWebRequest((WebRequest) request);
+		if (f.exists() && fileExpired(creationTimeStamp, cacheTime) && getStaleness(ci) < ci.getStaleWhileRevalidate()) {
+			LOGGER.info("Obtaining stale file from Cache, revalidating in the background: " + request.getUrl());
+			CachedObject cachedObject = readFromFileCache(f);
+			if (cachedObject != null) {
+				cachedObject.stale = true;
+			}
+			return cachedObject;
+		}
+
+		boolean connected = ConnectivityMonitor.getInstance(c).checkConnectivityWebRequest((WebRequest) request);
 		// @formatter:off
 		if (
 				(fileExpired(creationTimeStamp, cacheTime) || !f.exists()) && 
 				(!ci.isUseOfflineCache() || connected)
 		) {
 		// @formatter:on
+			if (f.exists() && startRevalidation(request, ci)) {
+				return null;
+			}
 			daci.setDataObject(ci);
 			daci.delete(c);
 			f.delete();
@@ -209,17 +270,310 @@ public class CacheManager {
 		} else {
 			LOGGER.info("Obtaining file from Cache. Expired: " + fileExpired(creationTimeStamp, cacheTime) + " File Exists: " + f.exists()
 					+ " UseOfflineCache: " + ci.isUseOfflineCache() + " Connectivity: " + connected);
-			try {
-				byte[] buffer = new byte[(int) f.length()];
-				FileInputStream fis;
-				fis = new FileInputStream(f);
-				fis.read(buffer);
-				fis.close();
-				return new CachedObject(buffer, CachedObject.From.FILE);
-			} catch (Throwable e) {
-				LOGGER.warn("Could not read cached file", e);
+			return readFromFileCache(f);
+		}
+	}
+
+	private CachedObject readFromFileCache(File f) {
+		try {
+			byte[] buffer = new byte[(int) f.length()];
+			FileInputStream fis;
+			fis = new FileInputStream(f);
+			fis.read(buffer);
+			fis.close();
+			return new CachedObject(buffer, CachedObject.From.FILE);
+		} catch (Throwable e) {
+			LOGGER.warn("Could not read cached file", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the time that has passed since a file expired
+	 * 
+	 * @param ci
+	 *            the {@link CacheInformation} of the file
+	 * @return the time in ms since the file expired, {@link Long#MAX_VALUE} if
+	 *         the file does not expire
+	 */
+	private long getStaleness(CacheInformation ci) {
+		if (ci.getCacheTime() < 0) {
+			return Long.MAX_VALUE;
+		}
+		return System.currentTimeMillis() - (ci.getCreationTimeStamp() + ci.getCacheTime());
+	}
+
+	/**
+	 * Keeps an expired file while its {@link WebRequest} is running, so that
+	 * it can be revalidated or, if the server fails, served stale. If the file
+	 * has a validator, the {@link WebRequest} is turned into a conditional
+	 * request.
+	 * 
+	 * @param request
+	 *            the {@link Request} whose file has expired
+	 * @param ci
+	 *            the {@link CacheInformation} of the expired file
+	 * @return <code>true</code> if the expired file has been kept,
+	 *         <code>false</code> otherwise
+	 */
+	private boolean startRevalidation(Request request, CacheInformation ci) {
+		if (!(request instanceof WebRequest)) {
+			return false;
+		}
+		if (!ci.hasValidator() && getStaleness(ci) >= ci.getStaleIfError()) {
+			return false;
+		}
+		WebRequest webRequest = (WebRequest) request;
+		if (webRequest.getRequestType() != Type.GET || hasConditionalHeader(webRequest)) {
+			return false;
+		}
+		if (ci.getEtag() != null) {
+			webRequest.addHeaderField(HEADER_IF_NONE_MATCH, ci.getEtag());
+		}
+		if (ci.getLastModified() != null) {
+			webRequest.addHeaderField(HEADER_IF_MODIFIED_SINCE, ci.getLastModified());
+		}
+		revalidating.add(webRequest.getId());
+		LOGGER.info("Revalidating expired file of " + webRequest.getUrl());
+		return true;
+	}
+
+	private boolean hasConditionalHeader(WebRequest webRequest) {
+		if (webRequest.getHeader() == null) {
+			return false;
+		}
+		for (String field : webRequest.getHeader().keySet()) {
+			if (HEADER_IF_NONE_MATCH.equalsIgnoreCase(field) || HEADER_IF_MODIFIED_SINCE.equalsIgnoreCase(field)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Prepares a {@link WebRequest} that revalidates a stale file in the
+	 * background (see
+	 * {@link CacheInformation#getStaleWhileRevalidate()}). Only one background
+	 * revalidation per file is run at a time.
+	 * 
+	 * @param c
+	 *            a {@link Context}
+	 * @param request
+	 *            the {@link WebRequest} that will revalidate the file, must
+	 *            not be used for anything else
+	 * @return <code>true</code> if the {@link WebRequest} should be run,
+	 *         <code>false</code> if the file is already being revalidated
+	 */
+	public boolean startBackgroundRevalidation(Context c, WebRequest request) {
+		String fileName = getCacheFileName(request);
+		if (!backgroundRevalidations.add(fileName)) {
+			return false;
+		}
+		try {
+			CacheInformation[] cacheInformation = new DataBaseAdapterCacheInformation().query(c, fileName);
+			if (cacheInformation.length != 0) {
+				startRevalidation(request, cacheInformation[0]);
+			}
+		} catch (Throwable tr) {
+			LOGGER.warn("Problem querying database", tr);
+		}
+		return true;
+	}
+
+	/**
+	 * Must be called once a {@link WebRequest} has been completed or
+	 * cancelled. If the {@link WebRequest} revalidated an expired file and the
+	 * server replied with {@link HTTPStatus#HTTP_NOT_MODIFIED}, the expiry of
+	 * the cached file is reset and the file is returned. If the server could
+	 * not be reached or failed, the stale file is returned as long as
+	 * {@link CacheInformation#getStaleIfError()} allows it.
+	 * 
+	 * @param c
+	 *            a {@link Context}
+	 * @param request
+	 *            the {@link WebRequest} that has been completed
+	 * @param replyAdapter
+	 *            the {@link ReplyAdapter} of the {@link WebRequest},
+	 *            <code>null</code> if the {@link WebRequest} has been
+	 *            cancelled
+	 * @return the cached {@link CachedObject} or <code>null</code> if the
+	 *         {@link ReplyAdapter} has to be processed as usual
+	 */
+	public CachedObject finishRevalidation(Context c, WebRequest request, ReplyAdapter replyAdapter) {
+		String fileName = getCacheFileName(request);
+		backgroundRevalidations.remove(fileName);
+		if (!revalidating.remove(request.getId())) {
+			return null;
+		}
+		if (request.getHeader() != null) {
+			request.removeHeaderField(HEADER_IF_NONE_MATCH);
+			request.removeHeaderField(HEADER_IF_MODIFIED_SINCE);
+		}
+		if (replyAdapter == null) {
+			return null;
+		}
+		WebReply reply = (WebReply) replyAdapter.getReply();
+		boolean notModified = replyAdapter.getStatus() == Status.OK && reply != null
+				&& reply.getHttpStatusCode() == HTTPStatus.HTTP_NOT_MODIFIED;
+		boolean failed = replyAdapter.getStatus() != Status.OK || reply == null || reply.getHttpStatusCode() >= 500;
+		if (!notModified && !failed) {
+			return null;
+		}
+		try {
+			DataBaseAdapterCacheInformation dbaci = new DataBaseAdapterCacheInformation();
+			CacheInformation[] cacheInformation = dbaci.query(c, fileName);
+			if (cacheInformation.length == 0) {
+				LOGGER.warn("The cached file of " + request.getUrl() + " is gone");
 				return null;
 			}
+			CacheInformation ci = cacheInformation[0];
+			if (failed) {
+				if (getStaleness(ci) >= ci.getStaleIfError()) {
+					return null;
+				}
+				LOGGER.info("Request failed, using stale file of " + request.getUrl());
+				return readFromFileCache(new File(ci.getFilePath(), fileName));
+			}
+			CachedObject cachedObject = readFromFileCache(new File(ci.getFilePath(), fileName));
+			if (cachedObject == null) {
+				return null;
+			}
+			ci.setCreationTimeStamp(System.currentTimeMillis());
+			setValidators(ci, reply.getReplyHeader());
+			if (request.getCacheTime() == CacheInformation.CACHE_HTTP) {
+				CacheControl cacheControl = CacheControl.parse(reply.getReplyHeader());
+				if (cacheControl.hasExplicitLifetime()) {
+					applyCacheControl(ci, cacheControl);
+				}
+			}
+			dbaci.setDataObject(ci);
+			dbaci.update(c);
+			LOGGER.info("Revalidated cached file of " + request.getUrl());
+			return cachedObject;
+		} catch (Throwable tr) {
+			LOGGER.warn("Could not revalidate cached file", tr);
+			return null;
+		}
+	}
+
+	/**
+	 * Writes the data of a {@link WebRequest} to the file cache. Ignores
+	 * {@link WebRequest}s whose {@link WebRequest#getCacheTime()} is
+	 * {@link CacheInformation#CACHE_NO} and replies that must not be stored.
+	 * 
+	 * @param c
+	 *            a {@link Context}
+	 * @param request
+	 *            the {@link WebRequest} whose data will be saved to the cache
+	 * @param data
+	 *            the actual data
+	 * @param replyHeader
+	 *            the reply header of the {@link WebRequest}, may be
+	 *            <code>null</code>
+	 * @param useOfflineCache
+	 *            controls {@link CacheInformation}s useOfflineCache parameter
+	 */
+	public void addToFileCache(Context c, WebRequest request, byte[] data, Map<String, List<String>> replyHeader, boolean useOfflineCache) {
+		String fileName = getCacheFileName(request);
+		if (fileName == null || data == null) {
+			return;
+		}
+		File path = Utils.getCacheDir(c);
+		CacheInformation ci = createCacheInformation(request, replyHeader, path.toString(), fileName, useOfflineCache);
+		if (ci == null) {
+			return;
+		}
+		BufferedOutputStream bos = null;
+		try {
+			bos = new BufferedOutputStream(new FileOutputStream(new File(path, fileName)));
+			bos.write(data);
+			bos.close();
+			bos = null;
+			addToCache(c, ci);
+		} catch (Throwable tr) {
+			LOGGER.warn("Could not cache " + request.getUrl(), tr);
+		} finally {
+			if (bos != null) {
+				try {
+					bos.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Creates the {@link CacheInformation} of a reply. If the cache time of the
+	 * {@link WebRequest} is {@link CacheInformation#CACHE_HTTP}, the lifetime
+	 * is derived from the reply header, otherwise the cache time of the
+	 * {@link WebRequest} is used.
+	 * 
+	 * @param request
+	 *            the {@link WebRequest}
+	 * @param replyHeader
+	 *            the reply header, may be <code>null</code>
+	 * @param filePath
+	 *            the path of the cached file
+	 * @param fileName
+	 *            the name of the cached file
+	 * @param useOfflineCache
+	 *            controls {@link CacheInformation}s useOfflineCache parameter
+	 * @return the {@link CacheInformation} or <code>null</code> if the reply
+	 *         should not be cached
+	 */
+	public CacheInformation createCacheInformation(WebRequest request, Map<String, List<String>> replyHeader, String filePath,
+			String fileName, boolean useOfflineCache) {
+		if (request.getCacheTime() == CacheInformation.CACHE_NO) {
+			return null;
+		}
+		CacheInformation ci = new CacheInformation();
+		ci.setCreationTimeStamp(System.currentTimeMillis());
+		ci.setFileName(fileName);
+		ci.setFilePath(filePath);
+		ci.setUseOfflineCache(useOfflineCache);
+		setValidators(ci, replyHeader);
+		if (request.getCacheTime() != CacheInformation.CACHE_HTTP) {
+			ci.setCacheTime(request.getCacheTime());
+			return ci;
+		}
+		CacheControl cacheControl = CacheControl.parse(replyHeader);
+		if (!cacheControl.isStorable()) {
+			LOGGER.debug("Not caching " + request.getUrl() + ", no-store");
+			return null;
+		}
+		applyCacheControl(ci, cacheControl);
+		if (ci.getCacheTime() == 0 && !ci.hasValidator() && ci.getStaleIfError() == 0 && !useOfflineCache) {
+			LOGGER.debug("Not caching " + request.getUrl() + ", reply is neither fresh nor revalidatable");
+			return null;
+		}
+		return ci;
+	}
+
+	private void applyCacheControl(CacheInformation ci, CacheControl cacheControl) {
+		ci.setCacheTime(cacheControl.getRemainingLifetime(ci.getCreationTimeStamp()));
+		ci.setStaleWhileRevalidate(cacheControl.getStaleWhileRevalidate());
+		ci.setStaleIfError(cacheControl.getStaleIfError());
+		LOGGER.debug("Applied " + cacheControl + " to " + ci);
+	}
+
+	/**
+	 * Copies the validators (ETag and Last-Modified) of a reply header to a
+	 * {@link CacheInformation}. Weak ETags are accepted, since a cached file
+	 * is never combined with partial content.
+	 * 
+	 * @param ci
+	 *            the {@link CacheInformation}
+	 * @param replyHeader
+	 *            the reply header, may be <code>null</code>
+	 */
+	private void setValidators(CacheInformation ci, Map<String, List<String>> replyHeader) {
+		String etag = WebClient.getHeaderValue(replyHeader, "ETag");
+		String lastModified = WebClient.getHeaderValue(replyHeader, "Last-Modified");
+		if (etag != null) {
+			ci.setEtag(etag);
+		}
+		if (lastModified != null) {
+			ci.setLastModified(lastModified);
 		}
 	}
 
@@ -245,7 +599,9 @@ public class CacheManager {
 			long creationTimeStamp = cacheInfo.getCreationTimeStamp();
 			long cacheTime = cacheInfo.getCacheTime();
 
-			if (fileExpired(creationTimeStamp, cacheTime) && (cacheTime != CacheInformation.CACHE_FOREVER)) {
+			long staleUse = Math.max(cacheInfo.getStaleWhileRevalidate(), cacheInfo.getStaleIfError());
+			if (fileExpired(creationTimeStamp, cacheTime) && (cacheTime != CacheInformation.CACHE_FOREVER)
+					&& getStaleness(cacheInfo) >= staleUse) {
 				String fileName = cacheInfo.getFileName();
 				File f = new File(cacheInfo.getFilePath(), fileName);
 				f.delete();
@@ -328,6 +684,12 @@ public class CacheManager {
 		private Object cachedObject;
 		private From from;
 
+		/**
+		 * <code>true</code> if the file has expired and is served while it is
+		 * revalidated in the background
+		 */
+		private boolean stale;
+
 		/**
 		 * Constructor
 		 * 
@@ -350,6 +712,11 @@ public class CacheManager {
 		public From getFrom() {
 			return from;
 		}
+
+		@SuppressWarnings("javadoc")
+		public boolean isStale() {
+			return stale;
+		}
 	}
 
 	private static final class CacheItem {
@@ -15,35 +15,20 @@
  */
 package at.diamonddogs.util;
 
-import java.net.InetAddress;
-
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
 import android.content.Context;
-import android.content.pm.PackageManager;
-import android.net.ConnectivityManager;
-import android.net.NetworkInfo;
 import at.diamonddogs.data.dataobjects.WebRequest;
 
 /**
  * A helper class that allows programmers to verify connectivity according to
- * {@link WebRequest} defined rules
+ * {@link WebRequest} defined rules. Reads the snapshot kept by the
+ * {@link ConnectivityMonitor}, checks are cheap and never block.
  */
 public class ConnectivityHelper {
 
-	private static final Logger LOGGER = LoggerFactory.getLogger(ConnectivityHelper.class.getSimpleName());
-
-	/**
-	 * An instance of {@link ConnectivityManager} used to check for connectivity
-	 * (o rly?! :>)
-	 */
-	private ConnectivityManager connectivityManager;
-
 	/**
-	 * A {@link Context} object
+	 * The {@link ConnectivityMonitor} holding the network state
 	 */
-	private Context context;
+	private ConnectivityMonitor connectivityMonitor;
 
 	/**
 	 * Constructor
@@ -52,8 +37,7 @@ public class ConnectivityHelper {
 	 *            a {@link Context} object
 	 */
 	public ConnectivityHelper(Context context) {
-		this.context = context;
-		this.connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+		this.connectivityMonitor = ConnectivityMonitor.getInstance(context);
 	}
 
 	/**
@@ -67,55 +51,9 @@ public class ConnectivityHelper {
 	 *            connectivity test fails
 	 * @return <code>true</code> if the device is connected according to the
 	 *         rules provided in {@link WebRequest}
+	 * @see ConnectivityMonitor#checkConnectivityWebRequest(WebRequest)
 	 */
 	public boolean checkConnectivityWebRequest(WebRequest wr) {
-		return isConnected(wr) && isPingAble(wr);
-	}
-
-	private boolean isConnected(WebRequest wr) {
-		if (wr.isCheckConnectivity()) {
-			if (!hasAccessNetworkStatePermission()) {
-				// @formatter:off
-				LOGGER.warn("WebRequest (" + wr.getUrl() + ", " + wr.getId() + ") requested a connectivity check, but the caller lacks the required permission (ACCESS_NETWORK_STATE). Returning true");
-				// @formatter:on
-				return true;
-			}
-			NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
-			return networkInfo == null ? false : networkInfo.isConnected();
-		} else {
-			LOGGER.info("WebRequest does not require connectivity check, returning true");
-			return true;
-		}
-	}
-
-	private boolean isPingAble(WebRequest wr) {
-		if (wr.isCheckConnectivityPing()) {
-			if (!hasChangeNetworkStatePermission()) {
-				// @formatter:off
-				LOGGER.warn("WebRequest (" + wr.getUrl() + ", " + wr.getId() + ") requested a connectivity PING check, but the caller lacks the required permission (CHANGE_NETWORK_STATE). Returning true");
-				// @formatter:on
-				return true;
-			}
-
-			InetAddress addr;
-			try {
-				addr = InetAddress.getByName(wr.getUrl().getHost());
-				return addr.isReachable(5000);
-			} catch (Throwable tr) {
-				LOGGER.warn("Hostname could not be resolved and therefore not be pinged. Returning false", tr);
-				return false;
-			}
-		} else {
-			LOGGER.info("WebRequest does not require connectivity check, returning true");
-			return true;
-		}
-	}
-
-	private boolean hasAccessNetworkStatePermission() {
-		return context.checkCallingOrSelfPermission(android.Manifest.permission.ACCESS_NETWORK_STATE) == PackageManager.PERMISSION_GRANTED;
-	}
-
-	private boolean hasChangeNetworkStatePermission() {
-		return context.checkCallingOrSelfPermission(android.Manifest.permission.CHANGE_NETWORK_STATE) == PackageManager.PERMISSION_GRANTED;
+		return connectivityMonitor.checkConnectivityWebRequest(wr);
 	}
 }
@@ -0,0 +1,412 @@
+/*
+ * Copyright (C) 2012, 2013 the diamond:dogs|group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.diamonddogs.util;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.Build;
+import at.diamonddogs.data.dataobjects.WebRequest;
+import at.diamonddogs.net.CircuitBreaker;
+import at.diamonddogs.net.ConnectionRacer;
+import at.diamonddogs.net.DnsCache;
+
+/**
+ * Keeps a snapshot of the network state that is updated by connectivity
+ * broadcasts, so that checking the connectivity of a {@link WebRequest} does
+ * not require querying the {@link ConnectivityManager} or probing the network.
+ * 
+ * Reachability checks ({@link WebRequest#isCheckConnectivityPing()}) are
+ * cached per host. A host that has not been probed yet is considered
+ * reachable while it is probed in the background.
+ */
+public class ConnectivityMonitor {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(ConnectivityMonitor.class.getSimpleName());
+
+	/**
+	 * The default time in ms a reachability result is cached
+	 */
+	public static final long DEFAULT_REACHABILITY_TTL = 30000;
+
+	/**
+	 * The timeout of a single reachability probe
+	 */
+	private static final int PROBE_TIMEOUT = 5000;
+
+	private static ConnectivityMonitor INSTANCE;
+
+	private final Context context;
+
+	private final ConnectivityManager connectivityManager;
+
+	private final boolean hasAccessNetworkStatePermission;
+
+	private final boolean hasChangeNetworkStatePermission;
+
+	private volatile NetworkState networkState;
+
+	/**
+	 * The key of the active network, see
+	 * {@link ConnectivityMonitor#getNetworkKey()}
+	 */
+	private String networkKey;
+
+	private final Map<String, Reachability> reachability = new HashMap<String, Reachability>();
+
+	/**
+	 * Hosts that are currently being probed
+	 */
+	private final Set<String> probing = new HashSet<String>();
+
+	private long reachabilityTtl = DEFAULT_REACHABILITY_TTL;
+
+	private final List<ConnectivityListener> listeners = new CopyOnWriteArrayList<ConnectivityListener>();
+
+	/**
+	 * Runs reachability probes, created on demand
+	 */
+	private ScheduledThreadPoolExecutor prober;
+
+	private ConnectivityMonitor(Context context) {
+		this.context = context;
+		this.connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+		this.hasAccessNetworkStatePermission = context.checkCallingOrSelfPermission(android.Manifest.permission.ACCESS_NETWORK_STATE) == PackageManager.PERMISSION_GRANTED;
+		this.hasChangeNetworkStatePermission = context.checkCallingOrSelfPermission(android.Manifest.permission.CHANGE_NETWORK_STATE) == PackageManager.PERMISSION_GRANTED;
+		this.networkState = readNetworkState();
+		this.networkKey = getNetworkKey();
+		ConnectionRacer.getInstance().setNetwork(networkKey);
+		context.registerReceiver(new ConnectivityReceiver(), new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+	}
+
+	/**
+	 * Returns the {@link ConnectivityMonitor}, creates it and starts listening
+	 * for connectivity changes if required
+	 * 
+	 * @param context
+	 *            a {@link Context} object, the application context will be
+	 *            used
+	 * @return the {@link ConnectivityMonitor}
+	 */
+	public static synchronized ConnectivityMonitor getInstance(Context context) {
+		if (INSTANCE == null) {
+			INSTANCE = new ConnectivityMonitor(context.getApplicationContext());
+		}
+		return INSTANCE;
+	}
+
+	/**
+	 * Returns the current network state without querying the system
+	 * 
+	 * @return the current {@link NetworkState}
+	 */
+	public NetworkState getNetworkState() {
+		return networkState;
+	}
+
+	/**
+	 * Checks the connectivity of the device according to the rules specified in
+	 * the {@link WebRequest} and the permissions the application has. If
+	 * permissions are not sufficient, <code>true</code> will be returned as a
+	 * fallback value. Never blocks.
+	 * 
+	 * @param wr
+	 *            the {@link WebRequest} whose rules will determine if the
+	 *            connectivity test fails
+	 * @return <code>true</code> if the device is connected according to the
+	 *         rules provided in {@link WebRequest}
+	 */
+	public boolean checkConnectivityWebRequest(WebRequest wr) {
+		return isConnected(wr) && isReachable(wr);
+	}
+
+	private boolean isConnected(WebRequest wr) {
+		if (!wr.isCheckConnectivity()) {
+			return true;
+		}
+		if (!hasAccessNetworkStatePermission) {
+			// @formatter:off
+			LOGGER.warn("WebRequest (" + wr.getUrl() + ", " + wr.getId() + ") requested a connectivity check, but the caller lacks the required permission (ACCESS_NETWORK_STATE). Returning true");
+			// @formatter:on
+			return true;
+		}
+		return networkState.isConnected();
+	}
+
+	private boolean isReachable(WebRequest wr) {
+		if (!wr.isCheckConnectivityPing()) {
+			return true;
+		}
+		if (!hasChangeNetworkStatePermission) {
+			// @formatter:off
+			LOGGER.warn("WebRequest (" + wr.getUrl() + ", " + wr.getId() + ") requested a connectivity PING check, but the caller lacks the required permission (CHANGE_NETWORK_STATE). Returning true");
+			// @formatter:on
+			return true;
+		}
+		return isReachable(wr.getUrl().getHost());
+	}
+
+	/**
+	 * Returns the cached reachability of a host. Hosts that have not been
+	 * probed recently are probed in the background and considered reachable
+	 * in the meantime.
+	 * 
+	 * @param host
+	 *            the host
+	 * @return <code>false</code> if the last probe of the host failed,
+	 *         <code>true</code> otherwise
+	 */
+	public synchronized boolean isReachable(String host) {
+		Reachability r = reachability.get(host);
+		if (r == null || System.currentTimeMillis() - r.timestamp > reachabilityTtl) {
+			probe(host);
+		}
+		return r == null || r.reachable;
+	}
+
+	private void probe(final String host) {
+		if (!probing.add(host)) {
+			return;
+		}
+		if (prober == null) {
+			prober = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "ConnectivityMonitor-prober");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		try {
+			prober.execute(new Runnable() {
+				@Override
+				public void run() {
+					boolean reachable;
+					try {
+						InetAddress addr = DnsCache.getInstance().lookup(host)[0];
+						reachable = addr.isReachable(PROBE_TIMEOUT);
+					} catch (Throwable tr) {
+						LOGGER.warn("Hostname could not be resolved and therefore not be pinged: " + host, tr);
+						reachable = false;
+					}
+					synchronized (ConnectivityMonitor.this) {
+						probing.remove(host);
+						reachability.put(host, new Reachability(reachable));
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			probing.remove(host);
+		}
+	}
+
+	/**
+	 * Sets the time reachability results are cached
+	 * 
+	 * @param reachabilityTtl
+	 *            the time in ms
+	 */
+	public synchronized void setReachabilityTtl(long reachabilityTtl) {
+		this.reachabilityTtl = reachabilityTtl;
+	}
+
+	/**
+	 * Registers a {@link ConnectivityListener}
+	 * 
+	 * @param listener
+	 *            the listener
+	 */
+	public void addListener(ConnectivityListener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * Unregisters a {@link ConnectivityListener}
+	 * 
+	 * @param listener
+	 *            the listener
+	 */
+	public void removeListener(ConnectivityListener listener) {
+		listeners.remove(listener);
+	}
+
+	private NetworkState readNetworkState() {
+		if (!hasAccessNetworkStatePermission) {
+			return new NetworkState(true, -1, -1, false);
+		}
+		NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
+		if (networkInfo == null) {
+			return new NetworkState(false, -1, -1, false);
+		}
+		return new NetworkState(networkInfo.isConnected(), networkInfo.getType(), networkInfo.getSubtype(), isMetered(networkInfo));
+	}
+
+	private boolean isMetered(NetworkInfo networkInfo) {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+			return connectivityManager.isActiveNetworkMetered();
+		}
+		return networkInfo.getType() != ConnectivityManager.TYPE_WIFI && networkInfo.getType() != ConnectivityManager.TYPE_ETHERNET;
+	}
+
+	/**
+	 * Returns a key identifying the active network, consisting of the network
+	 * type and the extra info (SSID or APN) if available
+	 */
+	private String getNetworkKey() {
+		if (!hasAccessNetworkStatePermission) {
+			return null;
+		}
+		NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
+		if (networkInfo == null) {
+			return null;
+		}
+		return networkInfo.getType() + "/" + networkInfo.getExtraInfo();
+	}
+
+	private void onNetworkChanged() {
+		NetworkState previous = networkState;
+		NetworkState current = readNetworkState();
+		networkState = current;
+		String key = getNetworkKey();
+		synchronized (this) {
+			// the key tells apart networks of the same type, e.g. two Wi-Fis
+			boolean sameNetwork = key == null ? networkKey == null : key.equals(networkKey);
+			if (previous.isConnected() == current.isConnected() && sameNetwork) {
+				return;
+			}
+			LOGGER.info("Network changed: " + previous + " (" + networkKey + ") -> " + current + " (" + key + ")");
+			networkKey = key;
+			// lookups, probes and failures belong to the previous network
+			reachability.clear();
+		}
+		DnsCache.getInstance().clear();
+		CircuitBreaker.getInstance().reset();
+		ConnectionRacer.getInstance().setNetwork(key);
+		for (ConnectivityListener listener : listeners) {
+			listener.onConnectivityChanged(current);
+		}
+	}
+
+	/**
+	 * Updates the snapshot on connectivity changes
+	 */
+	private final class ConnectivityReceiver extends BroadcastReceiver {
+		@Override
+		public void onReceive(Context c, Intent intent) {
+			onNetworkChanged();
+		}
+	}
+
+	private static final class Reachability {
+		private final boolean reachable;
+		private final long timestamp = System.currentTimeMillis();
+
+		private Reachability(boolean reachable) {
+			this.reachable = reachable;
+		}
+	}
+
+	/**
+	 * An immutable snapshot of the network state
+	 */
+	public static final class NetworkState {
+		private final boolean connected;
+		private final int type;
+		private final int subtype;
+		private final boolean metered;
+		private final long timestamp = System.currentTimeMillis();
+
+		private NetworkState(boolean connected, int type, int subtype, boolean metered) {
+			this.connected = connected;
+			this.type = type;
+			this.subtype = subtype;
+			this.metered = metered;
+		}
+
+		@SuppressWarnings("javadoc")
+		public boolean isConnected() {
+			return connected;
+		}
+
+		/**
+		 * Returns the type of the active network
+		 * 
+		 * @return one of the TYPE_ constants of {@link ConnectivityManager}
+		 *         or -1 if there is no active network or it is unknown
+		 */
+		public int getType() {
+			return type;
+		}
+
+		/**
+		 * Returns the subtype of the active network
+		 * 
+		 * @return the subtype, e.g. one of the NETWORK_TYPE_ constants of
+		 *         {@link android.telephony.TelephonyManager}, -1 if unknown
+		 */
+		public int getSubtype() {
+			return subtype;
+		}
+
+		@SuppressWarnings("javadoc")
+		public boolean isMetered() {
+			return metered;
+		}
+
+		@SuppressWarnings("javadoc")
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+		@Override
+		public String toString() {
+			return "NetworkState [connected=" + connected + ", type=" + type + ", subtype=" + subtype + ", metered=" + metered + "]";
+		}
+	}
+
+	/**
+	 * Interface that must be implemented by classes that want to be informed
+	 * about connectivity changes
+	 */
+	public interface ConnectivityListener {
+		/**
+		 * Called on the main thread once the active network has changed
+		 * 
+		 * @param networkState
+		 *            the new {@link NetworkState}
+		 */
+		public void onConnectivityChanged(NetworkState networkState);
+	}
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2012, 2013 the diamond:dogs|group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.diamonddogs.util;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * A {@link ByteArrayOutputStream} that can be presized (i.e. using the
+ * Content-Length of a reply) and hands out its internal buffer without copying
+ * if the buffer has been filled exactly. Allocations are reported to
+ * {@link ByteArrayPool#getStatistics()}.
+ */
+public class PresizedByteArrayOutputStream extends ByteArrayOutputStream {
+
+	/**
+	 * Upper bound for presizing, protects against bogus Content-Length values
+	 */
+	private static final int MAX_PRESIZE = 8 * 1024 * 1024;
+
+	/**
+	 * Default size used if the expected size is unknown
+	 */
+	private static final int DEFAULT_SIZE = 8192;
+
+	/**
+	 * Creates a new {@link PresizedByteArrayOutputStream}
+	 *
+	 * @param expectedSize
+	 *            the expected number of bytes, a value smaller than 0
+	 *            indicates that the size is unknown
+	 */
+	public PresizedByteArrayOutputStream(long expectedSize) {
+		super(expectedSize < 0 ? DEFAULT_SIZE : (int) Math.min(expectedSize, MAX_PRESIZE));
+		ByteArrayPool.getInstance().recordBodyAllocation();
+	}
+
+	@Override
+	public synchronized void write(byte[] buffer, int offset, int len) {
+		byte[] old = buf;
+		super.write(buffer, offset, len);
+		if (old != buf) {
+			ByteArrayPool.getInstance().recordBodyGrowth();
+		}
+	}
+
+	@Override
+	public synchronized void write(int oneByte) {
+		byte[] old = buf;
+		super.write(oneByte);
+		if (old != buf) {
+			ByteArrayPool.getInstance().recordBodyGrowth();
+		}
+	}
+
+	/**
+	 * Returns the written bytes. If the internal buffer has been filled
+	 * exactly, it is returned directly, otherwise a copy is created. The
+	 * stream must not be written to after calling this method.
+	 *
+	 * @return the written bytes
+	 */
+	public synchronized byte[] getBytes() {
+		if (count == buf.length) {
+			ByteArrayPool.getInstance().recordBodyCopy(true);
+			return buf;
+		}
+		ByteArrayPool.getInstance().recordBodyCopy(false);
+		return toByteArray();
+	}
+}
@@ -15,25 +15,71 @@
  */
 package at.diamonddogs.util;
 
+import java.util.Iterator;
 import java.util.concurrent.Callable;
 import java.util.concurrent.Future;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import at.diamonddogs.data.dataobjects.NonTimeCriticalTask.PRIORITY;
+
 /**
- * A simple worker queue
+ * A simple worker queue. Queued tasks are run in order of their
+ * {@link PRIORITY}, tasks of the same {@link PRIORITY} in the order they have
+ * been queued. Waiting tasks age: every aging interval a task has been queued
+ * counts as one {@link PRIORITY} level, so that a burst of high priority
+ * tasks cannot starve low priority ones. Tasks with a deadline are run no
+ * later than tasks whose aged priority corresponds to their deadline.
  */
 public class WorkerQueue {
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(WorkerQueue.class.getSimpleName());
-	private LinkedBlockingQueue<Runnable> outstandingRequests;
+
+	/**
+	 * The default time in ms a task has to wait to gain one {@link PRIORITY}
+	 * level
+	 */
+	public static final long DEFAULT_AGING_INTERVAL = 2000;
+
+	/**
+	 * The {@link PRIORITY} of tasks queued without a {@link Prioritized}
+	 */
+	private static final Prioritized DEFAULT = new Prioritized() {
+		@Override
+		public PRIORITY getPriority() {
+			return PRIORITY.NORMAL;
+		}
+
+		@Override
+		public long getDeadline() {
+			return 0;
+		}
+	};
+
+	private PriorityBlockingQueue<Runnable> outstandingRequests;
 
 	private ThreadPoolExecutor threadPoolExecuter;
 
+	/**
+	 * Holds delayed tasks until they are due, created on demand
+	 */
+	private ScheduledThreadPoolExecutor scheduler;
+
+	/**
+	 * Keeps tasks with the same key in FIFO order
+	 */
+	private final AtomicLong sequence = new AtomicLong();
+
+	private volatile long agingInterval = DEFAULT_AGING_INTERVAL;
+
 	/**
 	 * Creates a {@link WorkerQueue}
 	 * 
@@ -45,10 +91,26 @@ public class WorkerQueue {
 	 *            the keep alive time in ms
 	 */
 	public WorkerQueue(int corePoolSize, int maxPoolSize, long keepAliveTimeMs) {
-		outstandingRequests = new LinkedBlockingQueue<Runnable>();
+		outstandingRequests = new PriorityBlockingQueue<Runnable>();
 		threadPoolExecuter = new ThreadPoolExecutor(corePoolSize, maxPoolSize, keepAliveTimeMs, TimeUnit.MILLISECONDS, outstandingRequests);
 	}
 
+	/**
+	 * Sets the time a task has to wait to gain one {@link PRIORITY} level,
+	 * applies to tasks queued afterwards
+	 * 
+	 * @param agingInterval
+	 *            the aging interval in ms
+	 */
+	public void setAgingInterval(long agingInterval) {
+		this.agingInterval = agingInterval;
+	}
+
+	@SuppressWarnings("javadoc")
+	public long getAgingInterval() {
+		return agingInterval;
+	}
+
 	/**
 	 * 
 	 * Cancel a running task
@@ -64,12 +126,159 @@ public class WorkerQueue {
 	 * @return
 	 */
 	public <T> Future<T> runCancelableTask(Callable<T> task) {
-		if (!threadPoolExecuter.isShutdown()) {
-			return threadPoolExecuter.submit(task);
+		return runCancelableTask(task, DEFAULT);
+	}
+
+	/**
+	 * Runs a task that can be cancelled using the returned {@link Future}
+	 * 
+	 * @param <T>
+	 *            the type of object to be returned by the {@link Callable} /
+	 *            {@link Future}
+	 * @param task
+	 *            the task to run
+	 * @param owner
+	 *            provides the {@link PRIORITY} and deadline of the task
+	 * @return the {@link Future} of the task or <code>null</code> if the
+	 *         executer was shutdown
+	 */
+	public <T> Future<T> runCancelableTask(Callable<T> task, Prioritized owner) {
+		FutureTask<T> futureTask = new FutureTask<T>(task);
+		if (!execute(futureTask, owner)) {
+			return null;
+		}
+		return futureTask;
+	}
+
+	/**
+	 * Runs a {@link FutureTask}. Unlike
+	 * {@link WorkerQueue#runCancelableTask(Callable)}, the caller keeps the
+	 * task and may run it on its own thread if it has not been started yet,
+	 * which allows tasks running on this {@link WorkerQueue} to wait for
+	 * subtasks without risking a deadlock.
+	 * 
+	 * @param task
+	 *            the task to run
+	 * @return <code>true</code> if the task has been queued,
+	 *         <code>false</code> if the executer was shutdown
+	 */
+	public boolean execute(FutureTask<?> task) {
+		return execute(task, DEFAULT);
+	}
+
+	/**
+	 * Runs a {@link FutureTask} according to the {@link PRIORITY} and
+	 * deadline of its owner, see {@link WorkerQueue#execute(FutureTask)}
+	 * 
+	 * @param task
+	 *            the task to run
+	 * @param owner
+	 *            provides the {@link PRIORITY} and deadline of the task
+	 * @return <code>true</code> if the task has been queued,
+	 *         <code>false</code> if the executer was shutdown
+	 */
+	public boolean execute(FutureTask<?> task, Prioritized owner) {
+		return enqueue(new QueuedTask(task, owner, System.currentTimeMillis(), sequence.getAndIncrement()));
+	}
+
+	private boolean enqueue(QueuedTask task) {
+		if (threadPoolExecuter.isShutdown()) {
+			return false;
+		}
+		try {
+			threadPoolExecuter.execute(task);
+			return true;
+		} catch (RejectedExecutionException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Reorders the queued tasks of an owner after its {@link PRIORITY} or
+	 * deadline has changed, e.g. because an image scrolled back into view.
+	 * Tasks keep the time they have already waited.
+	 * 
+	 * @param owner
+	 *            the owner whose tasks should be reordered
+	 * @return the number of tasks that have been reordered, tasks that are
+	 *         already running are not affected
+	 */
+	public int reprioritize(Prioritized owner) {
+		int count = 0;
+		Iterator<Runnable> i = outstandingRequests.iterator();
+		while (i.hasNext()) {
+			Runnable r = i.next();
+			if (!(r instanceof QueuedTask) || ((QueuedTask) r).owner != owner) {
+				continue;
+			}
+			QueuedTask queued = (QueuedTask) r;
+			// a worker may have taken the task in the meantime
+			if (outstandingRequests.remove(queued)) {
+				enqueue(new QueuedTask(queued.task, owner, queued.queuedAt, queued.sequence));
+				count++;
+			}
+		}
+		if (count > 0) {
+			LOGGER.debug("Reprioritized " + count + " tasks to " + owner.getPriority());
 		}
-		return null;
+		return count;
 	}
 
+	/**
+	 * Runs a task on this {@link WorkerQueue} once the given delay has elapsed.
+	 * No worker thread is occupied while waiting.
+	 * 
+	 * @param task
+	 *            the task to run
+	 * @param delayMs
+	 *            the delay in ms
+	 * @return <code>true</code> if the task has been scheduled,
+	 *         <code>false</code> if the executer was shutdown
+	 */
+	public boolean schedule(Runnable task, long delayMs) {
+		return schedule(task, delayMs, DEFAULT);
+	}
+
+	/**
+	 * Runs a task according to the {@link PRIORITY} and deadline of its owner
+	 * once the given delay has elapsed, see
+	 * {@link WorkerQueue#schedule(Runnable, long)}
+	 * 
+	 * @param task
+	 *            the task to run
+	 * @param delayMs
+	 *            the delay in ms
+	 * @param owner
+	 *            provides the {@link PRIORITY} and deadline of the task
+	 * @return <code>true</code> if the task has been scheduled,
+	 *         <code>false</code> if the executer was shutdown
+	 */
+	public boolean schedule(Runnable task, long delayMs, final Prioritized owner) {
+		final FutureTask<Void> futureTask = new FutureTask<Void>(task, null);
+		ScheduledThreadPoolExecutor s;
+		synchronized (this) {
+			if (threadPoolExecuter.isShutdown()) {
+				return false;
+			}
+			if (scheduler == null) {
+				scheduler = new ScheduledThreadPoolExecutor(1);
+			}
+			s = scheduler;
+		}
+		try {
+			s.schedule(new Runnable() {
+				@Override
+				public void run() {
+					if (!execute(futureTask, owner)) {
+						LOGGER.debug("Dropping scheduled task, executer was shutdown");
+					}
+				}
+			}, delayMs, TimeUnit.MILLISECONDS);
+			return true;
+		} catch (RejectedExecutionException e) {
+			return false;
+		}
+	}
 	/**
 	 * Checks if the executer was shut down
 	 * 
@@ -85,5 +294,66 @@ public class WorkerQueue {
 	public void shutDown() {
 		LOGGER.debug("shuting down NOW");
 		threadPoolExecuter.shutdownNow();
+		synchronized (this) {
+			if (scheduler != null) {
+				scheduler.shutdownNow();
+			}
+		}
+	}
+
+	/**
+	 * Provides the {@link PRIORITY} and deadline of queued tasks, e.g. the
+	 * {@link at.diamonddogs.data.dataobjects.WebRequest} a task runs
+	 */
+	public interface Prioritized {
+		/**
+		 * @return the {@link PRIORITY} of the tasks of this owner
+		 */
+		public PRIORITY getPriority();
+
+		/**
+		 * @return the absolute time in ms the tasks of this owner must be
+		 *         complete by, 0 if there is no deadline
+		 */
+		public long getDeadline();
+	}
+
+	/**
+	 * A queued task. Tasks are ordered by a key that does not change while
+	 * they are queued: the time they have been queued at, delayed by one
+	 * aging interval per {@link PRIORITY} level below
+	 * {@link PRIORITY#HIGHEST} and capped by their deadline. Since all tasks
+	 * age at the same rate, this is equivalent to raising the
+	 * {@link PRIORITY} of waiting tasks.
+	 */
+	private final class QueuedTask implements Runnable, Comparable<QueuedTask> {
+		private final FutureTask<?> task;
+		private final Prioritized owner;
+		private final long queuedAt;
+		private final long sequence;
+		private final long key;
+
+		private QueuedTask(FutureTask<?> task, Prioritized owner, long queuedAt, long sequence) {
+			this.task = task;
+			this.owner = owner;
+			this.queuedAt = queuedAt;
+			this.sequence = sequence;
+			long key = queuedAt + owner.getPriority().ordinal() * agingInterval;
+			long deadline = owner.getDeadline();
+			this.key = deadline > 0 ? Math.min(key, deadline) : key;
+		}
+
+		@Override
+		public void run() {
+			task.run();
+		}
+
+		@Override
+		public int compareTo(QueuedTask another) {
+			if (key != another.key) {
+				return key < another.key ? -1 : 1;
+			}
+			return sequence < another.sequence ? -1 : (sequence == another.sequence ? 0 : 1);
+		}
 	}
 }